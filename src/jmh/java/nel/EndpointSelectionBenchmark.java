@@ -0,0 +1,92 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures endpoint selection: {@link ReportingCache#chooseEndpoint} for an origin whose only
+ * client is registered for a distant superdomain, and {@link EndpointGroup#chooseEndpoint} for a
+ * group with many endpoints.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndpointSelectionBenchmark {
+  private static final Instant CREATED = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant NOW = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  /** The number of labels between the request's host and the superdomain with a client. */
+  @Param({"1", "4", "8"})
+  private int subdomainDepth;
+
+  /** The number of endpoints in the group. */
+  @Param({"1", "10", "1000"})
+  private int endpointCount;
+
+  private ReportingCache cache;
+  private Origin origin;
+  private EndpointGroup group;
+
+  @Setup
+  public void setUp() throws MalformedURLException {
+    group = new EndpointGroup("nel", true, Duration.standardDays(1), CREATED);
+    for (int i = 0; i < endpointCount; i++) {
+      URL url = new URL("https://collector" + Integer.toString(i) + ".example.com/upload");
+      group.addEndpoint(new Endpoint(url, 1 + i % 2, 1 + i % 3));
+    }
+    Client client = new Client(new Origin("https", "example.com", 443));
+    client.addGroup(group);
+    cache = new ReportingCache();
+    cache.addClient(client);
+
+    StringBuilder host = new StringBuilder();
+    for (int i = 0; i < subdomainDepth; i++) {
+      host.append("label").append(i).append('.');
+    }
+    host.append("example.com");
+    origin = new Origin("https", host.toString(), 443);
+  }
+
+  @Benchmark
+  public Endpoint cacheChooseEndpoint() {
+    return cache.chooseEndpoint(NOW, origin, "nel");
+  }
+
+  @Benchmark
+  public Endpoint groupChooseEndpoint() {
+    return group.chooseEndpoint(NOW);
+  }
+}
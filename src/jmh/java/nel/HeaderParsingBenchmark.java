@@ -0,0 +1,88 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to parse typical <code>Report-To</code> and <code>NEL</code> headers,
+ * both via Gson and via the single-pass {@link HeaderParser}, and how long it takes to look up a
+ * repeated header in a {@link HeaderParseCache}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HeaderParsingBenchmark {
+  private static final Instant NOW = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Origin ORIGIN = new Origin("https", "www.example.com", 443);
+
+  private static final List<String> REPORT_TO = Arrays.asList(
+      "{\"group\":\"nel\",\"max-age\":2592000,\"include-subdomains\":true,\"endpoints\":["
+      + "{\"url\":\"https://collector1.example.com/upload\",\"priority\":1,\"weight\":2},"
+      + "{\"url\":\"https://collector2.example.com/upload\",\"priority\":1,\"weight\":1},"
+      + "{\"url\":\"https://backup.example.net/upload\",\"priority\":2}]}");
+
+  private static final String NEL = "{\"report-to\":\"nel\",\"max-age\":2592000,"
+      + "\"include-subdomains\":true,\"success-fraction\":0.01,\"failure-fraction\":1.0}";
+
+  private HeaderParseCache cache = new HeaderParseCache();
+
+  @Benchmark
+  public Client parseReportTo() throws InvalidHeaderException {
+    return Client.parseFromReportToHeader(REPORT_TO, ORIGIN, NOW);
+  }
+
+  @Benchmark
+  public NelPolicy parseNel() throws InvalidHeaderException {
+    return NelPolicy.parseFromNelHeader(NEL, ORIGIN, NOW);
+  }
+
+  @Benchmark
+  public Client parseReportToSinglePass() throws InvalidHeaderException {
+    return HeaderParser.parseReportToHeader(REPORT_TO, ORIGIN, NOW);
+  }
+
+  @Benchmark
+  public NelPolicy parseNelSinglePass() throws InvalidHeaderException {
+    return HeaderParser.parseNelHeader(NEL, ORIGIN, NOW);
+  }
+
+  @Benchmark
+  public Client parseReportToCached() throws InvalidHeaderException {
+    return cache.parseReportToHeader(REPORT_TO, ORIGIN, NOW);
+  }
+
+  @Benchmark
+  public NelPolicy parseNelCached() throws InvalidHeaderException {
+    return cache.parseNelHeader(NEL, ORIGIN, NOW);
+  }
+}
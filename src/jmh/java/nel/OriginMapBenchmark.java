@@ -0,0 +1,97 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link OriginMap#getAll}, which walks through every superdomain of a host.
+ * {@link #walkWithSuperdomainKey} performs the same walk the way that {@link ReportingCache} does on
+ * its hot paths, using a {@link SuperdomainKey} directly.  For comparison, {@link
+ * #getAllWithSuperdomainOrigins} performs the walk the way that we used to, creating a new {@link
+ * Origin} for each superdomain.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OriginMapBenchmark {
+  /** The number of labels in the host being looked up. */
+  @Param({"2", "5", "8"})
+  private int labels;
+
+  private OriginMap<String> map;
+  private Origin origin;
+
+  @Setup
+  public void setUp() {
+    map = new OriginMap<String>();
+    // Fill the map with unrelated origins, so that lookups don't hit an empty table.
+    for (int i = 0; i < 10000; i++) {
+      map.put(new Origin("https", "site" + Integer.toString(i) + ".test", 443), "unrelated");
+    }
+    StringBuilder host = new StringBuilder("example.com");
+    for (int i = 2; i < labels; i++) {
+      host.insert(0, "label" + Integer.toString(i) + ".");
+    }
+    origin = new Origin("https", host.toString(), 443);
+    map.put(new Origin("https", "example.com", 443), "registrable");
+    map.put(origin, "exact");
+  }
+
+  @Benchmark
+  public void getAll(Blackhole blackhole) {
+    for (String value : map.getAll(origin)) {
+      blackhole.consume(value);
+    }
+  }
+
+  @Benchmark
+  public void walkWithSuperdomainKey(Blackhole blackhole) {
+    SuperdomainKey key = SuperdomainKey.forCurrentThread(origin);
+    do {
+      String value = map.get(key);
+      if (value != null) {
+        blackhole.consume(value);
+      }
+    } while (key.toSuperdomain());
+  }
+
+  @Benchmark
+  public void getAllWithSuperdomainOrigins(Blackhole blackhole) {
+    for (Origin current = origin; current != null; current = current.getSuperdomainOrigin()) {
+      String value = map.get(current);
+      if (value != null) {
+        blackhole.consume(value);
+      }
+    }
+  }
+}
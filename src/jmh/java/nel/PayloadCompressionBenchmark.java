@@ -0,0 +1,107 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost and benefit of compressing upload payloads.  Each invocation renders a batch
+ * of 100 reports, optionally compressing it; the primary result is the CPU time per report.  The
+ * <code>wireBytes</code> and <code>reports</code> secondary metrics count the bytes that would be
+ * sent over the wire and the reports they contain; divide one by the other to get the bytes on the
+ * wire per report.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadCompressionBenchmark {
+  private static final Instant NOW = Instant.parse("2018-02-20T13:00:00.200Z");
+  private static final int BATCH_SIZE = 100;
+
+  /** Reports the size of each payload alongside the benchmark's timing. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class WireSize {
+    public long wireBytes;
+    public long reports;
+  }
+
+  @Param({"none", "gzip", "deflate"})
+  public String encoding;
+
+  @Param({"1", "6", "9"})
+  public int level;
+
+  private ReportBatch batch;
+  private ReportEncoder encoder;
+  private PayloadCompressor compressor;
+
+  @Setup
+  public void setUp() throws IOException {
+    Origin origin = new Origin("https", "www.example.com", 443);
+    batch = new ReportBatch(origin, "nel", new Endpoint(new URL("https://collector.test/upload")));
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.addReport(new QueuedReport(new Report()
+          .setTimestamp(Instant.parse("2018-02-20T13:00:00.000Z"))
+          .setUri("https://www.example.com/some/path?page=" + Integer.toString(i))
+          .setSamplingFraction(1.0)
+          .setServerIp("192.0.2." + Integer.toString(i))
+          .setProtocol("h2")
+          .setStatusCode(503)
+          .setElapsedTime(Duration.millis(i))
+          .setType(Type.HTTP_FAILED), "nel", origin));
+    }
+    encoder = new ReportEncoder();
+    // "none" never reaches the threshold, so it measures the uncompressed payload through the same
+    // buffering path.
+    PayloadCompressor.Encoding compressorEncoding = "deflate".equals(encoding)
+        ? PayloadCompressor.Encoding.DEFLATE
+        : PayloadCompressor.Encoding.GZIP;
+    compressor = new PayloadCompressor(compressorEncoding)
+        .setLevel(level)
+        .setMinBytes("none".equals(encoding) ? Integer.MAX_VALUE : 0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public byte[] encodeBatch(WireSize wireSize) throws IOException {
+    byte[] payload = compressor.encode(batch, encoder, NOW).getBytes();
+    wireSize.wireBytes += payload.length;
+    wireSize.reports += BATCH_SIZE;
+    return payload;
+  }
+}
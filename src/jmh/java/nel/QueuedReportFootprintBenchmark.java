@@ -0,0 +1,114 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many bytes of heap each queued report retains.  We create 200,000 reports with
+ * distinct URIs, wrap each one the way a {@link ReportQueue} would hold on to it, and compare the
+ * live heap before and after.  The <code>fullReport</code> layout keeps the original {@link
+ * Report} alongside the queue bookkeeping, which is what {@link QueuedReport} used to do; the
+ * <code>compact</code> layout is the current {@link QueuedReport}.  The result is the
+ * <code>bytesPerReport</code> secondary metric; the timing is irrelevant.  JMH sums secondary
+ * metrics over measurement iterations, so we only run one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1, batchSize = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UseSerialGC", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class QueuedReportFootprintBenchmark {
+  private static final int REPORT_COUNT = 200000;
+  private static final Instant NOW = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Origin ORIGIN = new Origin("https", "example.com", 443);
+
+  /** The fields that a queued report used to hold, including the original report. */
+  private static class FullQueuedReport {
+    FullQueuedReport(Report report, Origin origin, String group) {
+      this.report = report;
+      this.origin = origin;
+      this.group = group;
+    }
+
+    private Report report;
+    private Origin origin;
+    private String group;
+    private volatile int attempts;
+    private volatile boolean pending;
+  }
+
+  /** Reports the measured footprint alongside the benchmark's timing. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Footprint {
+    public long bytesPerReport;
+  }
+
+  @Param({"fullReport", "compact"})
+  public String layout;
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static Report makeReport(int i) {
+    return new Report()
+        .setTimestamp(NOW.plus(i))
+        .setUri("https://example.com/static/" + Integer.toString(i) + "/app.js?v=3")
+        .setSamplingFraction(1.0)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(503)
+        .setElapsedTime(Duration.millis(100 + i % 1000))
+        .setType(Type.HTTP_FAILED);
+  }
+
+  @Benchmark
+  public Object[] measure(Footprint footprint) {
+    boolean compact = "compact".equals(layout);
+    Object[] retained = new Object[REPORT_COUNT];
+    long before = usedHeap();
+    for (int i = 0; i < REPORT_COUNT; i++) {
+      Report report = makeReport(i);
+      retained[i] = compact
+          ? new QueuedReport(report, "nel", ORIGIN)
+          : new FullQueuedReport(report, ORIGIN, "nel");
+    }
+    long after = usedHeap();
+    footprint.bytesPerReport = (after - before) / REPORT_COUNT;
+    return retained;
+  }
+}
@@ -0,0 +1,167 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single expiry pass over a queue holding 1,000,000 reports, spread evenly over an hour,
+ * that removes the oldest minute's worth of them.  This is what a periodic {@link ReportExpirer}
+ * does during an outage, when reports pile up because nothing can be delivered.  The
+ * <code>fullScan</code> queue is the old unbucketed implementation, which has to look at every
+ * report.  The <code>bounded</code> and <code>persistent</code> queues find expired reports via a
+ * bucketed timestamp index, and also have to update their own bookkeeping for each of them.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportExpiryBenchmark {
+  private static final int REPORT_COUNT = 1000000;
+  private static final Instant START = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Duration SPAN = Duration.standardHours(1);
+  private static final Instant CUTOFF = START.plus(Duration.standardMinutes(1));
+
+  /** The original queue implementation, which scans every report to find the expired ones. */
+  private static class FullScanReportQueue implements ReportQueue {
+    @Override
+    public void add(QueuedReport report) {
+      reports.add(report);
+    }
+
+    @Override
+    public int size() {
+      return reports.size();
+    }
+
+    @Override
+    public List<QueuedReport> getAll() {
+      return new ArrayList<QueuedReport>(reports);
+    }
+
+    @Override
+    public void removeAll(Collection<QueuedReport> reports) {
+      this.reports.removeAll(reports);
+    }
+
+    @Override
+    public void removeOlderThan(Instant cutoff) {
+      Iterator<QueuedReport> iter = reports.iterator();
+      while (iter.hasNext()) {
+        if (iter.next().isOlderThan(cutoff)) {
+          iter.remove();
+        }
+      }
+    }
+
+    private HashSet<QueuedReport> reports = new HashSet<QueuedReport>();
+  }
+
+  @Param({"fullScan", "inMemory", "concurrent", "bounded", "persistent"})
+  public String implementation;
+
+  private QueuedReport[] reports;
+  private ReportQueue queue;
+  private Path directory;
+
+  @Setup(Level.Trial)
+  public void createReports() {
+    reports = new QueuedReport[REPORT_COUNT];
+    long step = SPAN.getMillis() * 1000 / REPORT_COUNT;
+    for (int i = 0; i < REPORT_COUNT; i++) {
+      Report report = new Report()
+          .setTimestamp(START.plus(i * step / 1000))
+          .setUri("https://example.com/path")
+          .setSamplingFraction(1.0)
+          .setServerIp("192.0.2.24")
+          .setProtocol("h2")
+          .setStatusCode(503)
+          .setElapsedTime(Duration.millis(100))
+          .setType(Type.HTTP_FAILED);
+      reports[i] = new QueuedReport(report, "nel");
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void fillQueue() throws IOException {
+    if ("fullScan".equals(implementation)) {
+      queue = new FullScanReportQueue();
+    } else if ("inMemory".equals(implementation)) {
+      queue = new InMemoryReportQueue();
+    } else if ("bounded".equals(implementation)) {
+      queue = new BoundedReportQueue(BoundedReportQueue.EvictionPolicy.FAIR_SHARE);
+    } else if ("persistent".equals(implementation)) {
+      directory = Files.createTempDirectory("nel-expiry-benchmark");
+      queue = new PersistentReportQueue(directory);
+    } else {
+      queue = new ConcurrentReportQueue();
+    }
+    for (QueuedReport report : reports) {
+      queue.add(report);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteQueue() throws IOException {
+    if (directory == null) {
+      return;
+    }
+    ((PersistentReportQueue) queue).close();
+    DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+    try {
+      for (Path path : stream) {
+        Files.delete(path);
+      }
+    } finally {
+      stream.close();
+    }
+    Files.delete(directory);
+    directory = null;
+  }
+
+  @Benchmark
+  public ReportQueue removeOlderThan() {
+    queue.removeOlderThan(CUTOFF);
+    return queue;
+  }
+}
@@ -0,0 +1,113 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the enqueue rate of each {@link ReportQueue} implementation.  Each operation adds a
+ * single report; every {@link #BATCH_SIZE} reports, we remove the whole batch, as if it had been
+ * delivered, so that the queue stays a realistic size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportQueueBenchmark {
+  private static final int BATCH_SIZE = 100;
+  private static final Instant NOW = Instant.parse("2018-02-20T13:00:00.000Z");
+
+  private Report report;
+  private Path directory;
+  private InMemoryReportQueue inMemory;
+  private PersistentReportQueue persistent;
+  private ArrayList<QueuedReport> inMemoryBatch;
+  private ArrayList<QueuedReport> persistentBatch;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    report = new Report()
+        .setTimestamp(NOW)
+        .setUri("https://example.com/path")
+        .setSamplingFraction(1.0)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(503)
+        .setElapsedTime(Duration.millis(100))
+        .setType(Type.HTTP_FAILED);
+    directory = Files.createTempDirectory("nel-queue-benchmark");
+    inMemory = new InMemoryReportQueue();
+    persistent = new PersistentReportQueue(directory);
+    inMemoryBatch = new ArrayList<QueuedReport>();
+    persistentBatch = new ArrayList<QueuedReport>();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    persistent.close();
+    DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+    try {
+      for (Path path : stream) {
+        Files.delete(path);
+      }
+    } finally {
+      stream.close();
+    }
+    Files.delete(directory);
+  }
+
+  private static void enqueue(ReportQueue queue, ArrayList<QueuedReport> batch, Report report) {
+    QueuedReport queuedReport = new QueuedReport(report, "nel");
+    queue.add(queuedReport);
+    batch.add(queuedReport);
+    if (batch.size() == BATCH_SIZE) {
+      queue.removeAll(batch);
+      batch.clear();
+    }
+  }
+
+  @Benchmark
+  public void inMemoryEnqueue() {
+    enqueue(inMemory, inMemoryBatch, report);
+  }
+
+  @Benchmark
+  public void persistentEnqueue() {
+    enqueue(persistent, persistentBatch, report);
+  }
+}
@@ -0,0 +1,114 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.stream.JsonWriter;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to render reports as JSON: a single report via {@link
+ * Report#toString(Instant)}, and a batch of 100 reports as an upload payload, both via Gson's
+ * {@link JsonWriter} and via {@link ReportEncoder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportSerializationBenchmark {
+  private static final Instant NOW = Instant.parse("2018-02-20T13:00:00.200Z");
+
+  private Report report = new Report()
+      .setTimestamp(Instant.parse("2018-02-20T13:00:00.000Z"))
+      .setUri("https://www.example.com/some/path?query=value")
+      .setReferrer(URI.create("https://www.example.com/"))
+      .setSamplingFraction(1.0)
+      .setServerIp("192.0.2.24")
+      .setProtocol("h2")
+      .setStatusCode(503)
+      .setElapsedTime(Duration.millis(1234))
+      .setType(Type.HTTP_FAILED);
+
+  private static final int BATCH_SIZE = 100;
+
+  private ArrayList<Report> batch;
+  private ByteArrayOutputStream output;
+  private ReportEncoder encoder;
+
+  @Setup
+  public void setUp() {
+    batch = new ArrayList<Report>();
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(new Report()
+          .setTimestamp(Instant.parse("2018-02-20T13:00:00.000Z"))
+          .setUri("https://www.example.com/some/path?page=" + Integer.toString(i))
+          .setSamplingFraction(1.0)
+          .setServerIp("192.0.2." + Integer.toString(i))
+          .setProtocol("h2")
+          .setStatusCode(503)
+          .setElapsedTime(Duration.millis(i))
+          .setType(Type.HTTP_FAILED));
+    }
+    output = new ByteArrayOutputStream(64 * 1024);
+    encoder = new ReportEncoder();
+  }
+
+  @Benchmark
+  public String reportToString() {
+    return report.toString(NOW);
+  }
+
+  @Benchmark
+  public int batchWithJsonWriter() throws IOException {
+    output.reset();
+    JsonWriter writer =
+        ReportJsonAdapter.newWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    writer.beginArray();
+    for (Report each : batch) {
+      ReportJsonAdapter.writeReport(writer, each, NOW);
+    }
+    writer.endArray();
+    writer.close();
+    return output.size();
+  }
+
+  @Benchmark
+  public int batchWithEncoder() throws IOException {
+    output.reset();
+    encoder.encode(batch, NOW, output);
+    return output.size();
+  }
+}
@@ -0,0 +1,148 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of producer threads that enqueue reports and choose endpoints at the
+ * same time.  Compares a plain {@link ReportingCache} guarded by a single external lock (which is
+ * what callers had to do before) against {@link ConcurrentReportingCache}, with 1, 8, and 64
+ * producer threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportingCacheContentionBenchmark {
+  private static final int ORIGIN_COUNT = 1024;
+  private static final int CLEAR_INTERVAL = 4096;
+  private static final Instant NOW = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant CREATED = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant FUTURE = Instant.parse("2018-02-21T13:00:00.000Z");
+
+  private Origin[] origins;
+  private Report[] reports;
+  private ReportingCache lockedCache;
+  private ConcurrentReportingCache concurrentCache;
+
+  @State(Scope.Thread)
+  public static class ProducerState {
+    private int next;
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws MalformedURLException {
+    origins = new Origin[ORIGIN_COUNT];
+    reports = new Report[ORIGIN_COUNT];
+    lockedCache = new ReportingCache();
+    concurrentCache = new ConcurrentReportingCache();
+    for (int i = 0; i < ORIGIN_COUNT; i++) {
+      String host = "origin" + Integer.toString(i) + ".example.com";
+      origins[i] = new Origin("https", host, 443);
+      reports[i] = new Report()
+          .setTimestamp(CREATED)
+          .setUri("https://" + host + "/path")
+          .setSamplingFraction(1.0)
+          .setServerIp("192.0.2.24")
+          .setProtocol("h2")
+          .setStatusCode(503)
+          .setElapsedTime(Duration.millis(100))
+          .setType(Type.HTTP_FAILED);
+      lockedCache.addClient(makeClient(origins[i]));
+      concurrentCache.addClient(makeClient(origins[i]));
+    }
+  }
+
+  private static Client makeClient(Origin origin) throws MalformedURLException {
+    Client client = new Client(origin);
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardDays(1), CREATED);
+    group.addEndpoint(new Endpoint(new URL("https://collector.example.com/upload")));
+    client.addGroup(group);
+    return client;
+  }
+
+  private Endpoint produce(ReportingCache cache, ProducerState state) {
+    int index = state.next++ % ORIGIN_COUNT;
+    cache.enqueueReport(reports[index]);
+    if (state.next % CLEAR_INTERVAL == 0) {
+      // Keep the queue from growing without bound over the course of an iteration.
+      cache.removeOldReports(FUTURE);
+    }
+    return cache.chooseEndpoint(NOW, origins[index], "nel");
+  }
+
+  private Endpoint produceLocked(ProducerState state) {
+    synchronized (lockedCache) {
+      return produce(lockedCache, state);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Endpoint locked01(ProducerState state) {
+    return produceLocked(state);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Endpoint locked08(ProducerState state) {
+    return produceLocked(state);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Endpoint locked64(ProducerState state) {
+    return produceLocked(state);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Endpoint concurrent01(ProducerState state) {
+    return produce(concurrentCache, state);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Endpoint concurrent08(ProducerState state) {
+    return produce(concurrentCache, state);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Endpoint concurrent64(ProducerState state) {
+    return produce(concurrentCache, state);
+  }
+}
@@ -0,0 +1,97 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to save and restore a snapshot of a {@link ReportingCache} with
+ * 100,000 origins, each with a client and a NEL policy.  Each client has a single endpoint group,
+ * whose endpoints point at one of a handful of shared collectors.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+  private static final int ORIGIN_COUNT = 100000;
+  private static final int COLLECTOR_COUNT = 8;
+  private static final Instant CREATED = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant NOW = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private ReportingCache cache;
+  private Path snapshot;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    cache = new ReportingCache();
+    URL[] collectors = new URL[COLLECTOR_COUNT];
+    for (int i = 0; i < COLLECTOR_COUNT; i++) {
+      collectors[i] = new URL("https://collector" + Integer.toString(i) + ".example.net/upload");
+    }
+    for (int i = 0; i < ORIGIN_COUNT; i++) {
+      Origin origin = new Origin("https", "site" + Integer.toString(i) + ".example.com", 443);
+      Client client = new Client(origin);
+      EndpointGroup group = new EndpointGroup("nel", false, Duration.standardDays(1), CREATED);
+      group.addEndpoint(new Endpoint(collectors[i % COLLECTOR_COUNT], 1, 1));
+      group.addEndpoint(new Endpoint(collectors[(i + 1) % COLLECTOR_COUNT], 2, 1));
+      client.addGroup(group);
+      cache.addClient(client);
+      cache.addPolicy(
+          new NelPolicy(origin, "nel", false, 0.01, 1.0, Duration.standardDays(1), CREATED));
+    }
+    snapshot = Files.createTempFile("nel-snapshot-benchmark", ".bin");
+    cache.saveSnapshot(snapshot);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(snapshot);
+  }
+
+  @Benchmark
+  public void save() throws IOException {
+    cache.saveSnapshot(snapshot);
+  }
+
+  @Benchmark
+  public ReportingCache load() throws IOException {
+    ReportingCache restored = new ReportingCache();
+    restored.loadSnapshot(snapshot, NOW);
+    return restored;
+  }
+}
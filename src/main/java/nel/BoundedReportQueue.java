@@ -0,0 +1,407 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.joda.time.Instant;
+
+/**
+ * A {@link ReportQueue} that limits how many reports it will hold, so that a burst of reports
+ * (which is exactly what happens during an outage) can't grow the heap without bound.  You can cap
+ * the total number of reports, the number of reports for any single origin, and the estimated
+ * number of bytes used by the queued reports.  Whenever a new report pushes the queue over one of
+ * its limits, we evict existing reports, as chosen by the queue's {@link EvictionPolicy}, until
+ * it's back under.  A report that's larger than the byte limit all by itself could never fit, so
+ * we count it as evicted right away, instead of evicting everything else to make room for it.
+ *
+ * <p>
+ * The queue also indexes its reports by timestamp in an {@link InMemoryReportQueue}, so that
+ * {@link #removeOlderThan} only has to look at the reports that have actually expired.
+ * </p>
+ *
+ * <p>
+ * All methods are synchronized, so a bounded queue can be used with a {@link
+ * ConcurrentReportingCache}.
+ * </p>
+ */
+public class BoundedReportQueue implements ReportQueue {
+  /**
+   * Decides which report to evict when a {@link BoundedReportQueue} is over one of its limits.
+   */
+  public enum EvictionPolicy {
+    /** Evict the oldest report in the queue. */
+    OLDEST_FIRST,
+
+    /**
+     * Evict the oldest report from whichever origin currently has the most queued reports, so that
+     * a single misbehaving origin can't crowd out everyone else.
+     */
+    FAIR_SHARE,
+
+    /**
+     * Evict the oldest <code>ok</code> report, and only evict error reports once there are no
+     * successful ones left.  Error reports are usually the ones that you actually care about.
+     */
+    PREFER_ERRORS,
+  }
+
+  /**
+   * Creates a new, empty queue that uses the given eviction policy.  The queue has no limits until
+   * you set them.
+   */
+  public BoundedReportQueue(EvictionPolicy policy) {
+    this.policy = policy;
+    this.maxReports = Integer.MAX_VALUE;
+    this.maxReportsPerOrigin = Integer.MAX_VALUE;
+    this.maxBytes = Long.MAX_VALUE;
+    this.origins = new HashMap<Origin, OriginReports>();
+    this.originsBySize = new TreeSet<OriginReports>(BY_SIZE);
+    this.nextOriginId = 0;
+    this.successes = new LinkedHashSet<QueuedReport>();
+    this.errors = new LinkedHashSet<QueuedReport>();
+    this.byTimestamp = new InMemoryReportQueue();
+    this.bytes = 0;
+    this.evictedReports = 0;
+    this.evictedErrorReports = 0;
+    this.metrics = ReportingMetrics.NONE;
+  }
+
+  public EvictionPolicy getEvictionPolicy() {
+    return policy;
+  }
+
+  public synchronized int getMaxReports() {
+    return maxReports;
+  }
+
+  /** Sets the maximum number of reports that the queue will hold. */
+  public synchronized BoundedReportQueue setMaxReports(int maxReports) {
+    if (maxReports <= 0) {
+      throw new IllegalArgumentException("maxReports must be positive");
+    }
+    this.maxReports = maxReports;
+    evictAsNeeded();
+    return this;
+  }
+
+  public synchronized int getMaxReportsPerOrigin() {
+    return maxReportsPerOrigin;
+  }
+
+  /** Sets the maximum number of reports that the queue will hold for any single origin. */
+  public synchronized BoundedReportQueue setMaxReportsPerOrigin(int maxReportsPerOrigin) {
+    if (maxReportsPerOrigin <= 0) {
+      throw new IllegalArgumentException("maxReportsPerOrigin must be positive");
+    }
+    this.maxReportsPerOrigin = maxReportsPerOrigin;
+    for (OriginReports originReports : new ArrayList<OriginReports>(origins.values())) {
+      while (originReports.size() > maxReportsPerOrigin) {
+        evict(chooseVictim(originReports));
+      }
+    }
+    return this;
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets the maximum number of bytes that the queued reports can use, as measured by {@link
+   * #estimateSize}.
+   */
+  public synchronized BoundedReportQueue setMaxBytes(long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    this.maxBytes = maxBytes;
+    evictAsNeeded();
+    return this;
+  }
+
+  /** Returns the estimated number of bytes used by the reports that are currently queued. */
+  public synchronized long getEstimatedBytes() {
+    return bytes;
+  }
+
+  /** Returns the total number of reports that have been evicted to stay within our limits. */
+  public synchronized long getEvictedReportCount() {
+    return evictedReports;
+  }
+
+  /**
+   * Returns the number of error (that is, non-<code>ok</code>) reports that have been evicted to
+   * stay within our limits.
+   */
+  public synchronized long getEvictedErrorReportCount() {
+    return evictedErrorReports;
+  }
+
+  public synchronized ReportingMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Sets where we should send an event for each report that we evict. */
+  public synchronized BoundedReportQueue setMetrics(ReportingMetrics metrics) {
+    if (metrics == null) {
+      throw new IllegalArgumentException("metrics cannot be null");
+    }
+    this.metrics = metrics;
+    return this;
+  }
+
+  @Override
+  public synchronized void add(QueuedReport report) {
+    if (successes.contains(report) || errors.contains(report)) {
+      return;
+    }
+    if (estimateSize(report) > maxBytes) {
+      countEviction(report);
+      return;
+    }
+    OriginReports originReports = origins.get(report.getOrigin());
+    if (originReports == null) {
+      originReports = new OriginReports(nextOriginId++);
+      origins.put(report.getOrigin(), originReports);
+    } else {
+      originsBySize.remove(originReports);
+    }
+    if (isError(report)) {
+      errors.add(report);
+      originReports.errors.add(report);
+    } else {
+      successes.add(report);
+      originReports.successes.add(report);
+    }
+    originsBySize.add(originReports);
+    byTimestamp.add(report);
+    bytes += estimateSize(report);
+
+    while (originReports.size() > maxReportsPerOrigin) {
+      evict(chooseVictim(originReports));
+    }
+    evictAsNeeded();
+  }
+
+  @Override
+  public synchronized int size() {
+    return successes.size() + errors.size();
+  }
+
+  @Override
+  public synchronized List<QueuedReport> getAll() {
+    ArrayList<QueuedReport> result = new ArrayList<QueuedReport>(size());
+    result.addAll(successes);
+    result.addAll(errors);
+    return result;
+  }
+
+  @Override
+  public synchronized void removeAll(Collection<QueuedReport> reports) {
+    for (QueuedReport report : reports) {
+      remove(report);
+    }
+  }
+
+  @Override
+  public synchronized void removeOlderThan(Instant cutoff) {
+    for (QueuedReport report : byTimestamp.takeOlderThan(cutoff)) {
+      forget(report);
+    }
+  }
+
+  /**
+   * Returns a rough estimate of the number of bytes of heap used by a queued report.  This counts
+   * the characters of the report's variable-length fields, plus a fixed overhead for everything
+   * else.
+   */
+  static long estimateSize(QueuedReport report) {
+    long size = REPORT_OVERHEAD;
+    size += STRING_OVERHEAD + 2L * report.getUriString().length();
+    if (report.getReferrerString() != null) {
+      size += STRING_OVERHEAD + 2L * report.getReferrerString().length();
+    }
+    if (report.getServerIpAddress() != null) {
+      size += ARRAY_OVERHEAD + report.getServerIpAddress().length;
+    }
+    if (report.getAggregate() != null) {
+      size += AGGREGATE_OVERHEAD + 4L * ReportAggregate.getHistogramBucketCount();
+    }
+    return size;
+  }
+
+  private static boolean isError(QueuedReport report) {
+    return !Type.OK.toString().equals(report.getType().toString());
+  }
+
+  private void evictAsNeeded() {
+    while (size() > maxReports || bytes > maxBytes) {
+      evict(chooseVictim());
+    }
+  }
+
+  /** Chooses which report to evict when the queue as a whole is over one of its limits. */
+  private QueuedReport chooseVictim() {
+    switch (policy) {
+      case FAIR_SHARE:
+        OriginReports largest = originsBySize.last();
+        return oldest(largest.successes, largest.errors);
+      case PREFER_ERRORS:
+        return successes.isEmpty() ? first(errors) : first(successes);
+      default:
+        return oldest(successes, errors);
+    }
+  }
+
+  /** Chooses which report to evict when a single origin is over its limit. */
+  private QueuedReport chooseVictim(OriginReports originReports) {
+    if (policy == EvictionPolicy.PREFER_ERRORS) {
+      return originReports.successes.isEmpty()
+          ? first(originReports.errors)
+          : first(originReports.successes);
+    }
+    return oldest(originReports.successes, originReports.errors);
+  }
+
+  /**
+   * Returns the older of the first reports in each set.  Each set is in insertion order, so its
+   * first report is (approximately) its oldest.
+   */
+  private static QueuedReport oldest(LinkedHashSet<QueuedReport> a, LinkedHashSet<QueuedReport> b) {
+    if (a.isEmpty()) {
+      return first(b);
+    }
+    if (b.isEmpty()) {
+      return first(a);
+    }
+    QueuedReport firstA = first(a);
+    QueuedReport firstB = first(b);
+    if (!firstA.hasTimestamp() || !firstB.hasTimestamp()) {
+      return firstA.hasTimestamp() ? firstB : firstA;
+    }
+    return firstB.getTimestampMillis() < firstA.getTimestampMillis() ? firstB : firstA;
+  }
+
+  private static QueuedReport first(LinkedHashSet<QueuedReport> reports) {
+    Iterator<QueuedReport> iter = reports.iterator();
+    return iter.next();
+  }
+
+  private void evict(QueuedReport report) {
+    countEviction(report);
+    remove(report);
+  }
+
+  private void countEviction(QueuedReport report) {
+    evictedReports++;
+    if (isError(report)) {
+      evictedErrorReports++;
+    }
+    metrics.reportEvicted();
+  }
+
+  private void remove(QueuedReport report) {
+    if (byTimestamp.remove(report)) {
+      forget(report);
+    }
+  }
+
+  /** Removes a report from everything except the timestamp index. */
+  private void forget(QueuedReport report) {
+    if (!successes.remove(report)) {
+      errors.remove(report);
+    }
+    OriginReports originReports = origins.get(report.getOrigin());
+    originsBySize.remove(originReports);
+    originReports.successes.remove(report);
+    originReports.errors.remove(report);
+    if (originReports.size() == 0) {
+      origins.remove(report.getOrigin());
+    } else {
+      originsBySize.add(originReports);
+    }
+    bytes -= estimateSize(report);
+  }
+
+  /** The queued reports for a single origin. */
+  private static class OriginReports {
+    OriginReports(long id) {
+      this.id = id;
+    }
+
+    int size() {
+      return successes.size() + errors.size();
+    }
+
+    /** Breaks ties between origins with the same number of reports. */
+    private final long id;
+    private LinkedHashSet<QueuedReport> successes = new LinkedHashSet<QueuedReport>();
+    private LinkedHashSet<QueuedReport> errors = new LinkedHashSet<QueuedReport>();
+  }
+
+  /**
+   * Orders origins by how many reports they have queued.  An origin's position depends on its
+   * size, so it has to be taken out of {@link #originsBySize} before its reports change, and put
+   * back afterwards.
+   */
+  private static final Comparator<OriginReports> BY_SIZE = new Comparator<OriginReports>() {
+    @Override
+    public int compare(OriginReports a, OriginReports b) {
+      int sizeA = a.size();
+      int sizeB = b.size();
+      if (sizeA != sizeB) {
+        return sizeA < sizeB ? -1 : 1;
+      }
+      return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+    }
+  };
+
+  /** Our estimate of the fixed size of a queued report, not counting any variable-length fields. */
+  private static final long REPORT_OVERHEAD = 96;
+
+  /** Our estimate of the size of a string, not counting its characters. */
+  private static final long STRING_OVERHEAD = 40;
+
+  /** Our estimate of the size of an array, not counting its elements. */
+  private static final long ARRAY_OVERHEAD = 16;
+
+  /** Our estimate of the size of a report's aggregate, not counting its histogram. */
+  private static final long AGGREGATE_OVERHEAD = 64;
+
+  private EvictionPolicy policy;
+  private int maxReports;
+  private int maxReportsPerOrigin;
+  private long maxBytes;
+  private Map<Origin, OriginReports> origins;
+  private TreeSet<OriginReports> originsBySize;
+  private long nextOriginId;
+  private LinkedHashSet<QueuedReport> successes;
+  private LinkedHashSet<QueuedReport> errors;
+  private InMemoryReportQueue byTimestamp;
+  private long bytes;
+  private long evictedReports;
+  private long evictedErrorReports;
+  private ReportingMetrics metrics;
+}
@@ -0,0 +1,304 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * Saves and restores the clients and NEL policies in a {@link ReportingCache}, so that a restarted
+ * process doesn't have to wait to re-learn them from <code>Report-To</code> and <code>NEL</code>
+ * headers.
+ *
+ * <p>
+ * The snapshot is a compact binary file.  Strings are written once, the first time that they
+ * occur, and are referred to by index after that, since most origins tend to share a small number
+ * of collector URLs, group names, and schemes.  Timestamps and durations are stored as
+ * milliseconds.
+ * </p>
+ *
+ * <p>
+ * A new snapshot is written to a temporary file, synced to the disk, and then atomically moved
+ * into place, so a crash while saving leaves the previous snapshot intact.  Loading a snapshot
+ * only adds its entries to the cache once the entire file has been read successfully.
+ * </p>
+ */
+class CacheSnapshot {
+  private CacheSnapshot() {}
+
+  static void save(ReportingCache cache, Path file) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    DataOutputStream output =
+        new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    try {
+      new Writer(output).write(cache);
+      output.flush();
+      // Make sure that the contents are on the disk before the rename is, so that a crash can't
+      // leave us with an empty or partial snapshot in place of the old one.
+      channel.force(true);
+    } finally {
+      output.close();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static boolean load(ReportingCache cache, Path file, Instant now) throws IOException {
+    DataInputStream input;
+    long fileSize;
+    try {
+      fileSize = Files.size(file);
+      input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    Reader reader = new Reader(input, now, fileSize);
+    try {
+      reader.read();
+    } catch (EOFException e) {
+      throw new IOException("Truncated snapshot", e);
+    } finally {
+      input.close();
+    }
+    for (Client client : reader.clients) {
+      cache.addClient(client);
+    }
+    for (NelPolicy policy : reader.policies) {
+      cache.addPolicy(policy);
+    }
+    return true;
+  }
+
+  private static class Writer {
+    Writer(DataOutputStream output) {
+      this.output = output;
+      this.strings = new HashMap<String, Integer>();
+    }
+
+    void write(ReportingCache cache) throws IOException {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+
+      // The cache might be changing underneath us, so take a copy first, so that the counts that
+      // we write match what follows them.
+      ArrayList<Client> clients = new ArrayList<Client>(cache.getClients());
+      output.writeInt(clients.size());
+      for (Client client : clients) {
+        writeOrigin(client.getOrigin());
+        Collection<EndpointGroup> groups = client.getGroups();
+        output.writeInt(groups.size());
+        for (EndpointGroup group : groups) {
+          writeString(group.getName());
+          output.writeBoolean(group.includeSubdomains());
+          output.writeLong(group.getTtl().getMillis());
+          output.writeLong(group.getCreation().getMillis());
+          output.writeInt(group.getEndpoints().size());
+          for (Endpoint endpoint : group.getEndpoints()) {
+            writeString(endpoint.getUrl().toString());
+            output.writeInt(endpoint.getPriority());
+            output.writeInt(endpoint.getWeight());
+            output.writeInt(endpoint.getFailures());
+            Instant retryAfter = endpoint.getRetryAfter();
+            output.writeLong(retryAfter == null ? NO_TIMESTAMP : retryAfter.getMillis());
+          }
+        }
+      }
+
+      ArrayList<NelPolicy> policies = new ArrayList<NelPolicy>(cache.getPolicies());
+      output.writeInt(policies.size());
+      for (NelPolicy policy : policies) {
+        writeOrigin(policy.getOrigin());
+        writeString(policy.getReportTo());
+        output.writeBoolean(policy.includeSubdomains());
+        output.writeDouble(policy.getSuccessFraction());
+        output.writeDouble(policy.getFailureFraction());
+        output.writeLong(policy.getTtl().getMillis());
+        output.writeLong(policy.getCreation().getMillis());
+      }
+    }
+
+    private void writeOrigin(Origin origin) throws IOException {
+      writeString(origin.getScheme());
+      writeString(origin.getHost());
+      output.writeInt(origin.getPort());
+    }
+
+    private void writeString(String value) throws IOException {
+      if (value == null) {
+        output.writeInt(NULL_STRING);
+        return;
+      }
+      Integer index = strings.get(value);
+      if (index != null) {
+        output.writeInt(index);
+        return;
+      }
+      strings.put(value, strings.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(NEW_STRING);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+
+    private DataOutputStream output;
+    private HashMap<String, Integer> strings;
+  }
+
+  private static class Reader {
+    Reader(DataInputStream input, Instant now, long fileSize) {
+      this.input = input;
+      this.now = now;
+      this.fileSize = fileSize;
+      this.strings = new ArrayList<String>();
+      this.urls = new HashMap<String, URL>();
+      this.clients = new ArrayList<Client>();
+      this.policies = new ArrayList<NelPolicy>();
+    }
+
+    /**
+     * Reads the entire snapshot into {@link #clients} and {@link #policies}, skipping anything that
+     * has expired.
+     */
+    void read() throws IOException {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException("Not a reporting cache snapshot");
+      }
+
+      int clientCount = readCount();
+      for (int i = 0; i < clientCount; i++) {
+        Client client = new Client(readOrigin());
+        int groupCount = readCount();
+        for (int j = 0; j < groupCount; j++) {
+          EndpointGroup group = new EndpointGroup(readString(), input.readBoolean(),
+              Duration.millis(input.readLong()), new Instant(input.readLong()));
+          int endpointCount = readCount();
+          for (int k = 0; k < endpointCount; k++) {
+            Endpoint endpoint =
+                new Endpoint(readUrl(), input.readInt(), input.readInt());
+            int failures = input.readInt();
+            long retryAfter = input.readLong();
+            group.addEndpoint(endpoint);
+            if (failures != 0 || retryAfter != NO_TIMESTAMP) {
+              endpoint.restoreState(failures,
+                  retryAfter == NO_TIMESTAMP ? null : new Instant(retryAfter));
+            }
+          }
+          if (!group.isExpired(now)) {
+            client.addGroup(group);
+          }
+        }
+        if (!client.getGroups().isEmpty()) {
+          clients.add(client);
+        }
+      }
+
+      int policyCount = readCount();
+      for (int i = 0; i < policyCount; i++) {
+        NelPolicy policy = new NelPolicy(readOrigin(), readString(), input.readBoolean(),
+            input.readDouble(), input.readDouble(), Duration.millis(input.readLong()),
+            new Instant(input.readLong()));
+        if (!policy.isExpired(now)) {
+          policies.add(policy);
+        }
+      }
+    }
+
+    private int readCount() throws IOException {
+      int count = input.readInt();
+      if (count < 0) {
+        throw new IOException("Invalid count in snapshot");
+      }
+      return count;
+    }
+
+    private Origin readOrigin() throws IOException {
+      return new Origin(readString(), readString(), input.readInt());
+    }
+
+    private URL readUrl() throws IOException {
+      String value = readString();
+      URL url = urls.get(value);
+      if (url == null) {
+        try {
+          url = new URL(value);
+        } catch (MalformedURLException e) {
+          throw new IOException("Invalid URL in snapshot", e);
+        }
+        urls.put(value, url);
+      }
+      return url;
+    }
+
+    private String readString() throws IOException {
+      int index = input.readInt();
+      if (index == NULL_STRING) {
+        return null;
+      }
+      if (index == NEW_STRING) {
+        int length = readCount();
+        // Don't let a corrupt length make us allocate more than the whole file could hold.
+        if (length > fileSize) {
+          throw new IOException("Invalid string length in snapshot");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(value);
+        return value;
+      }
+      if (index < 0 || index >= strings.size()) {
+        throw new IOException("Invalid string reference in snapshot");
+      }
+      return strings.get(index);
+    }
+
+    private DataInputStream input;
+    private Instant now;
+    private long fileSize;
+    private ArrayList<String> strings;
+    private HashMap<String, URL> urls;
+    private List<Client> clients;
+    private List<NelPolicy> policies;
+  }
+
+  private static final int MAGIC = 0x4e454c53;
+  private static final int VERSION = 2;
+  private static final int NEW_STRING = -1;
+  private static final int NULL_STRING = -2;
+  private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+}
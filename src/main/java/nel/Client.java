@@ -15,12 +15,10 @@
 
 package nel;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
 import org.joda.time.Instant;
 
 /**
@@ -43,16 +41,26 @@ public class Client {
    */
   public static Client parseFromReportToHeader(List<String> headers, Origin origin, Instant now)
       throws InvalidHeaderException {
-    GsonBuilder builder = new GsonBuilder();
-    builder.registerTypeAdapter(EndpointGroup.class, new EndpointGroupJsonAdapter(now));
-    Gson gson = builder.create();
+    return parseFromReportToHeader(headers, origin, now, ReportingMetrics.NONE);
+  }
+
+  /**
+   * Parses a client from the contents of a <code>Report-To</code> header, sending an event to
+   * <code>metrics</code> for each header value that we parse.
+   */
+  public static Client parseFromReportToHeader(List<String> headers, Origin origin, Instant now,
+      ReportingMetrics metrics) throws InvalidHeaderException {
     Client client = new Client(origin);
     for (String header : headers) {
+      EndpointGroup group;
       try {
-        client.addGroup(gson.fromJson(header, EndpointGroup.class));
-      } catch (JsonSyntaxException e) {
-        throw new InvalidHeaderException("Invalid \"Report-To\" header", e);
+        group = EndpointGroupJsonAdapter.parseHeader(header, now);
+      } catch (InvalidHeaderException e) {
+        metrics.reportToHeaderParsed(false);
+        throw e;
       }
+      metrics.reportToHeaderParsed(true);
+      client.addGroup(group);
     }
     return client;
   }
@@ -73,6 +81,11 @@ public class Client {
     return groups.get(name);
   }
 
+  /** Returns all of this client's endpoint groups. */
+  public Collection<EndpointGroup> getGroups() {
+    return groups.values();
+  }
+
   @Override
   public String toString() {
     return "Client(origin=" + origin + ", groups=" + groups + ")";
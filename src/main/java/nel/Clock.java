@@ -0,0 +1,36 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import org.joda.time.Instant;
+
+/**
+ * A source of the current time.  Classes that do work in the background, like {@link
+ * UploadScheduler}, ask a clock for the time instead of reading the system clock directly, so that
+ * tests can control how time passes.
+ */
+public interface Clock {
+  /** A clock that returns the current system time. */
+  Clock SYSTEM = new Clock() {
+    @Override
+    public Instant now() {
+      return Instant.now();
+    }
+  };
+
+  /** Returns the current time. */
+  Instant now();
+}
@@ -0,0 +1,33 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * A {@link ReportDeliverer} that can upload compressed payloads.  Pass one of these, along with a
+ * {@link PayloadCompressor}, to {@link ReportUploader} to compress large batches of reports.
+ */
+public interface CompressedReportDeliverer extends ReportDeliverer {
+  /**
+   * Uploads a batch of reports to a collector.  This is the same as {@link
+   * ReportDeliverer#deliverReports(URL, byte[])}, except that <code>payload</code> might be
+   * compressed.  If <code>contentEncoding</code> isn't <code>null</code>, it should be sent as the
+   * value of the request's <code>Content-Encoding</code> header.
+   */
+  void deliverReports(URL url, byte[] payload, String contentEncoding) throws IOException;
+}
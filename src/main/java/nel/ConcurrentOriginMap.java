@@ -0,0 +1,43 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe version of {@link OriginMap}, backed by a {@link ConcurrentHashMap}.  Lookups never
+ * block, even while other threads are adding or removing entries.
+ */
+public class ConcurrentOriginMap<V> extends ConcurrentHashMap<Origin, V> {
+  /** Creates a new, empty map. */
+  public ConcurrentOriginMap() {
+    super();
+  }
+
+  /**
+   * Returns all of the entries that cover a particular origin.  This includes any entry for the
+   * origin itself, as well as the entries for all of the origin's superdomains.  The elements of
+   * the list will be ordered, with more specific matches occurring first.
+   *
+   * <p>
+   * The result is weakly consistent: it reflects the state of the map at some point at or since
+   * the iteration began.
+   * </p>
+   */
+  public Iterable<V> getAll(Origin origin) {
+    return new SuperdomainIterable<V>(this, origin);
+  }
+}
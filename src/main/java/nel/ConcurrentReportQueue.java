@@ -0,0 +1,134 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * A thread-safe {@link ReportQueue}.  Like {@link InMemoryReportQueue}, reports are grouped into
+ * buckets by timestamp so that old reports can be expired a bucket at a time.  The buckets live in
+ * a {@link ConcurrentSkipListMap}, and each bucket is backed by a {@link ConcurrentHashMap}, whose
+ * internal lock striping lets any number of threads add and remove reports without contending on a
+ * single lock.
+ */
+public class ConcurrentReportQueue implements ReportQueue {
+  /** Creates a new, empty queue that uses one-minute buckets. */
+  public ConcurrentReportQueue() {
+    this(DEFAULT_BUCKET_WIDTH);
+  }
+
+  /** Creates a new, empty queue whose buckets each cover <code>bucketWidth</code>. */
+  public ConcurrentReportQueue(Duration bucketWidth) {
+    if (bucketWidth.getMillis() <= 0) {
+      throw new IllegalArgumentException("bucketWidth must be positive");
+    }
+    this.bucketWidth = bucketWidth.getMillis();
+    this.buckets = new ConcurrentSkipListMap<Long, Set<QueuedReport>>();
+  }
+
+  @Override
+  public void add(QueuedReport report) {
+    Long key = ReportBuckets.bucketOf(report, bucketWidth);
+    Set<QueuedReport> bucket = buckets.get(key);
+    if (bucket == null) {
+      Set<QueuedReport> newBucket =
+          Collections.newSetFromMap(new ConcurrentHashMap<QueuedReport, Boolean>());
+      bucket = buckets.putIfAbsent(key, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    bucket.add(report);
+  }
+
+  /**
+   * Returns the number of reports in the queue.  This has to visit each bucket, so it is linear in
+   * the number of buckets rather than constant time.
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Set<QueuedReport> bucket : buckets.values()) {
+      size += bucket.size();
+    }
+    return size;
+  }
+
+  /** Returns a snapshot of all of the reports in the queue, oldest bucket first. */
+  @Override
+  public List<QueuedReport> getAll() {
+    ArrayList<QueuedReport> result = new ArrayList<QueuedReport>();
+    for (Set<QueuedReport> bucket : buckets.values()) {
+      result.addAll(bucket);
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * Buckets that become empty are left in place, since another thread might be adding a report to
+   * them; {@link #removeOlderThan} cleans them up once they expire.
+   * </p>
+   */
+  @Override
+  public void removeAll(Collection<QueuedReport> reports) {
+    for (QueuedReport report : reports) {
+      Set<QueuedReport> bucket = buckets.get(ReportBuckets.bucketOf(report, bucketWidth));
+      if (bucket != null) {
+        bucket.remove(report);
+      }
+    }
+  }
+
+  @Override
+  public void removeOlderThan(Instant cutoff) {
+    long cutoffKey = ReportBuckets.bucketOf(cutoff.getMillis(), bucketWidth);
+    // Every report in an earlier bucket is older than the cutoff.  A thread that's adding an
+    // equally old report to one of these buckets right now might add it after we've detached the
+    // bucket, but that report would have been expired anyway.
+    ConcurrentNavigableMap<Long, Set<QueuedReport>> expired = buckets.headMap(cutoffKey);
+    expired.clear();
+
+    Set<QueuedReport> bucket = buckets.get(cutoffKey);
+    if (bucket == null) {
+      return;
+    }
+    Iterator<QueuedReport> iter = bucket.iterator();
+    while (iter.hasNext()) {
+      if (iter.next().isOlderThan(cutoff)) {
+        iter.remove();
+      }
+    }
+  }
+
+  private static final Duration DEFAULT_BUCKET_WIDTH = Duration.standardMinutes(1);
+
+  private long bucketWidth;
+  private ConcurrentSkipListMap<Long, Set<QueuedReport>> buckets;
+}
@@ -0,0 +1,65 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.List;
+
+import org.joda.time.Instant;
+
+/**
+ * A thread-safe {@link ReportingCache}.  Clients and NEL policies are stored in {@link
+ * ConcurrentOriginMap}s and queued reports in a {@link ConcurrentReportQueue}, so any number of
+ * threads can enqueue reports, choose endpoints, and make sampling decisions at the same time
+ * without an external lock.
+ *
+ * <p>
+ * Once a {@link Client} has been added to the cache, you must not modify it (or any of its endpoint
+ * groups) other than by recording the success or failure of uploads to its endpoints.  To change
+ * an origin's configuration, add a new client to replace the old one.
+ * </p>
+ */
+public class ConcurrentReportingCache extends ReportingCache {
+  /** Creates a new, empty cache. */
+  public ConcurrentReportingCache() {
+    this(new ConcurrentReportQueue());
+  }
+
+  /**
+   * Creates a new, empty cache that stores its queued reports in <code>queue</code>, which must be
+   * thread-safe.
+   */
+  public ConcurrentReportingCache(ReportQueue queue) {
+    super(new ConcurrentOriginMap<Client>(), new ConcurrentOriginMap<NelPolicy>(), queue);
+    this.batchLock = new Object();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * Only one thread at a time can collect batches, so that each queued report ends up in at most
+   * one batch.  This does not block threads that are enqueueing reports or choosing endpoints.
+   * </p>
+   */
+  @Override
+  public List<ReportBatch> getReportBatches(Instant now, int maxBatches) {
+    synchronized (batchLock) {
+      return super.getReportBatches(now, maxBatches);
+    }
+  }
+
+  private Object batchLock;
+}
@@ -0,0 +1,174 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ReportingMetrics} that counts every event, and keeps histograms of upload latencies and
+ * of how long reports were queued before being delivered.  The counters are striped across CPUs,
+ * so recording an event from many threads at once doesn't turn into a point of contention.  You
+ * can read the counts at any time, for instance to export them to your monitoring system; they are
+ * never reset.  This class is thread-safe.
+ */
+public class CountingReportingMetrics implements ReportingMetrics {
+  public CountingReportingMetrics() {
+    this.enqueuedReports = new StripedCounter();
+    this.evictedReports = new StripedCounter();
+    this.droppedReports = new StripedCounter();
+    this.chosenEndpoints = new StripedCounter();
+    this.missingEndpoints = new StripedCounter();
+    this.validReportToHeaders = new StripedCounter();
+    this.invalidReportToHeaders = new StripedCounter();
+    this.validNelHeaders = new StripedCounter();
+    this.invalidNelHeaders = new StripedCounter();
+    this.successfulUploads = new StripedCounter();
+    this.failedUploads = new StripedCounter();
+    this.deliveredReports = new StripedCounter();
+    this.uploadLatency = new LatencyHistogram(UPLOAD_LATENCY_BOUNDS);
+    this.reportAge = new LatencyHistogram(REPORT_AGE_BOUNDS);
+  }
+
+  @Override
+  public void reportEnqueued() {
+    enqueuedReports.increment();
+  }
+
+  @Override
+  public void reportEvicted() {
+    evictedReports.increment();
+  }
+
+  @Override
+  public void reportDropped() {
+    droppedReports.increment();
+  }
+
+  @Override
+  public void endpointChosen(boolean found) {
+    (found ? chosenEndpoints : missingEndpoints).increment();
+  }
+
+  @Override
+  public void reportToHeaderParsed(boolean valid) {
+    (valid ? validReportToHeaders : invalidReportToHeaders).increment();
+  }
+
+  @Override
+  public void nelHeaderParsed(boolean valid) {
+    (valid ? validNelHeaders : invalidNelHeaders).increment();
+  }
+
+  @Override
+  public void uploadFinished(int reports, long latencyNanos, boolean success) {
+    if (success) {
+      successfulUploads.increment();
+      deliveredReports.add(reports);
+    } else {
+      failedUploads.increment();
+    }
+    uploadLatency.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+  }
+
+  @Override
+  public void reportDelivered(long ageMillis) {
+    reportAge.record(ageMillis);
+  }
+
+  public long getEnqueuedReportCount() {
+    return enqueuedReports.sum();
+  }
+
+  public long getEvictedReportCount() {
+    return evictedReports.sum();
+  }
+
+  public long getDroppedReportCount() {
+    return droppedReports.sum();
+  }
+
+  /** Returns the number of times that we were able to choose an endpoint. */
+  public long getChosenEndpointCount() {
+    return chosenEndpoints.sum();
+  }
+
+  /** Returns the number of times that we couldn't find any endpoint that we could use. */
+  public long getMissingEndpointCount() {
+    return missingEndpoints.sum();
+  }
+
+  public long getValidReportToHeaderCount() {
+    return validReportToHeaders.sum();
+  }
+
+  public long getInvalidReportToHeaderCount() {
+    return invalidReportToHeaders.sum();
+  }
+
+  public long getValidNelHeaderCount() {
+    return validNelHeaders.sum();
+  }
+
+  public long getInvalidNelHeaderCount() {
+    return invalidNelHeaders.sum();
+  }
+
+  public long getSuccessfulUploadCount() {
+    return successfulUploads.sum();
+  }
+
+  public long getFailedUploadCount() {
+    return failedUploads.sum();
+  }
+
+  /** Returns the number of reports that were included in successful uploads. */
+  public long getDeliveredReportCount() {
+    return deliveredReports.sum();
+  }
+
+  /** Returns a histogram of how long each upload took, whether or not it succeeded. */
+  public LatencyHistogram getUploadLatency() {
+    return uploadLatency;
+  }
+
+  /** Returns a histogram of how old each report was when it was successfully delivered. */
+  public LatencyHistogram getDeliveredReportAge() {
+    return reportAge;
+  }
+
+  private static final long[] UPLOAD_LATENCY_BOUNDS = {
+    1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000,
+  };
+
+  private static final long[] REPORT_AGE_BOUNDS = {
+    1000, 5000, 10000, 30000, 60000, 300000, 600000, 1800000, 3600000, 21600000, 86400000,
+  };
+
+  private StripedCounter enqueuedReports;
+  private StripedCounter evictedReports;
+  private StripedCounter droppedReports;
+  private StripedCounter chosenEndpoints;
+  private StripedCounter missingEndpoints;
+  private StripedCounter validReportToHeaders;
+  private StripedCounter invalidReportToHeaders;
+  private StripedCounter validNelHeaders;
+  private StripedCounter invalidNelHeaders;
+  private StripedCounter successfulUploads;
+  private StripedCounter failedUploads;
+  private StripedCounter deliveredReports;
+  private LatencyHistogram uploadLatency;
+  private LatencyHistogram reportAge;
+}
@@ -30,6 +30,9 @@ public class Endpoint {
     this.weight = weight;
     this.failures = 0;
     this.retryAfter = null;
+    this.averageLatencyMillis = Double.NaN;
+    this.successRate = 1.0;
+    this.probeUntil = Long.MIN_VALUE;
   }
 
   /** Creates a new endpoint that will upload reports to the given <code>url</code>. */
@@ -37,6 +40,10 @@ public class Endpoint {
     this(url, 1, 1);
   }
 
+  public URL getUrl() {
+    return url;
+  }
+
   public int getPriority() {
     return priority;
   }
@@ -53,13 +60,105 @@ public class Endpoint {
     return retryAfter != null && retryAfter.isAfter(now);
   }
 
+  /** Returns the number of consecutive uploads to this endpoint that have failed. */
+  public int getFailures() {
+    return failures;
+  }
+
+  /**
+   * Returns the moving average of how long uploads to this endpoint take, in milliseconds, or
+   * {@link Double#NaN} if we haven't recorded any uploads yet.  Only tracked when the cache has an
+   * {@link EndpointHealthPolicy}.
+   */
+  public double getAverageLatencyMillis() {
+    return averageLatencyMillis;
+  }
+
+  /**
+   * Returns the moving average of the fraction of uploads to this endpoint that succeed.  Only
+   * tracked when the cache has an {@link EndpointHealthPolicy}.
+   */
+  public double getSuccessRate() {
+    return successRate;
+  }
+
+  /**
+   * Returns whether this endpoint's circuit is open: whether at least <code>failureThreshold</code>
+   * consecutive uploads to it have failed.  Once the endpoint stops being pending, an open circuit
+   * is <em>half-open</em>, and only lets through a single probe at a time.
+   */
+  boolean isCircuitOpen(int failureThreshold) {
+    return failures >= failureThreshold;
+  }
+
+  /**
+   * Tries to claim the probe upload for this endpoint's half-open circuit.  Returns
+   * <code>false</code> if some other probe started less than <code>timeoutMillis</code> ago and
+   * hasn't finished yet.
+   */
+  synchronized boolean tryStartProbe(long nowMillis, long timeoutMillis) {
+    if (nowMillis < probeUntil) {
+      return false;
+    }
+    probeUntil = nowMillis + timeoutMillis;
+    return true;
+  }
+
+  /**
+   * Gives back a probe claimed by {@link #tryStartProbe} when the probe upload won't happen after
+   * all, so that the next choice can probe this endpoint straight away instead of waiting for the
+   * probe timeout.
+   */
+  synchronized void cancelProbe() {
+    probeUntil = Long.MIN_VALUE;
+  }
+
+  /**
+   * Folds the result of an upload into this endpoint's moving averages, giving the new upload a
+   * weight of <code>smoothing</code>.
+   */
+  synchronized void recordUploadResult(long latencyNanos, boolean success, double smoothing) {
+    double latencyMillis = latencyNanos / 1e6;
+    if (Double.isNaN(averageLatencyMillis)) {
+      averageLatencyMillis = latencyMillis;
+    } else {
+      averageLatencyMillis += smoothing * (latencyMillis - averageLatencyMillis);
+    }
+    successRate += smoothing * ((success ? 1.0 : 0.0) - successRate);
+    EndpointGroup group = this.group;
+    if (group != null) {
+      group.invalidateHealth();
+    }
+  }
+
+  /** Returns when this endpoint stops being pending, or <code>null</code> if it isn't pending. */
+  Instant getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Restores this endpoint's failure state, which we previously saved via {@link #getFailures} and
+   * {@link #getRetryAfter}.
+   */
+  synchronized void restoreState(int failures, Instant retryAfter) {
+    this.failures = failures;
+    this.retryAfter = retryAfter;
+    this.probeUntil = Long.MIN_VALUE;
+    stateChanged();
+  }
+
   /**
    * Records that we were able to successfully upload reports to this endpoint.  This clears any
    * existing "pending" flag for the endpoint.
    */
-  public void recordSuccess() {
+  public synchronized void recordSuccess() {
+    boolean wasPending = retryAfter != null;
     this.failures = 0;
     this.retryAfter = null;
+    this.probeUntil = Long.MIN_VALUE;
+    if (wasPending) {
+      stateChanged();
+    }
   }
 
   /**
@@ -67,9 +166,26 @@ public class Endpoint {
    * pending flag, ensuring that we don't try to upload to this endpoint again until some point in
    * the future.
    */
-  public void recordFailure(Instant retryAfter) {
+  public synchronized void recordFailure(Instant retryAfter) {
     this.failures++;
     this.retryAfter = retryAfter;
+    this.probeUntil = Long.MIN_VALUE;
+    stateChanged();
+  }
+
+  /**
+   * Records that this endpoint belongs to <code>group</code>, which needs to hear about any changes
+   * to whether the endpoint is pending.
+   */
+  void setGroup(EndpointGroup group) {
+    this.group = group;
+  }
+
+  private void stateChanged() {
+    EndpointGroup group = this.group;
+    if (group != null) {
+      group.invalidateSelection();
+    }
   }
 
   @Override
@@ -92,6 +208,10 @@ public class Endpoint {
   private URL url;
   private int priority;
   private int weight;
-  private int failures;
-  private Instant retryAfter;
+  private volatile int failures;
+  private volatile Instant retryAfter;
+  private volatile double averageLatencyMillis;
+  private volatile double successRate;
+  private long probeUntil;
+  private volatile EndpointGroup group;
 }
@@ -18,7 +18,8 @@ package nel;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.joda.time.Duration;
 import org.joda.time.Instant;
@@ -40,6 +41,9 @@ public class EndpointGroup {
     this.ttl = ttl;
     this.creation = now;
     this.expiry = now.plus(ttl);
+    this.version = new AtomicInteger();
+    this.healthVersion = new AtomicInteger();
+    this.selection = null;
   }
 
   public String getName() {
@@ -50,6 +54,25 @@ public class EndpointGroup {
     return subdomains;
   }
 
+  public Duration getTtl() {
+    return ttl;
+  }
+
+  /** Returns when this group was created, which is when we received its header. */
+  public Instant getCreation() {
+    return creation;
+  }
+
+  /** Returns the last instant at which this group is not yet expired. */
+  Instant getExpiry() {
+    return expiry;
+  }
+
+  /** Returns all of the endpoints in this group. */
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
   /**
    * Returns the minimum <code>priority</code> value of all of the non-pending endpoints in this
    * group.  Returns {@link Integer.MAX_VALUE} if all endpoints in the group are pending.
@@ -89,11 +112,15 @@ public class EndpointGroup {
   /** Adds a new endpoint to this group. */
   public void addEndpoint(Endpoint endpoint) {
     endpoints.add(endpoint);
+    endpoint.setGroup(this);
+    invalidateSelection();
   }
 
   /** Adds several new endpoints to this group. */
   public void addEndpoints(List<Endpoint> endpoints) {
-    this.endpoints.addAll(endpoints);
+    for (Endpoint endpoint : endpoints) {
+      addEndpoint(endpoint);
+    }
   }
 
   /** Returns whether this endpoint is expired as of <code>now</code>. */
@@ -105,37 +132,219 @@ public class EndpointGroup {
    * Chooses an arbitrary endpoint from this group to upload reports to, using the <a
    * href="https://wicg.github.io/reporting/#choose-endpoint">"Choose an endpoint"</a> algorithm
    * from the Reporting spec.
+   *
+   * <p>
+   * We precompute an alias table for the non-pending endpoints with the lowest priority, which lets
+   * us make each weighted choice in constant time.  The table is only rebuilt when an endpoint is
+   * added, when an endpoint starts or stops being pending because of an upload, or when the retry
+   * delay of one of the pending endpoints runs out.
+   * </p>
    */
   public Endpoint chooseEndpoint(Instant now) {
+    return chooseEndpoint(now, null);
+  }
+
+  /**
+   * Chooses an endpoint from this group to upload reports to.  If <code>health</code> isn't
+   * <code>null</code>, we take into account how fast and reliable each endpoint has been, and
+   * treat endpoints with open circuits as described in {@link EndpointHealthPolicy}.
+   */
+  public Endpoint chooseEndpoint(Instant now, EndpointHealthPolicy health) {
     if (isExpired(now)) {
       return null;
     }
-
-    int minPriority = getMinimumPriority(now);
-    if (minPriority == Integer.MAX_VALUE) {
-      return null;
+    SelectionTable table = selection;
+    if (table == null
+        || !table.isValid(health, version.get(), healthVersion.get(), now.getMillis())) {
+      table = buildSelectionTable(now, health);
+      selection = table;
     }
+    return table.choose(now.getMillis());
+  }
 
-    int totalWeight = getTotalWeightForPriority(now, minPriority);
-    if (totalWeight == 0) {
-      return null;
+  /**
+   * Discards the precomputed selection table.  Called whenever an endpoint is added, or whenever an
+   * endpoint's pending state changes.
+   */
+  void invalidateSelection() {
+    version.incrementAndGet();
+  }
+
+  /**
+   * Discards the precomputed selection table if it was built by health-aware selection.  Called
+   * whenever an endpoint's moving averages change.
+   */
+  void invalidateHealth() {
+    healthVersion.incrementAndGet();
+  }
+
+  /**
+   * Builds a new alias table for the non-pending endpoints with the lowest priority, using Vose's
+   * version of the alias method.  With a health policy, endpoints with half-open circuits are left
+   * out of the table, and are instead offered a probe whenever we make a choice.
+   */
+  private SelectionTable buildSelectionTable(Instant now, EndpointHealthPolicy health) {
+    // Read the versions first, so that if an endpoint changes while we're building the table, the
+    // table we build will already be out of date.
+    int builtVersion = version.get();
+    int builtHealthVersion = healthVersion.get();
+    long builtAt = now.getMillis();
+    long validUntil = Long.MAX_VALUE;
+    int minPriority = Integer.MAX_VALUE;
+    for (Endpoint endpoint : endpoints) {
+      Instant retryAfter = endpoint.getRetryAfter();
+      if (retryAfter != null && retryAfter.isAfter(now)) {
+        // This endpoint is pending, and the table is only good until it stops being pending.
+        validUntil = Math.min(validUntil, retryAfter.getMillis());
+        continue;
+      }
+      if (isHalfOpen(endpoint, health)) {
+        continue;
+      }
+      minPriority = Math.min(minPriority, endpoint.getPriority());
     }
 
-    int selectedWeight = RANDOM.nextInt(totalWeight);
+    ArrayList<Endpoint> candidates = new ArrayList<Endpoint>();
+    ArrayList<Endpoint> probes = new ArrayList<Endpoint>();
+    double fastestLatency = Double.NaN;
     for (Endpoint endpoint : endpoints) {
-      if (endpoint.isPending(now)) {
+      if (endpoint.getPriority() > minPriority || endpoint.getWeight() <= 0
+          || endpoint.isPending(now)) {
+        continue;
+      }
+      if (isHalfOpen(endpoint, health)) {
+        // Probe half-open endpoints that we would prefer over the ones we're currently using.
+        probes.add(endpoint);
         continue;
       }
       if (endpoint.getPriority() != minPriority) {
         continue;
       }
-      int thisWeight = endpoint.getWeight();
-      if (selectedWeight < thisWeight) {
-        return endpoint;
+      candidates.add(endpoint);
+      double latency = endpoint.getAverageLatencyMillis();
+      if (!Double.isNaN(latency) && !(latency >= fastestLatency)) {
+        fastestLatency = latency;
+      }
+    }
+
+    int count = candidates.size();
+    Endpoint[] chosen = candidates.toArray(new Endpoint[count]);
+    double[] weights = new double[count];
+    double totalWeight = 0;
+    for (int i = 0; i < count; i++) {
+      weights[i] = chosen[i].getWeight();
+      if (health != null) {
+        weights[i] *= health.getWeightFactor(chosen[i], fastestLatency);
+      }
+      totalWeight += weights[i];
+    }
+    double[] probability = new double[count];
+    int[] alias = new int[count];
+    // Scale each weight so that the average is 1, and then pair up each endpoint whose scaled
+    // weight is below average with one whose scaled weight is above average.
+    double[] scaled = new double[count];
+    int[] small = new int[count];
+    int[] large = new int[count];
+    int smallCount = 0;
+    int largeCount = 0;
+    for (int i = 0; i < count; i++) {
+      scaled[i] = weights[i] * count / totalWeight;
+      if (scaled[i] < 1.0) {
+        small[smallCount++] = i;
+      } else {
+        large[largeCount++] = i;
+      }
+    }
+    while (smallCount > 0 && largeCount > 0) {
+      int less = small[--smallCount];
+      int more = large[--largeCount];
+      probability[less] = scaled[less];
+      alias[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+      if (scaled[more] < 1.0) {
+        small[smallCount++] = more;
+      } else {
+        large[largeCount++] = more;
       }
-      selectedWeight -= thisWeight;
     }
-    return null;
+    // Anything left over should have a scaled weight of exactly 1, give or take rounding error.
+    while (largeCount > 0) {
+      probability[large[--largeCount]] = 1.0;
+    }
+    while (smallCount > 0) {
+      probability[small[--smallCount]] = 1.0;
+    }
+    long probeTimeout = health == null ? 0 : health.getProbeTimeout().getMillis();
+    return new SelectionTable(chosen, probability, alias, probes.toArray(new Endpoint[0]),
+        probeTimeout, health, builtVersion, builtHealthVersion, builtAt, validUntil);
+  }
+
+  /** Returns whether a non-pending endpoint's circuit is half-open. */
+  private static boolean isHalfOpen(Endpoint endpoint, EndpointHealthPolicy health) {
+    return health != null && endpoint.isCircuitOpen(health.getFailureThreshold());
+  }
+
+  /**
+   * A precomputed alias table for choosing among a fixed set of endpoints in proportion to their
+   * weights, plus any half-open endpoints that should be probed first.  Tables are immutable, so
+   * they can be shared between threads.
+   */
+  private static class SelectionTable {
+    SelectionTable(Endpoint[] endpoints, double[] probability, int[] alias, Endpoint[] probes,
+        long probeTimeout, EndpointHealthPolicy health, int version, int healthVersion,
+        long builtAt, long validUntil) {
+      this.endpoints = endpoints;
+      this.probability = probability;
+      this.alias = alias;
+      this.probes = probes;
+      this.probeTimeout = probeTimeout;
+      this.health = health;
+      this.version = version;
+      this.healthVersion = healthVersion;
+      this.builtAt = builtAt;
+      this.validUntil = validUntil;
+    }
+
+    /**
+     * Returns whether this table still describes the group's endpoints, given the health policy
+     * that we're choosing with, the group's current versions, and the current time.  Changes to
+     * the endpoints' moving averages don't matter if we're not using a health policy.
+     */
+    boolean isValid(EndpointHealthPolicy currentHealth, int currentVersion,
+        int currentHealthVersion, long now) {
+      return health == currentHealth
+          && version == currentVersion
+          && (health == null || healthVersion == currentHealthVersion)
+          && now >= builtAt && now < validUntil;
+    }
+
+    Endpoint choose(long now) {
+      for (Endpoint probe : probes) {
+        if (probe.tryStartProbe(now, probeTimeout)) {
+          return probe;
+        }
+      }
+      if (endpoints.length == 0) {
+        return null;
+      }
+      if (endpoints.length == 1) {
+        return endpoints[0];
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int index = random.nextInt(endpoints.length);
+      return random.nextDouble() < probability[index] ? endpoints[index] : endpoints[alias[index]];
+    }
+
+    private final Endpoint[] endpoints;
+    private final double[] probability;
+    private final int[] alias;
+    private final Endpoint[] probes;
+    private final long probeTimeout;
+    private final EndpointHealthPolicy health;
+    private final int version;
+    private final int healthVersion;
+    private final long builtAt;
+    private final long validUntil;
   }
 
   @Override
@@ -157,12 +366,13 @@ public class EndpointGroup {
       && this.creation.equals(other.creation);
   }
 
-  private static Random RANDOM = new Random();
-
   private String name;
   private ArrayList<Endpoint> endpoints;
   private boolean subdomains;
   private Duration ttl;
   private Instant creation;
   private Instant expiry;
+  private AtomicInteger version;
+  private AtomicInteger healthVersion;
+  private volatile SelectionTable selection;
 }
@@ -41,8 +41,28 @@ public class EndpointGroupJsonAdapter extends TypeAdapter<EndpointGroup> {
     this.now = now;
   }
 
+  /**
+   * Parses a single <code>Report-To</code> header value, using <code>now</code> as the creation
+   * time of the new endpoint group.  This doesn't need an adapter instance, so it's safe to call
+   * from any thread.
+   */
+  static EndpointGroup parseHeader(String header, Instant now) throws InvalidHeaderException {
+    try {
+      JsonReader reader = JsonHeaders.newReader(header);
+      EndpointGroup group = readGroup(reader, now);
+      JsonHeaders.checkFullyConsumed(reader);
+      return group;
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new InvalidHeaderException("Invalid \"Report-To\" header", e);
+    }
+  }
+
   @Override
   public EndpointGroup read(JsonReader reader) throws IOException {
+    return readGroup(reader, now);
+  }
+
+  private static EndpointGroup readGroup(JsonReader reader, Instant now) throws IOException {
     String groupName = "default";
     boolean subdomains = false;
     Duration ttl = null;
@@ -96,7 +116,7 @@ public class EndpointGroupJsonAdapter extends TypeAdapter<EndpointGroup> {
     return group;
   }
 
-  private ArrayList<Endpoint> readEndpoints(JsonReader reader) throws IOException {
+  private static ArrayList<Endpoint> readEndpoints(JsonReader reader) throws IOException {
     ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
     reader.beginArray();
     while (reader.hasNext()) {
@@ -106,7 +126,7 @@ public class EndpointGroupJsonAdapter extends TypeAdapter<EndpointGroup> {
     return endpoints;
   }
 
-  private Endpoint readEndpoint(JsonReader reader) throws IOException {
+  private static Endpoint readEndpoint(JsonReader reader) throws IOException {
     URL url = null;
     int priority = 1;
     int weight = 1;
@@ -0,0 +1,116 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import org.joda.time.Duration;
+
+/**
+ * Turns on health-aware endpoint selection, and decides how it behaves.  Without a health policy,
+ * a {@link ReportingCache} chooses among the non-pending endpoints with the lowest priority purely
+ * by their static <code>weight</code>, so a slow but working collector keeps receiving its full
+ * share of uploads.  With one, we also:
+ *
+ * <ul>
+ * <li>keep an exponentially weighted moving average (EWMA) of each endpoint's upload latency and
+ * success rate, and scale each endpoint's weight by how fast and healthy it is compared to the
+ * other endpoints with the same priority;</li>
+ * <li>open an endpoint's <em>circuit</em> once <code>failureThreshold</code> consecutive uploads to
+ * it have failed.  When the endpoint's retry delay runs out, its circuit becomes
+ * <em>half-open</em>: instead of putting it straight back into rotation, we send it a single probe
+ * upload, and only close the circuit once a probe succeeds.</li>
+ * </ul>
+ */
+public class EndpointHealthPolicy {
+  /**
+   * The default policy: each upload contributes 20% to the moving averages, circuits open after 3
+   * consecutive failures, probes time out after a minute, and no endpoint's weight is scaled below
+   * 5% of its static weight.
+   */
+  public static final EndpointHealthPolicy DEFAULT =
+      new EndpointHealthPolicy(0.2, 3, Duration.standardMinutes(1), 0.05);
+
+  /**
+   * Creates a new health policy.
+   *
+   * @param smoothing How much each upload contributes to an endpoint's moving averages, between 0
+   *     (exclusive) and 1 (inclusive).  Larger values react faster to changes.
+   * @param failureThreshold The number of consecutive failed uploads that opens an endpoint's
+   *     circuit.
+   * @param probeTimeout How long we wait for the result of a probe upload before letting another
+   *     probe through, in case the first one was abandoned.
+   * @param minWeightFraction The smallest fraction of its static weight that an endpoint can be
+   *     scaled down to, so that slow endpoints still get enough uploads to notice when they
+   *     recover.  Must be between 0 (exclusive) and 1 (inclusive).
+   */
+  public EndpointHealthPolicy(double smoothing, int failureThreshold, Duration probeTimeout,
+      double minWeightFraction) {
+    if (!(smoothing > 0.0 && smoothing <= 1.0)) {
+      throw new IllegalArgumentException("smoothing must be greater than 0 and at most 1");
+    }
+    if (failureThreshold <= 0) {
+      throw new IllegalArgumentException("failureThreshold must be positive");
+    }
+    if (!(minWeightFraction > 0.0 && minWeightFraction <= 1.0)) {
+      throw new IllegalArgumentException("minWeightFraction must be greater than 0 and at most 1");
+    }
+    this.smoothing = smoothing;
+    this.failureThreshold = failureThreshold;
+    this.probeTimeout = probeTimeout;
+    this.minWeightFraction = minWeightFraction;
+  }
+
+  public double getSmoothing() {
+    return smoothing;
+  }
+
+  public int getFailureThreshold() {
+    return failureThreshold;
+  }
+
+  public Duration getProbeTimeout() {
+    return probeTimeout;
+  }
+
+  public double getMinWeightFraction() {
+    return minWeightFraction;
+  }
+
+  /**
+   * Returns how much to scale an endpoint's static weight by, given its moving averages and the
+   * lowest average latency of any endpoint that it's competing with.  Endpoints that we haven't
+   * uploaded to yet are treated as being as fast as the fastest one.
+   */
+  double getWeightFactor(Endpoint endpoint, double fastestLatencyMillis) {
+    double factor = endpoint.getSuccessRate();
+    double latency = endpoint.getAverageLatencyMillis();
+    if (!Double.isNaN(latency) && !Double.isNaN(fastestLatencyMillis)) {
+      factor *= Math.max(fastestLatencyMillis, MIN_LATENCY_MILLIS)
+          / Math.max(latency, MIN_LATENCY_MILLIS);
+    }
+    return Math.max(factor, minWeightFraction);
+  }
+
+  /**
+   * Latencies below this are considered equal, so that tiny differences between very fast
+   * endpoints don't skew their weights.
+   */
+  private static final double MIN_LATENCY_MILLIS = 1.0;
+
+  private double smoothing;
+  private int failureThreshold;
+  private Duration probeTimeout;
+  private double minWeightFraction;
+}
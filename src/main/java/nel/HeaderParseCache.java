@@ -0,0 +1,253 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.Instant;
+
+/**
+ * Remembers the results of parsing <code>Report-To</code> and <code>NEL</code> headers, keyed by
+ * the raw header value.  Most origins send byte-for-byte identical headers with every response, so
+ * for those we can skip parsing the JSON and validating the endpoint URLs, and only need to create
+ * a new endpoint group or policy with an up-to-date creation time.
+ *
+ * <p>
+ * The parsed result doesn't depend on which origin sent a header, so we don't include the origin
+ * in the cache key; identical headers from different origins share a single entry.  Invalid
+ * headers aren't cached, and so are parsed (and rejected) every time.
+ * </p>
+ *
+ * <p>
+ * The cache holds on to at most a fixed number of header values of each kind, evicting the least
+ * recently used ones.  To keep threads from contending on a single lock, the entries are split
+ * across several independently locked segments, each with its own LRU order.  This class is
+ * thread-safe.
+ * </p>
+ */
+public class HeaderParseCache {
+  /**
+   * Creates a new cache that holds on to at most {@link #DEFAULT_MAX_SIZE} headers of each kind.
+   */
+  public HeaderParseCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /** Creates a new cache that holds on to at most <code>maxSize</code> headers of each kind. */
+  public HeaderParseCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    // Small caches get a single segment, so that they evict in exact LRU order.
+    int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+    int segmentSize = maxSize / segmentCount;
+    this.groups = newSegments(segmentCount, segmentSize);
+    this.policies = newSegments(segmentCount, segmentSize);
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.metrics = ReportingMetrics.NONE;
+  }
+
+  public ReportingMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets where we send an event for each header value that we're asked to parse, whether or not it
+   * was already cached.
+   */
+  public HeaderParseCache setMetrics(ReportingMetrics metrics) {
+    if (metrics == null) {
+      throw new IllegalArgumentException("metrics cannot be null");
+    }
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**
+   * Parses a client from the contents of a <code>Report-To</code> header, reusing earlier results
+   * for any header values that we've seen before.  This is equivalent to {@link
+   * Client#parseFromReportToHeader}.
+   */
+  public Client parseReportToHeader(List<String> headers, Origin origin, Instant now)
+      throws InvalidHeaderException {
+    Client client = new Client(origin);
+    for (String header : headers) {
+      client.addGroup(parseEndpointGroup(header, now));
+    }
+    return client;
+  }
+
+  /**
+   * Parses a NEL policy from the contents of a <code>NEL</code> header, reusing the earlier result
+   * if we've seen the same header value before.  This is equivalent to {@link
+   * NelPolicy#parseFromNelHeader}.
+   */
+  public NelPolicy parseNelHeader(String header, Origin origin, Instant now)
+      throws InvalidHeaderException {
+    Segment<NelPolicy> segment = segmentFor(policies, header);
+    NelPolicy template = segment.getTemplate(header);
+    if (template != null) {
+      hits.incrementAndGet();
+      metrics.nelHeaderParsed(true);
+      return new NelPolicy(origin, template.getReportTo(), template.includeSubdomains(),
+          template.getSuccessFraction(), template.getFailureFraction(), template.getTtl(), now);
+    }
+    misses.incrementAndGet();
+    NelPolicy policy;
+    try {
+      policy = HeaderParser.parseNelHeader(header, origin, now);
+    } catch (InvalidHeaderException e) {
+      metrics.nelHeaderParsed(false);
+      throw e;
+    }
+    metrics.nelHeaderParsed(true);
+    segment.putTemplate(header, policy);
+    return policy;
+  }
+
+  private EndpointGroup parseEndpointGroup(String header, Instant now)
+      throws InvalidHeaderException {
+    Segment<EndpointGroup> segment = segmentFor(groups, header);
+    EndpointGroup template = segment.getTemplate(header);
+    if (template != null) {
+      hits.incrementAndGet();
+      metrics.reportToHeaderParsed(true);
+      return copyGroup(template, now);
+    }
+    misses.incrementAndGet();
+    EndpointGroup group;
+    try {
+      group = HeaderParser.parseEndpointGroup(header, now);
+    } catch (InvalidHeaderException e) {
+      metrics.reportToHeaderParsed(false);
+      throw e;
+    }
+    metrics.reportToHeaderParsed(true);
+    // We hand the parsed group to the caller, who might record upload failures against its
+    // endpoints.  That's okay, since we only ever read their URLs, priorities, and weights.
+    segment.putTemplate(header, group);
+    return group;
+  }
+
+  /**
+   * Creates a new endpoint group with the same configuration as <code>template</code>, but created
+   * at <code>now</code>, and with new endpoints that don't have any upload history.
+   */
+  private static EndpointGroup copyGroup(EndpointGroup template, Instant now) {
+    EndpointGroup group =
+        new EndpointGroup(template.getName(), template.includeSubdomains(), template.getTtl(), now);
+    List<Endpoint> templateEndpoints = template.getEndpoints();
+    ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>(templateEndpoints.size());
+    for (Endpoint endpoint : templateEndpoints) {
+      endpoints.add(new Endpoint(endpoint.getUrl(), endpoint.getPriority(), endpoint.getWeight()));
+    }
+    group.addEndpoints(endpoints);
+    return group;
+  }
+
+  /** Returns the number of header values that we didn't have to parse. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of header values that we had to parse. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the number of header values, of either kind, that the cache currently holds on to. */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < groups.length; i++) {
+      size += groups[i].size();
+      size += policies[i].size();
+    }
+    return size;
+  }
+
+  /** Forgets about all cached headers.  Doesn't reset the hit and miss counts. */
+  public void clear() {
+    for (int i = 0; i < groups.length; i++) {
+      groups[i].clear();
+      policies[i].clear();
+    }
+  }
+
+  /** One independently locked part of the cache, which evicts its least recently used entry. */
+  private static class Segment<T> {
+    Segment(final int maxSize) {
+      this.entries = new LinkedHashMap<String, T>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    synchronized T getTemplate(String header) {
+      return entries.get(header);
+    }
+
+    synchronized void putTemplate(String header, T template) {
+      entries.put(header, template);
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+
+    private LinkedHashMap<String, T> entries;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Segment<T>[] newSegments(int count, int size) {
+    Segment<T>[] segments = (Segment<T>[]) new Segment<?>[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment<T>(size);
+    }
+    return segments;
+  }
+
+  private static <T> Segment<T> segmentFor(Segment<T>[] segments, String header) {
+    // Only the low bits pick a segment, so mix the high bits into them.
+    int hash = header.hashCode();
+    hash ^= hash >>> 16;
+    return segments[(hash & Integer.MAX_VALUE) % segments.length];
+  }
+
+  /** The default maximum number of headers of each kind that a cache holds on to. */
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_SIZE = 64;
+
+  private Segment<EndpointGroup>[] groups;
+  private Segment<NelPolicy>[] policies;
+  private AtomicLong hits;
+  private AtomicLong misses;
+  private volatile ReportingMetrics metrics;
+}
@@ -0,0 +1,724 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * Parses <code>Report-To</code> and <code>NEL</code> headers in a single pass over the header
+ * value, without going through Gson's {@link com.google.gson.stream.JsonReader}.  We don't create
+ * any <code>String</code>s for member names; instead we identify each name with a perfect hash of
+ * its length and first character, and then compare it in place.  The only objects we allocate are
+ * the string values that end up in the parsed result.
+ *
+ * <p>
+ * The results are identical to {@link Client#parseFromReportToHeader} and {@link
+ * NelPolicy#parseFromNelHeader}.  We only handle strict JSON ourselves; if a header uses any of
+ * the lenient syntax that Gson accepts (comments, unquoted or single-quoted strings, and so on), or
+ * is invalid in any way, we hand it to the Gson-based parser instead.  That means that invalid
+ * headers cause exactly the same {@link InvalidHeaderException}s, and that the fast path only has
+ * to be fast for the headers that servers actually send.
+ * </p>
+ */
+public final class HeaderParser {
+  private HeaderParser() {}
+
+  /**
+   * Parses a client from the contents of a <code>Report-To</code> header.  This is equivalent to
+   * {@link Client#parseFromReportToHeader}.
+   */
+  public static Client parseReportToHeader(List<? extends CharSequence> headers, Origin origin,
+      Instant now) throws InvalidHeaderException {
+    Client client = new Client(origin);
+    for (CharSequence header : headers) {
+      client.addGroup(parseEndpointGroup(header, now));
+    }
+    return client;
+  }
+
+  /**
+   * Parses a NEL policy from the contents of a <code>NEL</code> header.  This is equivalent to
+   * {@link NelPolicy#parseFromNelHeader}.
+   */
+  public static NelPolicy parseNelHeader(CharSequence header, Origin origin, Instant now)
+      throws InvalidHeaderException {
+    NelPolicy policy = tryParseNelPolicy(header, origin, now);
+    if (policy == null) {
+      policy = NelPolicyJsonAdapter.parseHeader(header.toString(), origin, now);
+    }
+    return policy;
+  }
+
+  /** Parses a single <code>Report-To</code> header value. */
+  static EndpointGroup parseEndpointGroup(CharSequence header, Instant now)
+      throws InvalidHeaderException {
+    EndpointGroup group = tryParseEndpointGroup(header, now);
+    if (group == null) {
+      group = EndpointGroupJsonAdapter.parseHeader(header.toString(), now);
+    }
+    return group;
+  }
+
+  /**
+   * Parses a single <code>Report-To</code> header value, returning <code>null</code> if it's
+   * invalid or isn't strict JSON.
+   */
+  static EndpointGroup tryParseEndpointGroup(CharSequence header, Instant now) {
+    try {
+      Cursor cursor = new Cursor(header);
+      EndpointGroup group = cursor.readGroup(now);
+      cursor.checkFullyConsumed();
+      return group;
+    } catch (UnsupportedSyntax e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses a <code>NEL</code> header value, returning <code>null</code> if it's invalid or isn't
+   * strict JSON.
+   */
+  static NelPolicy tryParseNelPolicy(CharSequence header, Origin origin, Instant now) {
+    try {
+      Cursor cursor = new Cursor(header);
+      NelPolicy policy = cursor.readPolicy(origin, now);
+      cursor.checkFullyConsumed();
+      return policy;
+    } catch (UnsupportedSyntax e) {
+      return null;
+    }
+  }
+
+  /**
+   * Thrown when a header contains something that we don't handle ourselves.  This is only used for
+   * control flow, so we use a single instance without a stack trace.
+   */
+  private static final class UnsupportedSyntax extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static final UnsupportedSyntax UNSUPPORTED = new UnsupportedSyntax();
+
+  /** A position within a header value. */
+  private static final class Cursor {
+    Cursor(CharSequence input) {
+      this.input = input;
+      this.length = input.length();
+      this.pos = 0;
+    }
+
+    EndpointGroup readGroup(Instant now) throws UnsupportedSyntax {
+      String groupName = "default";
+      boolean subdomains = false;
+      Duration ttl = null;
+      ArrayList<Endpoint> endpoints = null;
+
+      expect('{');
+      if (!consume('}')) {
+        do {
+          switch (readKey()) {
+            case KEY_GROUP:
+              groupName = readString();
+              break;
+            case KEY_INCLUDE_SUBDOMAINS:
+              subdomains = readBoolean();
+              break;
+            case KEY_MAX_AGE:
+              ttl = readMaxAge();
+              break;
+            case KEY_ENDPOINTS:
+              endpoints = readEndpoints();
+              break;
+            default:
+              skipValue(0);
+              break;
+          }
+        } while (consume(','));
+        expect('}');
+      }
+
+      if (ttl == null || endpoints == null || endpoints.isEmpty()) {
+        throw UNSUPPORTED;
+      }
+      EndpointGroup group = new EndpointGroup(groupName, subdomains, ttl, now);
+      group.addEndpoints(endpoints);
+      return group;
+    }
+
+    private ArrayList<Endpoint> readEndpoints() throws UnsupportedSyntax {
+      ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
+      expect('[');
+      if (!consume(']')) {
+        do {
+          endpoints.add(readEndpoint());
+        } while (consume(','));
+        expect(']');
+      }
+      return endpoints;
+    }
+
+    private Endpoint readEndpoint() throws UnsupportedSyntax {
+      URL url = null;
+      int priority = 1;
+      int weight = 1;
+
+      expect('{');
+      if (!consume('}')) {
+        do {
+          switch (readKey()) {
+            case KEY_URL:
+              try {
+                url = new URL(readString());
+              } catch (MalformedURLException e) {
+                throw UNSUPPORTED;
+              }
+              if (!url.getProtocol().equals("https")) {
+                throw UNSUPPORTED;
+              }
+              break;
+            case KEY_PRIORITY:
+              priority = readInt();
+              if (priority < 0) {
+                throw UNSUPPORTED;
+              }
+              break;
+            case KEY_WEIGHT:
+              weight = readInt();
+              if (weight <= 0) {
+                throw UNSUPPORTED;
+              }
+              break;
+            default:
+              skipValue(0);
+              break;
+          }
+        } while (consume(','));
+        expect('}');
+      }
+
+      if (url == null) {
+        throw UNSUPPORTED;
+      }
+      return new Endpoint(url, priority, weight);
+    }
+
+    NelPolicy readPolicy(Origin origin, Instant now) throws UnsupportedSyntax {
+      String reportTo = null;
+      boolean subdomains = false;
+      double successFraction = 0.0;
+      double failureFraction = 1.0;
+      Duration ttl = null;
+
+      expect('{');
+      if (!consume('}')) {
+        do {
+          switch (readKey()) {
+            case KEY_REPORT_TO:
+              reportTo = readString();
+              break;
+            case KEY_INCLUDE_SUBDOMAINS:
+              subdomains = readBoolean();
+              break;
+            case KEY_MAX_AGE:
+              ttl = readMaxAge();
+              break;
+            case KEY_SUCCESS_FRACTION:
+              successFraction = readFraction();
+              break;
+            case KEY_FAILURE_FRACTION:
+              failureFraction = readFraction();
+              break;
+            default:
+              skipValue(0);
+              break;
+          }
+        } while (consume(','));
+        expect('}');
+      }
+
+      if (ttl == null || (reportTo == null && !ttl.equals(Duration.ZERO))) {
+        throw UNSUPPORTED;
+      }
+      return new NelPolicy(origin, reportTo, subdomains, successFraction, failureFraction, ttl,
+          now);
+    }
+
+    private Duration readMaxAge() throws UnsupportedSyntax {
+      long maxAge = readLong();
+      if (maxAge < 0) {
+        throw UNSUPPORTED;
+      }
+      return Duration.standardSeconds(maxAge);
+    }
+
+    private double readFraction() throws UnsupportedSyntax {
+      double fraction = readDouble();
+      if (!(fraction >= 0.0 && fraction <= 1.0)) {
+        throw UNSUPPORTED;
+      }
+      return fraction;
+    }
+
+    /** Verifies that there's nothing but whitespace after the JSON value. */
+    void checkFullyConsumed() throws UnsupportedSyntax {
+      if (peek() != -1) {
+        throw UNSUPPORTED;
+      }
+    }
+
+    /**
+     * Skips any whitespace, and returns the next character without consuming it, or -1 if we've
+     * reached the end of the input.
+     */
+    private int peek() {
+      while (pos < length) {
+        char ch = input.charAt(pos);
+        if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r') {
+          return ch;
+        }
+        pos++;
+      }
+      return -1;
+    }
+
+    /** Consumes the next non-whitespace character if it's <code>expected</code>. */
+    private boolean consume(char expected) {
+      if (peek() == expected) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(char expected) throws UnsupportedSyntax {
+      if (!consume(expected)) {
+        throw UNSUPPORTED;
+      }
+    }
+
+    /**
+     * Reads a member name and the colon that follows it, returning one of the <code>KEYS</code>
+     * indexes, or <code>KEY_UNKNOWN</code> if it isn't a name that we care about.
+     */
+    private int readKey() throws UnsupportedSyntax {
+      expect('"');
+      int start = pos;
+      while (true) {
+        if (pos == length) {
+          throw UNSUPPORTED;
+        }
+        char ch = input.charAt(pos);
+        if (ch == '"') {
+          break;
+        }
+        if (ch == '\\' || ch < 0x20) {
+          throw UNSUPPORTED;
+        }
+        pos++;
+      }
+      int name = lookupKey(input, start, pos);
+      pos++;
+      expect(':');
+      return name;
+    }
+
+    private String readString() throws UnsupportedSyntax {
+      expect('"');
+      int start = pos;
+      while (true) {
+        if (pos == length) {
+          throw UNSUPPORTED;
+        }
+        char ch = input.charAt(pos);
+        if (ch == '"') {
+          String value = input.subSequence(start, pos).toString();
+          pos++;
+          return value;
+        }
+        if (ch == '\\') {
+          return readEscapedString(start);
+        }
+        if (ch < 0x20) {
+          throw UNSUPPORTED;
+        }
+        pos++;
+      }
+    }
+
+    /** Finishes reading a string whose first escape sequence is at the current position. */
+    private String readEscapedString(int start) throws UnsupportedSyntax {
+      StringBuilder value = new StringBuilder(pos - start + 16);
+      value.append(input, start, pos);
+      while (true) {
+        if (pos == length) {
+          throw UNSUPPORTED;
+        }
+        char ch = input.charAt(pos++);
+        if (ch == '"') {
+          return value.toString();
+        }
+        if (ch < 0x20) {
+          throw UNSUPPORTED;
+        }
+        if (ch != '\\') {
+          value.append(ch);
+          continue;
+        }
+        if (pos == length) {
+          throw UNSUPPORTED;
+        }
+        char escaped = input.charAt(pos++);
+        switch (escaped) {
+          case '"':
+          case '\\':
+          case '/':
+            value.append(escaped);
+            break;
+          case 'b':
+            value.append('\b');
+            break;
+          case 'f':
+            value.append('\f');
+            break;
+          case 'n':
+            value.append('\n');
+            break;
+          case 'r':
+            value.append('\r');
+            break;
+          case 't':
+            value.append('\t');
+            break;
+          case 'u':
+            value.append(readHexChar());
+            break;
+          default:
+            throw UNSUPPORTED;
+        }
+      }
+    }
+
+    private char readHexChar() throws UnsupportedSyntax {
+      if (pos + 4 > length) {
+        throw UNSUPPORTED;
+      }
+      int result = 0;
+      for (int end = pos + 4; pos < end; pos++) {
+        int digit = Character.digit(input.charAt(pos), 16);
+        if (digit < 0) {
+          throw UNSUPPORTED;
+        }
+        result = (result << 4) | digit;
+      }
+      return (char) result;
+    }
+
+    private boolean readBoolean() throws UnsupportedSyntax {
+      peek();
+      if (consumeLiteral("true")) {
+        return true;
+      }
+      if (consumeLiteral("false")) {
+        return false;
+      }
+      throw UNSUPPORTED;
+    }
+
+    /** Consumes <code>literal</code> if it appears at the current position. */
+    private boolean consumeLiteral(String literal) throws UnsupportedSyntax {
+      int end = pos + literal.length();
+      if (end > length) {
+        return false;
+      }
+      for (int i = 0; i < literal.length(); i++) {
+        if (input.charAt(pos + i) != literal.charAt(i)) {
+          return false;
+        }
+      }
+      pos = end;
+      checkEndOfLiteral();
+      return true;
+    }
+
+    /**
+     * Verifies that the literal we just read isn't immediately followed by anything but a
+     * separator.  (Gson would treat something like <code>truest</code> as an unquoted string.)
+     */
+    private void checkEndOfLiteral() throws UnsupportedSyntax {
+      if (pos == length) {
+        return;
+      }
+      switch (input.charAt(pos)) {
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+        case ',':
+        case '}':
+        case ']':
+          return;
+        default:
+          throw UNSUPPORTED;
+      }
+    }
+
+    private int readInt() throws UnsupportedSyntax {
+      long value = readLong();
+      if (value != (int) value) {
+        throw UNSUPPORTED;
+      }
+      return (int) value;
+    }
+
+    /**
+     * Reads an integer with no fraction or exponent, and few enough digits that it can't overflow.
+     */
+    private long readLong() throws UnsupportedSyntax {
+      peek();
+      boolean negative = pos < length && input.charAt(pos) == '-';
+      if (negative) {
+        pos++;
+      }
+      int start = pos;
+      long value = readDigits();
+      if (pos - start > MAX_LONG_DIGITS) {
+        throw UNSUPPORTED;
+      }
+      checkEndOfLiteral();
+      return negative ? -value : value;
+    }
+
+    /**
+     * Reads a JSON number.  If it has few enough significant digits, we can calculate the exact,
+     * correctly rounded result with a single division; otherwise we let the JDK parse it.
+     */
+    private double readDouble() throws UnsupportedSyntax {
+      peek();
+      int start = pos;
+      boolean negative = pos < length && input.charAt(pos) == '-';
+      if (negative) {
+        pos++;
+      }
+      int digitsStart = pos;
+      long mantissa = readDigits();
+      int integerDigits = pos - digitsStart;
+      int fractionDigits = 0;
+      if (pos < length && input.charAt(pos) == '.') {
+        pos++;
+        int fractionStart = pos;
+        while (pos < length && isDigit(input.charAt(pos))) {
+          if (pos - fractionStart < MAX_EXACT_DIGITS) {
+            mantissa = 10 * mantissa + (input.charAt(pos) - '0');
+          }
+          pos++;
+        }
+        fractionDigits = pos - fractionStart;
+        if (fractionDigits == 0) {
+          throw UNSUPPORTED;
+        }
+      }
+      boolean exponent = false;
+      if (pos < length && (input.charAt(pos) == 'e' || input.charAt(pos) == 'E')) {
+        exponent = true;
+        pos++;
+        if (pos < length && (input.charAt(pos) == '+' || input.charAt(pos) == '-')) {
+          pos++;
+        }
+        int exponentStart = pos;
+        while (pos < length && isDigit(input.charAt(pos))) {
+          pos++;
+        }
+        if (pos == exponentStart) {
+          throw UNSUPPORTED;
+        }
+      }
+      checkEndOfLiteral();
+      if (exponent || integerDigits + fractionDigits > MAX_EXACT_DIGITS) {
+        return Double.parseDouble(input.subSequence(start, pos).toString());
+      }
+      double value = mantissa / POWERS_OF_TEN[fractionDigits];
+      return negative ? -value : value;
+    }
+
+    /**
+     * Reads the integer part of a number, which must be a single <code>0</code> or not start with
+     * one.  Stops accumulating the value once it has more digits than we can handle exactly, but
+     * keeps consuming them.
+     */
+    private long readDigits() throws UnsupportedSyntax {
+      int start = pos;
+      long value = 0;
+      while (pos < length && isDigit(input.charAt(pos))) {
+        if (pos - start < MAX_LONG_DIGITS) {
+          value = 10 * value + (input.charAt(pos) - '0');
+        }
+        pos++;
+      }
+      int digits = pos - start;
+      if (digits == 0 || (digits > 1 && input.charAt(start) == '0')) {
+        throw UNSUPPORTED;
+      }
+      return value;
+    }
+
+    /** Skips over a value that we don't care about. */
+    private void skipValue(int depth) throws UnsupportedSyntax {
+      if (depth > MAX_SKIP_DEPTH) {
+        throw UNSUPPORTED;
+      }
+      int ch = peek();
+      switch (ch) {
+        case '{':
+          pos++;
+          if (!consume('}')) {
+            do {
+              readKey();
+              skipValue(depth + 1);
+            } while (consume(','));
+            expect('}');
+          }
+          break;
+        case '[':
+          pos++;
+          if (!consume(']')) {
+            do {
+              skipValue(depth + 1);
+            } while (consume(','));
+            expect(']');
+          }
+          break;
+        case '"':
+          readString();
+          break;
+        case 't':
+        case 'f':
+          readBoolean();
+          break;
+        case 'n':
+          if (!consumeLiteral("null")) {
+            throw UNSUPPORTED;
+          }
+          break;
+        default:
+          if (ch != '-' && (ch < '0' || ch > '9')) {
+            throw UNSUPPORTED;
+          }
+          readDouble();
+          break;
+      }
+    }
+
+    private final CharSequence input;
+    private final int length;
+    private int pos;
+  }
+
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
+  }
+
+  /**
+   * Returns the index in <code>KEYS</code> of the member name between <code>start</code> and
+   * <code>end</code>, or <code>KEY_UNKNOWN</code>.  The length and first character of a name are
+   * enough to tell all of the names that we care about apart, so we only have to compare against
+   * a single candidate.
+   */
+  static int lookupKey(CharSequence input, int start, int end) {
+    int candidate;
+    switch (end - start) {
+      case 3:
+        candidate = KEY_URL;
+        break;
+      case 5:
+        candidate = KEY_GROUP;
+        break;
+      case 6:
+        candidate = KEY_WEIGHT;
+        break;
+      case 7:
+        candidate = KEY_MAX_AGE;
+        break;
+      case 8:
+        candidate = KEY_PRIORITY;
+        break;
+      case 9:
+        candidate = input.charAt(start) == 'e' ? KEY_ENDPOINTS : KEY_REPORT_TO;
+        break;
+      case 16:
+        candidate = input.charAt(start) == 's' ? KEY_SUCCESS_FRACTION : KEY_FAILURE_FRACTION;
+        break;
+      case 18:
+        candidate = KEY_INCLUDE_SUBDOMAINS;
+        break;
+      default:
+        return KEY_UNKNOWN;
+    }
+    String name = KEYS[candidate];
+    for (int i = 0; i < name.length(); i++) {
+      if (input.charAt(start + i) != name.charAt(i)) {
+        return KEY_UNKNOWN;
+      }
+    }
+    return candidate;
+  }
+
+  private static final int KEY_UNKNOWN = -1;
+  private static final int KEY_GROUP = 0;
+  private static final int KEY_INCLUDE_SUBDOMAINS = 1;
+  private static final int KEY_MAX_AGE = 2;
+  private static final int KEY_ENDPOINTS = 3;
+  private static final int KEY_URL = 4;
+  private static final int KEY_PRIORITY = 5;
+  private static final int KEY_WEIGHT = 6;
+  private static final int KEY_REPORT_TO = 7;
+  private static final int KEY_SUCCESS_FRACTION = 8;
+  private static final int KEY_FAILURE_FRACTION = 9;
+
+  /** Every member name that appears in a <code>Report-To</code> or <code>NEL</code> header. */
+  private static final String[] KEYS = {
+    "group", "include-subdomains", "max-age", "endpoints", "url", "priority", "weight",
+    "report-to", "success-fraction", "failure-fraction",
+  };
+
+  /** The most digits that an integer can have without any risk of overflowing a long. */
+  private static final int MAX_LONG_DIGITS = 18;
+
+  /** The most significant digits that are always exactly representable as a double. */
+  private static final int MAX_EXACT_DIGITS = 15;
+
+  /** How deeply we're willing to recurse when skipping unknown values. */
+  private static final int MAX_SKIP_DEPTH = 32;
+
+  private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_DIGITS + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = 10.0 * POWERS_OF_TEN[i - 1];
+    }
+  }
+}
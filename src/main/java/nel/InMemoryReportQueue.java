@@ -0,0 +1,162 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * The default {@link ReportQueue}, which stores all reports in memory.  This class is not
+ * thread-safe.
+ *
+ * <p>
+ * Reports are grouped into buckets by timestamp, so that {@link #removeOlderThan} can drop every
+ * bucket that ends before the cutoff without looking at the reports inside it.  Only the bucket
+ * that contains the cutoff has to be scanned.  The bucket width trades the cost of that scan
+ * against the number of buckets; the default of one minute works well for report lifetimes of
+ * minutes to days.
+ * </p>
+ */
+public class InMemoryReportQueue implements ReportQueue {
+  /** Creates a new, empty queue that uses one-minute buckets. */
+  public InMemoryReportQueue() {
+    this(DEFAULT_BUCKET_WIDTH);
+  }
+
+  /** Creates a new, empty queue whose buckets each cover <code>bucketWidth</code>. */
+  public InMemoryReportQueue(Duration bucketWidth) {
+    if (bucketWidth.getMillis() <= 0) {
+      throw new IllegalArgumentException("bucketWidth must be positive");
+    }
+    this.bucketWidth = bucketWidth.getMillis();
+    this.buckets = new TreeMap<Long, HashSet<QueuedReport>>();
+    this.size = 0;
+  }
+
+  @Override
+  public void add(QueuedReport report) {
+    Long key = ReportBuckets.bucketOf(report, bucketWidth);
+    HashSet<QueuedReport> bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new HashSet<QueuedReport>();
+      buckets.put(key, bucket);
+    }
+    if (bucket.add(report)) {
+      size++;
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Returns a snapshot of all of the reports in the queue, oldest bucket first. */
+  @Override
+  public List<QueuedReport> getAll() {
+    ArrayList<QueuedReport> result = new ArrayList<QueuedReport>(size);
+    for (HashSet<QueuedReport> bucket : buckets.values()) {
+      result.addAll(bucket);
+    }
+    return result;
+  }
+
+  @Override
+  public void removeAll(Collection<QueuedReport> reports) {
+    for (QueuedReport report : reports) {
+      remove(report);
+    }
+  }
+
+  @Override
+  public void removeOlderThan(Instant cutoff) {
+    removeOlderThan(cutoff, null);
+  }
+
+  /**
+   * Removes a single report from the queue, returning whether it was there.  This is for other
+   * queues that use this one as a timestamp index over their own reports.
+   */
+  boolean remove(QueuedReport report) {
+    Long key = ReportBuckets.bucketOf(report, bucketWidth);
+    HashSet<QueuedReport> bucket = buckets.get(key);
+    if (bucket == null || !bucket.remove(report)) {
+      return false;
+    }
+    size--;
+    if (bucket.isEmpty()) {
+      buckets.remove(key);
+    }
+    return true;
+  }
+
+  /**
+   * Removes all reports that are older than <code>cutoff</code>, and returns them, so that a queue
+   * using this one as a timestamp index can update its own state for just the expired reports.
+   */
+  List<QueuedReport> takeOlderThan(Instant cutoff) {
+    ArrayList<QueuedReport> removed = new ArrayList<QueuedReport>();
+    removeOlderThan(cutoff, removed);
+    return removed;
+  }
+
+  /** Removes expired reports, adding them to <code>removed</code> if it isn't null. */
+  private void removeOlderThan(Instant cutoff, List<QueuedReport> removed) {
+    long cutoffKey = ReportBuckets.bucketOf(cutoff.getMillis(), bucketWidth);
+    // Every report in an earlier bucket is older than the cutoff.
+    Map<Long, HashSet<QueuedReport>> expired = buckets.headMap(cutoffKey);
+    for (HashSet<QueuedReport> bucket : expired.values()) {
+      size -= bucket.size();
+      if (removed != null) {
+        removed.addAll(bucket);
+      }
+    }
+    expired.clear();
+
+    HashSet<QueuedReport> bucket = buckets.get(cutoffKey);
+    if (bucket == null) {
+      return;
+    }
+    Iterator<QueuedReport> iter = bucket.iterator();
+    while (iter.hasNext()) {
+      QueuedReport report = iter.next();
+      if (report.isOlderThan(cutoff)) {
+        iter.remove();
+        size--;
+        if (removed != null) {
+          removed.add(report);
+        }
+      }
+    }
+    if (bucket.isEmpty()) {
+      buckets.remove(cutoffKey);
+    }
+  }
+
+  private static final Duration DEFAULT_BUCKET_WIDTH = Duration.standardMinutes(1);
+
+  private long bucketWidth;
+  private TreeMap<Long, HashSet<QueuedReport>> buckets;
+  private int size;
+}
@@ -0,0 +1,49 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Helpers for reading JSON header values directly with a {@link JsonReader}.  Our type adapters
+ * don't need any of the reflection machinery in {@link com.google.gson.Gson}, so we skip it
+ * entirely, and avoid building a new <code>Gson</code> instance for every header that we parse.
+ */
+final class JsonHeaders {
+  private JsonHeaders() {}
+
+  /**
+   * Creates a reader for a header value.  The reader is as lenient as the one that {@link
+   * com.google.gson.Gson#fromJson(String, Class)} would use.
+   */
+  static JsonReader newReader(String header) {
+    JsonReader reader = new JsonReader(new StringReader(header));
+    reader.setLenient(true);
+    return reader;
+  }
+
+  /** Verifies that there isn't any trailing content after the JSON value in a header. */
+  static void checkFullyConsumed(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.END_DOCUMENT) {
+      throw new MalformedJsonException("Unexpected content after JSON value in header");
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many durations fall into each of a fixed set of buckets.  Each bucket has an upper
+ * bound (inclusive) in milliseconds; the last bucket has no upper bound, and catches everything
+ * that's larger than the largest bound.  This class is thread-safe.
+ */
+public class LatencyHistogram {
+  /**
+   * Creates a new histogram with a bucket for each of the given upper bounds, which must be in
+   * increasing order, plus an overflow bucket.
+   */
+  public LatencyHistogram(long... boundsMillis) {
+    for (int i = 1; i < boundsMillis.length; i++) {
+      if (boundsMillis[i] <= boundsMillis[i - 1]) {
+        throw new IllegalArgumentException("Bucket bounds must be increasing");
+      }
+    }
+    this.bounds = boundsMillis.clone();
+    this.counts = new AtomicLongArray(bounds.length + 1);
+    this.sumMillis = new StripedCounter();
+  }
+
+  /** Adds a single duration to the histogram. */
+  public void record(long millis) {
+    int index = Arrays.binarySearch(bounds, millis);
+    if (index < 0) {
+      // Not an exact match, so this is the insertion point: the first bound larger than millis.
+      index = -index - 1;
+    }
+    counts.incrementAndGet(index);
+    sumMillis.add(millis);
+  }
+
+  /** Returns the number of buckets, including the overflow bucket. */
+  public int getBucketCount() {
+    return counts.length();
+  }
+
+  /**
+   * Returns the upper bound of a bucket, in milliseconds, or {@link Long#MAX_VALUE} for the
+   * overflow bucket.
+   */
+  public long getUpperBoundMillis(int bucket) {
+    return bucket < bounds.length ? bounds[bucket] : Long.MAX_VALUE;
+  }
+
+  /** Returns the number of durations that fell into a bucket. */
+  public long getCount(int bucket) {
+    return counts.get(bucket);
+  }
+
+  /** Returns the number of durations that have been recorded. */
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /** Returns the sum of all of the durations that have been recorded, in milliseconds. */
+  public long getSumMillis() {
+    return sumMillis.sum();
+  }
+
+  private long[] bounds;
+  private AtomicLongArray counts;
+  private StripedCounter sumMillis;
+}
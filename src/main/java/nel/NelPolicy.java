@@ -15,9 +15,6 @@
 
 package nel;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
 
@@ -47,14 +44,28 @@ public class NelPolicy {
    */
   public static NelPolicy parseFromNelHeader(String header, Origin origin, Instant now)
       throws InvalidHeaderException {
-    GsonBuilder builder = new GsonBuilder();
-    builder.registerTypeAdapter(NelPolicy.class, new NelPolicyJsonAdapter(origin, now));
-    Gson gson = builder.create();
+    return parseFromNelHeader(header, origin, now, ReportingMetrics.NONE);
+  }
+
+  /**
+   * Parses a NEL policy from the contents of a <code>NEL</code> header, sending an event to
+   * <code>metrics</code> once we've parsed it.
+   */
+  public static NelPolicy parseFromNelHeader(String header, Origin origin, Instant now,
+      ReportingMetrics metrics) throws InvalidHeaderException {
+    NelPolicy policy;
     try {
-      return gson.fromJson(header, NelPolicy.class);
-    } catch (JsonSyntaxException e) {
-      throw new InvalidHeaderException("Invalid \"NEL\" header", e);
+      policy = NelPolicyJsonAdapter.parseHeader(header, origin, now);
+    } catch (InvalidHeaderException e) {
+      metrics.nelHeaderParsed(false);
+      throw e;
     }
+    metrics.nelHeaderParsed(true);
+    return policy;
+  }
+
+  public Origin getOrigin() {
+    return origin;
   }
 
   public boolean includeSubdomains() {
@@ -73,6 +84,20 @@ public class NelPolicy {
     return failureFraction;
   }
 
+  public Duration getTtl() {
+    return ttl;
+  }
+
+  /** Returns when this policy was created, which is when we received its header. */
+  public Instant getCreation() {
+    return creation;
+  }
+
+  /** Returns the last instant at which this policy is not yet expired. */
+  Instant getExpiry() {
+    return expiry;
+  }
+
   /** Returns whether this policy is expired as of <code>now</code>. */
   public boolean isExpired(Instant now) {
     return now.isAfter(expiry);
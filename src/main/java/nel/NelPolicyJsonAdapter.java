@@ -40,8 +40,30 @@ public class NelPolicyJsonAdapter extends TypeAdapter<NelPolicy> {
     this.now = now;
   }
 
+  /**
+   * Parses a <code>NEL</code> header value for a particular <code>origin</code>, using
+   * <code>now</code> as the creation time of the new policy.  This doesn't need an adapter
+   * instance, so it's safe to call from any thread.
+   */
+  static NelPolicy parseHeader(String header, Origin origin, Instant now)
+      throws InvalidHeaderException {
+    try {
+      JsonReader reader = JsonHeaders.newReader(header);
+      NelPolicy policy = readPolicy(reader, origin, now);
+      JsonHeaders.checkFullyConsumed(reader);
+      return policy;
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new InvalidHeaderException("Invalid \"NEL\" header", e);
+    }
+  }
+
   @Override
   public NelPolicy read(JsonReader reader) throws IOException {
+    return readPolicy(reader, origin, now);
+  }
+
+  private static NelPolicy readPolicy(JsonReader reader, Origin origin, Instant now)
+      throws IOException {
     String reportTo = null;
     boolean subdomains = false;
     double successFraction = 0.0;
@@ -16,6 +16,7 @@
 package nel;
 
 import java.net.URI;
+import java.util.Locale;
 import java.util.Objects;
 
 /**
@@ -31,7 +32,14 @@ import java.util.Objects;
  *
  * <p>
  * This class in particular represents a <em>tuple origin</em> — the combination of scheme, host,
- * and port from the original request.
+ * and port from the original request.  Schemes and hosts are case-insensitive, so we store them in
+ * lower case.
+ * </p>
+ *
+ * <p>
+ * Origins are immutable, and precompute their hash code.  Use an {@link OriginInterner} to get a
+ * canonical instance for each distinct origin, which makes most equality checks a single pointer
+ * comparison.
  * </p>
  */
 public class Origin {
@@ -40,29 +48,55 @@ public class Origin {
    * <code>port</code>.
    */
   public Origin(String scheme, String host, int port) {
-    this.scheme = scheme;
-    this.host = host;
+    this.scheme = scheme == null ? null : scheme.toLowerCase(Locale.ROOT);
+    this.host = host == null ? null : host.toLowerCase(Locale.ROOT);
     this.port = port;
+    // This is the same value that Objects.hash(scheme, host, port) would return.
+    int result = 31 + Objects.hashCode(this.scheme);
+    result = 31 * result + Objects.hashCode(this.host);
+    this.hash = 31 * result + port;
   }
 
   /**
-   * Creates a new origin for the given {@link URI}.
+   * Creates a new origin for the given {@link URI}.  If the URI doesn't contain an explicit port,
+   * we use the default port for its scheme.
    */
   public Origin(URI uri) {
-    this(uri.getScheme(), uri.getHost(), uri.getPort());
+    this(uri.getScheme(), uri.getHost(), getPortOrDefault(uri));
+  }
+
+  private static int getPortOrDefault(URI uri) {
+    if (uri.getPort() != -1) {
+      return uri.getPort();
+    }
+    if ("https".equalsIgnoreCase(uri.getScheme())) {
+      return 443;
+    }
+    if ("http".equalsIgnoreCase(uri.getScheme())) {
+      return 80;
+    }
+    return -1;
   }
 
   /**
    * Creates a new origin whose host is the <a
    * href="https://tools.ietf.org/html/rfc6797#section-8.2">superdomain</a> of this origin's host,
-   * or <code>null</code> if this origin's host has no superdomain.
+   * or <code>null</code> if this origin's host has no superdomain.  The result is cached, so
+   * repeated calls return the same instance.
    */
   public Origin getSuperdomainOrigin() {
-    int index = host.indexOf('.');
-    if (index == -1) {
-      return null;
+    Origin result = superdomain;
+    if (result == null) {
+      int index = host == null ? -1 : host.indexOf('.');
+      if (index == -1) {
+        return null;
+      }
+      // Racing threads might each create their own superdomain origin, but they'll all be equal,
+      // and all of our fields are final, so it's safe to publish them without synchronization.
+      result = new Origin(scheme, host.substring(index + 1), port);
+      superdomain = result;
     }
-    return new Origin(scheme, host.substring(index + 1), port);
+    return result;
   }
 
   public String getScheme() {
@@ -84,20 +118,25 @@ public class Origin {
 
   @Override
   public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
     if (!(obj instanceof Origin)) {
       return false;
     }
     Origin other = (Origin) obj;
-    return this.scheme.equals(other.scheme) && this.host.equals(other.host)
-      && this.port == other.port;
+    return this.hash == other.hash && this.port == other.port
+      && Objects.equals(this.host, other.host) && Objects.equals(this.scheme, other.scheme);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(scheme, host, port);
+    return hash;
   }
 
-  private String scheme;
-  private String host;
-  private int port;
+  private final String scheme;
+  private final String host;
+  private final int port;
+  private final int hash;
+  private Origin superdomain;
 }
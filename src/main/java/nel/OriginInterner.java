@@ -0,0 +1,78 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out a canonical {@link Origin} instance for each distinct origin.  Interned origins are
+ * equal exactly when they're the same object, so hash map lookups and equality checks between them
+ * short-circuit on the first pointer comparison, and there's only ever one copy of each origin (and
+ * of its chain of cached superdomain origins) in memory.
+ *
+ * <p>
+ * An interner holds on to at most a fixed number of origins.  Once it's full, we forget about all
+ * of them and start over; origins that were handed out earlier keep working, but are no longer
+ * canonical, and so fall back on a full equality check.  This class is thread-safe.
+ * </p>
+ */
+public class OriginInterner {
+  /**
+   * Creates a new interner that holds on to at most {@link #DEFAULT_MAX_SIZE} origins.
+   */
+  public OriginInterner() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /** Creates a new interner that holds on to at most <code>maxSize</code> origins. */
+  public OriginInterner(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    this.maxSize = maxSize;
+    this.origins = new ConcurrentHashMap<Origin, Origin>();
+  }
+
+  /** Returns the canonical instance of <code>origin</code>. */
+  public Origin intern(Origin origin) {
+    Origin canonical = origins.get(origin);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (origins.size() >= maxSize) {
+      origins.clear();
+    }
+    canonical = origins.putIfAbsent(origin, origin);
+    return canonical == null ? origin : canonical;
+  }
+
+  /** Returns the canonical instance of the origin of <code>uri</code>. */
+  public Origin intern(URI uri) {
+    return intern(new Origin(uri));
+  }
+
+  /** Returns the number of origins that the interner currently holds on to. */
+  public int size() {
+    return origins.size();
+  }
+
+  /** The default maximum number of origins that an interner holds on to. */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  private int maxSize;
+  private ConcurrentHashMap<Origin, Origin> origins;
+}
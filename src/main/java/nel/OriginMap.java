@@ -15,10 +15,7 @@
 
 package nel;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
 
 /**
  * A {@link HashMap} specialization that only works with {@link Origin} as the key.  Includes a
@@ -36,60 +33,6 @@ public class OriginMap<V> extends HashMap<Origin, V> {
    * the list will be ordered, with more specific matches occurring first.
    */
   public Iterable<V> getAll(Origin origin) {
-    return new AllIterable(origin);
+    return new SuperdomainIterable<V>(this, origin);
   }
-
-  private class AllIterable implements Iterable<V> {
-    private AllIterable(Origin origin) {
-      this.origin = origin;
-    }
-
-    public Iterator<V> iterator() {
-      return new AllIterator(origin);
-    }
-
-    private Origin origin;
-  }
-
-  private class AllIterator implements Iterator<V> {
-    private AllIterator(Origin start) {
-      this.origin = start;
-      this.nextElement = null;
-      advance();
-    }
-
-    private void advance() {
-      while (origin != null) {
-        nextElement = get(origin);
-        origin = origin.getSuperdomainOrigin();
-        if (nextElement != null) {
-          return;
-        }
-      }
-    }
-
-    @Override
-    public boolean hasNext() {
-      return origin != null;
-    }
-
-    @Override
-    public V next() {
-      if (origin == null) {
-        throw new NoSuchElementException();
-      }
-      V result = nextElement;
-      advance();
-      return result;
-    }
-
-    @Override
-    public void remove() {
-      throw new UnsupportedOperationException("Cannot remove from OriginMap#getAll");
-    }
-
-    private Origin origin;
-    private V nextElement;
-  }
-
 }
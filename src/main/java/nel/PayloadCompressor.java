@@ -0,0 +1,314 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.joda.time.Instant;
+
+/**
+ * Renders batches of reports as upload payloads, compressing them with <code>gzip</code> or
+ * <code>deflate</code> content-coding.  Upload payloads are very repetitive JSON (the same keys,
+ * origins, and types in every report), so they usually compress well.
+ *
+ * <p>
+ * The output of a {@link ReportEncoder} is streamed straight into a {@link Deflater}; we never hold
+ * on to the entire uncompressed payload.  The only exception is the first {@link #getMinBytes}
+ * bytes, which we buffer so that we can send small batches uncompressed, since they wouldn't save
+ * enough bytes to be worth the CPU.
+ * </p>
+ *
+ * <p>
+ * Each compressor owns a <code>Deflater</code> and a pair of scratch buffers, which are reused for
+ * every batch.  The buffers grow to fit the largest payload seen so far.  Compressors are not
+ * thread-safe; use a separate compressor for each thread that uploads reports.
+ * </p>
+ */
+public class PayloadCompressor implements Closeable {
+  /** The content-codings that we can produce. */
+  public enum Encoding {
+    /** The <code>gzip</code> format, as described in RFC 1952. */
+    GZIP("gzip"),
+    /** The <code>zlib</code> format, as described in RFC 1950. */
+    DEFLATE("deflate");
+
+    private Encoding(String name) {
+      this.name = name;
+    }
+
+    /** Returns the value to use in the <code>Content-Encoding</code> header. */
+    public String getName() {
+      return name;
+    }
+
+    private final String name;
+  }
+
+  /** An encoded upload payload. */
+  public static class Payload {
+    private Payload(byte[] bytes, String contentEncoding, long uncompressedSize) {
+      this.bytes = bytes;
+      this.contentEncoding = contentEncoding;
+      this.uncompressedSize = uncompressedSize;
+    }
+
+    /** Returns the payload's bytes, which should be sent as the body of the upload request. */
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Returns the value of the payload's <code>Content-Encoding</code> header, or
+     * <code>null</code> if the payload isn't compressed.
+     */
+    public String getContentEncoding() {
+      return contentEncoding;
+    }
+
+    /** Returns the size of the payload's JSON before it was compressed. */
+    public long getUncompressedSize() {
+      return uncompressedSize;
+    }
+
+    private byte[] bytes;
+    private String contentEncoding;
+    private long uncompressedSize;
+  }
+
+  /**
+   * Creates a new compressor that uses the given <code>encoding</code>, with the default
+   * compression level and threshold.
+   */
+  public PayloadCompressor(Encoding encoding) {
+    this.encoding = encoding;
+    this.level = Deflater.DEFAULT_COMPRESSION;
+    this.minBytes = DEFAULT_MIN_BYTES;
+    // The gzip header and trailer are written by hand, so we only need the raw deflate stream.
+    this.deflater = new Deflater(level, encoding == Encoding.GZIP);
+    this.crc = new CRC32();
+    this.raw = new Buffer();
+    this.compressed = new Buffer();
+    this.stream = new CompressingStream();
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Sets the compression level, from 0 (no compression) to 9 (best compression), or -1 to use the
+   * <code>Deflater</code> default.
+   */
+  public PayloadCompressor setLevel(int level) {
+    if (level != Deflater.DEFAULT_COMPRESSION
+        && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("Invalid compression level " + Integer.toString(level));
+    }
+    this.level = level;
+    this.deflater.setLevel(level);
+    return this;
+  }
+
+  public int getMinBytes() {
+    return minBytes;
+  }
+
+  /**
+   * Sets the smallest payload that we'll compress.  Batches whose JSON is smaller than this are
+   * sent uncompressed.
+   */
+  public PayloadCompressor setMinBytes(int minBytes) {
+    if (minBytes < 0) {
+      throw new IllegalArgumentException("minBytes cannot be negative");
+    }
+    this.minBytes = minBytes;
+    return this;
+  }
+
+  /**
+   * Renders all of the reports in <code>batch</code> using <code>encoder</code>, compressing the
+   * result if it's at least {@link #getMinBytes} bytes long.  Uses <code>now</code> to calculate
+   * the <code>age</code> of each report.
+   */
+  public Payload encode(ReportBatch batch, ReportEncoder encoder, Instant now) throws IOException {
+    stream.reset();
+    batch.writeTo(encoder, now, stream);
+    return stream.finish();
+  }
+
+  /**
+   * Returns a new compressor with the same settings as this one, for use by another thread.
+   */
+  PayloadCompressor copy() {
+    return new PayloadCompressor(encoding).setLevel(level).setMinBytes(minBytes);
+  }
+
+  /** Releases the resources held by this compressor's <code>Deflater</code>. */
+  @Override
+  public void close() {
+    deflater.end();
+  }
+
+  /**
+   * Buffers the start of a payload until it reaches {@link #getMinBytes}, and then compresses
+   * everything written to it from then on.
+   */
+  private class CompressingStream extends OutputStream {
+    void reset() {
+      raw.reset();
+      compressed.reset();
+      deflater.reset();
+      crc.reset();
+      compressing = false;
+      uncompressedSize = 0;
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+      write(new byte[] {(byte) value}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      uncompressedSize += length;
+      if (!compressing) {
+        if (raw.count + length < minBytes) {
+          raw.write(bytes, offset, length);
+          return;
+        }
+        startCompressing();
+      }
+      deflate(bytes, offset, length);
+    }
+
+    Payload finish() {
+      if (!compressing) {
+        if (uncompressedSize < minBytes) {
+          return new Payload(raw.toByteArray(), null, uncompressedSize);
+        }
+        // An empty payload with a threshold of 0.
+        startCompressing();
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        drain();
+      }
+      if (encoding == Encoding.GZIP) {
+        writeIntLittleEndian((int) crc.getValue());
+        writeIntLittleEndian((int) uncompressedSize);
+      }
+      return new Payload(compressed.toByteArray(), encoding.getName(), uncompressedSize);
+    }
+
+    private void startCompressing() {
+      compressing = true;
+      if (encoding == Encoding.GZIP) {
+        compressed.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+      }
+      deflate(raw.bytes, 0, raw.count);
+    }
+
+    private void deflate(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return;
+      }
+      if (encoding == Encoding.GZIP) {
+        crc.update(bytes, offset, length);
+      }
+      deflater.setInput(bytes, offset, length);
+      while (!deflater.needsInput()) {
+        drain();
+      }
+    }
+
+    /** Moves whatever output the deflater has ready into the compressed buffer. */
+    private void drain() {
+      compressed.ensureCapacity(DRAIN_SIZE);
+      compressed.count += deflater.deflate(
+          compressed.bytes, compressed.count, compressed.bytes.length - compressed.count);
+    }
+
+    private void writeIntLittleEndian(int value) {
+      compressed.ensureCapacity(4);
+      for (int i = 0; i < 4; i++) {
+        compressed.bytes[compressed.count++] = (byte) (value >> (8 * i));
+      }
+    }
+
+    private boolean compressing;
+    private long uncompressedSize;
+  }
+
+  /** A growable byte array that we reuse for every payload. */
+  private static class Buffer {
+    Buffer() {
+      this.bytes = new byte[INITIAL_BUFFER_SIZE];
+      this.count = 0;
+    }
+
+    void reset() {
+      count = 0;
+    }
+
+    void ensureCapacity(int needed) {
+      if (count + needed > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, count + needed));
+      }
+    }
+
+    void write(byte[] source, int offset, int length) {
+      ensureCapacity(length);
+      System.arraycopy(source, offset, bytes, count, length);
+      count += length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, count);
+    }
+
+    private byte[] bytes;
+    private int count;
+  }
+
+  /** By default, we don't bother compressing payloads smaller than this. */
+  public static final int DEFAULT_MIN_BYTES = 1024;
+
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+  private static final int DRAIN_SIZE = 4096;
+
+  /** A gzip member header with no optional fields, no timestamp, and an unknown OS. */
+  private static final byte[] GZIP_HEADER = {
+    (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff,
+  };
+
+  private Encoding encoding;
+  private int level;
+  private int minBytes;
+  private Deflater deflater;
+  private CRC32 crc;
+  private Buffer raw;
+  private Buffer compressed;
+  private CompressingStream stream;
+}
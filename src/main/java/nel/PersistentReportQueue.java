@@ -0,0 +1,528 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.joda.time.Instant;
+
+/**
+ * A {@link ReportQueue} that persists its reports to disk, so that they survive a restart or crash
+ * of the process.
+ *
+ * <p>
+ * Reports are stored in an append-only log, which is split into fixed-size, memory-mapped segment
+ * files in a directory that the queue owns.  Adding a report appends a record containing the
+ * report's {@link ReportCodec binary encoding}; removing a report appends a small tombstone
+ * record.  {@link #removeOlderThan} appends a single expiry record holding the cutoff, rather
+ * than a tombstone for each expired report, and finds the expired reports via an in-memory
+ * timestamp index instead of scanning the whole queue.  Each record is protected by a CRC, so a
+ * record that was only partially written when the process died is detected and ignored.  All of
+ * the queued reports are also kept in memory, so reading from the queue never touches the disk.
+ * </p>
+ *
+ * <p>
+ * Whenever we fill up a segment and start a new one, we write a <em>checkpoint</em>, which lists
+ * the location of every report that is still queued.  Recovering after a restart only needs to
+ * decode those reports and then replay the records in the segments written since the checkpoint,
+ * rather than the entire log.  Once a segment predates the latest checkpoint and all of the
+ * reports in it have been removed, we delete it.
+ * </p>
+ *
+ * <p>
+ * Writes to a memory-mapped file survive the process crashing, but are only guaranteed to reach
+ * the disk itself (and so survive a power failure or kernel panic) once you call {@link #sync}.
+ * All methods are synchronized, so a persistent queue can be used with a {@link
+ * ConcurrentReportingCache}.
+ * </p>
+ */
+public class PersistentReportQueue implements ReportQueue, Closeable {
+  /**
+   * Opens the queue stored in <code>directory</code>, creating it if necessary, using segments of
+   * {@link #DEFAULT_SEGMENT_SIZE} bytes.
+   */
+  public PersistentReportQueue(Path directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens the queue stored in <code>directory</code>, creating it if necessary, using segments of
+   * <code>segmentSize</code> bytes.  Any single report must fit into one segment.
+   */
+  public PersistentReportQueue(Path directory, int segmentSize) throws IOException {
+    if (segmentSize < MIN_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("segmentSize must be at least "
+          + Integer.toString(MIN_SEGMENT_SIZE));
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.scratch = ByteBuffer.allocate(segmentSize);
+    this.crc = new CRC32();
+    this.reports = new LinkedHashMap<QueuedReport, Long>();
+    this.byTimestamp = new InMemoryReportQueue();
+    this.liveCounts = new TreeMap<Integer, Integer>();
+    Files.createDirectories(directory);
+    recover();
+  }
+
+  @Override
+  public synchronized void add(QueuedReport report) {
+    if (reports.containsKey(report)) {
+      return;
+    }
+    scratch.clear();
+    scratch.put(ADD);
+    try {
+      ReportCodec.encode(report, scratch);
+    } catch (BufferOverflowException e) {
+      throw new IllegalArgumentException("Report is too large to store in a segment", e);
+    }
+    if (scratch.position() > segmentSize - RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Report is too large to store in a segment");
+    }
+    long location = append();
+    reports.put(report, location);
+    byTimestamp.add(report);
+    int segment = segmentOf(location);
+    Integer count = liveCounts.get(segment);
+    liveCounts.put(segment, count == null ? 1 : count + 1);
+  }
+
+  @Override
+  public synchronized int size() {
+    return reports.size();
+  }
+
+  @Override
+  public synchronized List<QueuedReport> getAll() {
+    return new ArrayList<QueuedReport>(reports.keySet());
+  }
+
+  @Override
+  public synchronized void removeAll(Collection<QueuedReport> reports) {
+    for (QueuedReport report : reports) {
+      remove(report);
+    }
+  }
+
+  @Override
+  public synchronized void removeOlderThan(Instant cutoff) {
+    List<QueuedReport> expired = byTimestamp.takeOlderThan(cutoff);
+    if (expired.isEmpty()) {
+      return;
+    }
+    scratch.clear();
+    scratch.put(EXPIRE);
+    scratch.putLong(cutoff.getMillis());
+    append();
+    for (QueuedReport report : expired) {
+      releaseLocation(reports.remove(report));
+    }
+  }
+
+  /**
+   * Forces all of the records that we've written so far out to the disk.  Throws {@link
+   * IllegalStateException} if the queue has been closed.
+   */
+  public synchronized void sync() {
+    checkOpen();
+    active.force();
+  }
+
+  /**
+   * Syncs the log, writes a final checkpoint so that the next recovery is fast, and releases the
+   * queue's files.  The queue can't be used after it's been closed.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (active == null) {
+      return;
+    }
+    active.force();
+    writeCheckpoint(location(activeSegment, active.position()));
+    activeChannel.close();
+    active = null;
+    activeChannel = null;
+  }
+
+  /** Returns the number of segment files that the queue is currently using. */
+  synchronized int getSegmentCount() {
+    return liveCounts.size();
+  }
+
+  private void remove(QueuedReport report) {
+    Long location = reports.remove(report);
+    if (location == null) {
+      return;
+    }
+    byTimestamp.remove(report);
+    scratch.clear();
+    scratch.put(REMOVE);
+    scratch.putLong(location);
+    append();
+    releaseLocation(location);
+  }
+
+  /**
+   * Appends the record in the scratch buffer to the log, starting a new segment first if it doesn't
+   * fit in the current one.  Returns the record's location.
+   */
+  private long append() {
+    checkOpen();
+    scratch.flip();
+    int length = scratch.remaining();
+    if (active.remaining() < RECORD_HEADER_SIZE + length) {
+      startNewSegment();
+    }
+    crc.reset();
+    crc.update(scratch.array(), 0, length);
+    long location = location(activeSegment, active.position());
+    active.putInt(length);
+    active.putInt((int) crc.getValue());
+    active.put(scratch);
+    return location;
+  }
+
+  private void checkOpen() {
+    if (active == null) {
+      throw new IllegalStateException("Queue has been closed");
+    }
+  }
+
+  private void releaseLocation(long location) {
+    int segment = segmentOf(location);
+    int count = liveCounts.get(segment) - 1;
+    if (count == 0 && segment < checkpointSegment) {
+      deleteSegment(segment);
+    } else {
+      liveCounts.put(segment, count);
+    }
+  }
+
+  private void startNewSegment() {
+    try {
+      // The checkpoint that we're about to write refers to records in this segment, so they have
+      // to reach the disk first.  After this, sync() only ever needs to force the new segment.
+      active.force();
+      activeChannel.close();
+      openSegment(activeSegment + 1);
+      // Everything that's still queued is recorded in the checkpoint, so recovery won't need to
+      // read any of the older segments' records, other than the reports that are still live.
+      writeCheckpoint(location(activeSegment, 0));
+      for (Map.Entry<Integer, Integer> entry : new ArrayList<Map.Entry<Integer, Integer>>(
+          liveCounts.headMap(checkpointSegment).entrySet())) {
+        if (entry.getValue() == 0) {
+          deleteSegment(entry.getKey());
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot start new segment", e);
+    }
+  }
+
+  private void openSegment(int segment) throws IOException {
+    activeChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    activeSegment = segment;
+    if (!liveCounts.containsKey(segment)) {
+      liveCounts.put(segment, 0);
+    }
+  }
+
+  private void deleteSegment(int segment) {
+    liveCounts.remove(segment);
+    try {
+      Files.deleteIfExists(segmentPath(segment));
+    } catch (IOException e) {
+      // We'll never read from this segment again, so it's not a problem if it lingers.
+    }
+  }
+
+  /**
+   * Writes a checkpoint listing the location of every queued report, and recording that recovery
+   * only needs to replay records from <code>position</code> onwards.  The new checkpoint atomically
+   * replaces any existing one.
+   */
+  private void writeCheckpoint(long position) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + 8 * reports.size());
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(CHECKPOINT_MAGIC);
+    output.writeLong(position);
+    output.writeInt(reports.size());
+    for (long location : reports.values()) {
+      output.writeLong(location);
+    }
+    crc.reset();
+    crc.update(bytes.toByteArray());
+    output.writeLong(crc.getValue());
+    output.flush();
+
+    Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+    FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+    Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    checkpointSegment = segmentOf(position);
+  }
+
+  /**
+   * Reads the current checkpoint, returning <code>null</code> if there isn't one or if it's been
+   * corrupted.  The first element of the result is the replay position; the rest are the locations
+   * of the live reports.
+   */
+  private long[] readCheckpoint() throws IOException {
+    byte[] contents;
+    try {
+      contents = Files.readAllBytes(directory.resolve(CHECKPOINT_FILE));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(contents);
+    if (contents.length < 24 || buffer.getInt() != CHECKPOINT_MAGIC) {
+      return null;
+    }
+    long position = buffer.getLong();
+    int count = buffer.getInt();
+    if (count < 0 || contents.length != 24 + 8L * count) {
+      return null;
+    }
+    crc.reset();
+    crc.update(contents, 0, contents.length - 8);
+    if (ByteBuffer.wrap(contents, contents.length - 8, 8).getLong() != crc.getValue()) {
+      return null;
+    }
+    long[] result = new long[count + 1];
+    result[0] = position;
+    for (int i = 0; i < count; i++) {
+      result[i + 1] = buffer.getLong();
+    }
+    return result;
+  }
+
+  /** Rebuilds the in-memory state of the queue from the checkpoint and segment files. */
+  private void recover() throws IOException {
+    TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<Integer, MappedByteBuffer>();
+    DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log");
+    try {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        try {
+          int segment = Integer.parseInt(name.substring(8, name.length() - 4));
+          segments.put(segment, mapForReading(path));
+        } catch (NumberFormatException e) {
+          // Not one of our segments.
+        }
+      }
+    } finally {
+      stream.close();
+    }
+
+    HashMap<Long, QueuedReport> byLocation = new HashMap<Long, QueuedReport>();
+    long replayFrom = segments.isEmpty() ? location(0, 0) : location(segments.firstKey(), 0);
+    long[] checkpoint = readCheckpoint();
+    if (checkpoint != null) {
+      replayFrom = checkpoint[0];
+      for (int i = 1; i < checkpoint.length; i++) {
+        ByteBuffer segment = segments.get(segmentOf(checkpoint[i]));
+        if (segment == null) {
+          continue;
+        }
+        ByteBuffer body = readRecord(segment, offsetOf(checkpoint[i]));
+        if (body != null && body.get() == ADD) {
+          restore(byLocation, checkpoint[i], body);
+        }
+      }
+    }
+    checkpointSegment = segmentOf(replayFrom);
+
+    // Replay everything that was written since the checkpoint.
+    int lastSegment = Math.max(segmentOf(replayFrom), segments.isEmpty() ? 0 : segments.lastKey());
+    int end = offsetOf(replayFrom);
+    for (Map.Entry<Integer, MappedByteBuffer> entry
+        : segments.tailMap(checkpointSegment).entrySet()) {
+      int segment = entry.getKey();
+      int offset = segment == checkpointSegment ? offsetOf(replayFrom) : 0;
+      ByteBuffer body;
+      while ((body = readRecord(entry.getValue(), offset)) != null) {
+        long location = location(segment, offset);
+        offset += RECORD_HEADER_SIZE + body.remaining();
+        byte type = body.get();
+        if (type == ADD) {
+          restore(byLocation, location, body);
+        } else if (type == REMOVE) {
+          QueuedReport removed = byLocation.remove(body.getLong());
+          if (removed != null) {
+            byTimestamp.remove(removed);
+            releaseLocation(reports.remove(removed));
+          }
+        } else if (type == EXPIRE) {
+          for (QueuedReport expired : byTimestamp.takeOlderThan(new Instant(body.getLong()))) {
+            long expiredLocation = reports.remove(expired);
+            byLocation.remove(expiredLocation);
+            releaseLocation(expiredLocation);
+          }
+        }
+      }
+      end = offset;
+    }
+
+    for (int segment : segments.keySet()) {
+      if (liveCounts.containsKey(segment)) {
+        continue;
+      }
+      if (segment < checkpointSegment) {
+        // Nothing in this segment is still queued, and we'll never need to replay it.
+        Files.deleteIfExists(segmentPath(segment));
+      } else {
+        // We have to hang on to this segment's tombstones until the next checkpoint.
+        liveCounts.put(segment, 0);
+      }
+    }
+
+    // Continue appending to the last segment, clearing out anything after the last complete
+    // record so that we never misinterpret a partially written record as the end of a new one.
+    openSegment(lastSegment);
+    active.position(end);
+    while (active.hasRemaining()) {
+      active.put((byte) 0);
+    }
+    active.position(end);
+  }
+
+  private void restore(Map<Long, QueuedReport> byLocation, long location, ByteBuffer body) {
+    QueuedReport report;
+    try {
+      report = ReportCodec.decode(body);
+    } catch (IllegalArgumentException e) {
+      // We can't do anything with a report that we can't decode.
+      return;
+    }
+    byLocation.put(location, report);
+    reports.put(report, location);
+    byTimestamp.add(report);
+    int segment = segmentOf(location);
+    Integer count = liveCounts.get(segment);
+    liveCounts.put(segment, count == null ? 1 : count + 1);
+  }
+
+  /**
+   * Reads the record at <code>offset</code> in <code>segment</code>, returning its body, or
+   * <code>null</code> if there isn't a complete, valid record there.
+   */
+  private ByteBuffer readRecord(ByteBuffer segment, int offset) {
+    if (offset < 0 || offset > segment.limit() - RECORD_HEADER_SIZE) {
+      return null;
+    }
+    int length = segment.getInt(offset);
+    int checksum = segment.getInt(offset + 4);
+    if (length <= 0 || length > segment.limit() - offset - RECORD_HEADER_SIZE) {
+      return null;
+    }
+    byte[] body = new byte[length];
+    ByteBuffer source = segment.duplicate();
+    source.position(offset + RECORD_HEADER_SIZE);
+    source.get(body);
+    crc.reset();
+    crc.update(body);
+    if ((int) crc.getValue() != checksum) {
+      return null;
+    }
+    return ByteBuffer.wrap(body);
+  }
+
+  private static MappedByteBuffer mapForReading(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+  }
+
+  private Path segmentPath(int segment) {
+    return directory.resolve(String.format("segment-%010d.log", segment));
+  }
+
+  private static long location(int segment, int offset) {
+    return (((long) segment) << 32) | (offset & 0xffffffffL);
+  }
+
+  private static int segmentOf(long location) {
+    return (int) (location >>> 32);
+  }
+
+  private static int offsetOf(long location) {
+    return (int) location;
+  }
+
+  /** The default size of each segment file. */
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  private static final int MIN_SEGMENT_SIZE = 4096;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+  private static final byte EXPIRE = 3;
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final int CHECKPOINT_MAGIC = 0x4e454c51;
+
+  private Path directory;
+  private int segmentSize;
+  private ByteBuffer scratch;
+  private CRC32 crc;
+  /** The location of each queued report's record in the log. */
+  private LinkedHashMap<QueuedReport, Long> reports;
+  /** The same reports, grouped by timestamp so that we can find expired ones quickly. */
+  private InMemoryReportQueue byTimestamp;
+  /** The number of queued reports stored in each segment that still exists. */
+  private TreeMap<Integer, Integer> liveCounts;
+  private int activeSegment;
+  private FileChannel activeChannel;
+  private MappedByteBuffer active;
+  /** The segment that recovery would start replaying from. */
+  private int checkpointSegment;
+}
@@ -15,9 +15,26 @@
 
 package nel;
 
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
 /**
- * A wrapper around a {@link Report} once it's been added to a {@link ReportingCache}.  Keeps track
- * of some logistics about the report, such as how many times we've tried to upload it.
+ * A {@link Report} once it's been added to a {@link ReportingCache}.  Keeps track of some
+ * logistics about the report, such as how many times we've tried to upload it.
+ *
+ * <p>
+ * A cache can hold millions of queued reports during an outage, so we don't hold on to the
+ * original {@link Report}, with its <code>URI</code>, <code>InetAddress</code>, and Joda time
+ * objects.  Instead we copy its fields into primitives and strings: timestamps and durations as
+ * milliseconds, the server IP as its raw address bytes, and the URIs as their string forms.  There
+ * are only a handful of distinct protocols, so we intern those.
+ * {@link #getReport} rebuilds a <code>Report</code> from them whenever one is needed; uploads
+ * don't need one, since {@link ReportEncoder} reads these fields directly.
+ * </p>
  */
 public class QueuedReport {
   /**
@@ -25,12 +42,57 @@ public class QueuedReport {
    * <code>group</code>.
    */
   public QueuedReport(Report report, String group) {
-    this.report = report;
-    this.origin = new Origin(report.getUri());
+    this(report, group, new Origin(report.getUri()));
+  }
+
+  /**
+   * Creates a new queued report that will be uploaded to an endpoint in the given
+   * <code>group</code>.  <code>origin</code> must be the origin of the report's URI; this lets
+   * callers pass in an interned instance.
+   */
+  public QueuedReport(Report report, String group, Origin origin) {
+    Instant timestamp = report.getTimestamp();
+    this.timestamp = timestamp == null ? NO_VALUE : timestamp.getMillis();
+    this.uri = report.getUriString();
+    this.referrer = report.getReferrer() == null ? null : report.getReferrerString();
+    this.samplingFraction = report.getSamplingFraction();
+    this.serverIp = report.getServerIp() == null ? null : report.getServerIp().getAddress();
+    this.protocol = report.getProtocol() == null ? null : report.getProtocol().intern();
+    this.statusCode = report.getStatusCode();
+    Duration elapsedTime = report.getElapsedTime();
+    this.elapsedTime = elapsedTime == null ? NO_VALUE : elapsedTime.getMillis();
+    this.type = report.getType();
+    this.aggregate = report.getAggregate();
+    this.origin = origin;
     this.group = group;
+    this.attempts = 0;
+    this.pending = false;
   }
 
+  /**
+   * Returns the report.  This creates a new {@link Report} each time it's called, so changes to the
+   * result don't affect the queued report.
+   */
   public Report getReport() {
+    Report report = new Report()
+        .setTimestamp(timestamp == NO_VALUE ? null : new Instant(timestamp))
+        .setUri(URI.create(uri))
+        .setReferrer(referrer == null ? null : URI.create(referrer))
+        .setSamplingFraction(samplingFraction)
+        .setProtocol(protocol)
+        .setStatusCode(statusCode)
+        .setElapsedTime(elapsedTime == NO_VALUE ? null : Duration.millis(elapsedTime))
+        .setType(type)
+        .setAggregate(aggregate);
+    if (serverIp != null) {
+      try {
+        report.setServerIp(InetAddress.getByAddress(serverIp));
+      } catch (UnknownHostException e) {
+        // Rethrow this as unchecked; we got these bytes from a valid address, so this should never
+        // occur.
+        throw new IllegalStateException(e);
+      }
+    }
     return report;
   }
 
@@ -42,7 +104,113 @@ public class QueuedReport {
     return group;
   }
 
-  private Report report;
+  /** Returns the number of times we've tried (and failed) to upload this report. */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * Returns whether this report is <em>pending</em>.  A pending report is one that is currently
+   * part of a {@link ReportBatch} that is being uploaded; it won't be included in any other batch
+   * until that upload finishes.
+   */
+  public boolean isPending() {
+    return pending;
+  }
+
+  void setPending(boolean pending) {
+    this.pending = pending;
+  }
+
+  void recordFailedAttempt() {
+    this.attempts++;
+    this.pending = false;
+  }
+
+  /** Returns whether the report has a timestamp. */
+  boolean hasTimestamp() {
+    return timestamp != NO_VALUE;
+  }
+
+  /**
+   * Returns the report's timestamp in milliseconds.  Only valid if {@link #hasTimestamp} is true.
+   */
+  long getTimestampMillis() {
+    return timestamp;
+  }
+
+  /**
+   * Returns whether the report was created before <code>cutoff</code>.  Reports without a
+   * timestamp are never considered old.
+   */
+  boolean isOlderThan(Instant cutoff) {
+    return timestamp != NO_VALUE && timestamp < cutoff.getMillis();
+  }
+
+  String getUriString() {
+    return uri;
+  }
+
+  String getReferrerString() {
+    return referrer;
+  }
+
+  double getSamplingFraction() {
+    return samplingFraction;
+  }
+
+  /**
+   * Multiplies the report's sampling fraction by <code>factor</code>, when the report has to stand
+   * in for other reports that were dropped.
+   */
+  void scaleSamplingFraction(double factor) {
+    samplingFraction *= factor;
+  }
+
+  byte[] getServerIpAddress() {
+    return serverIp;
+  }
+
+  String getProtocol() {
+    return protocol;
+  }
+
+  int getStatusCode() {
+    return statusCode;
+  }
+
+  /** Returns whether the report has an elapsed time. */
+  boolean hasElapsedTime() {
+    return elapsedTime != NO_VALUE;
+  }
+
+  long getElapsedMillis() {
+    return elapsedTime;
+  }
+
+  Type getType() {
+    return type;
+  }
+
+  ReportAggregate getAggregate() {
+    return aggregate;
+  }
+
+  /** Marks a timestamp or duration that the original report didn't have. */
+  private static final long NO_VALUE = Long.MIN_VALUE;
+
+  private long timestamp;
+  private String uri;
+  private String referrer;
+  private double samplingFraction;
+  private byte[] serverIp;
+  private String protocol;
+  private int statusCode;
+  private long elapsedTime;
+  private Type type;
+  private ReportAggregate aggregate;
   private Origin origin;
   private String group;
+  private volatile int attempts;
+  private volatile boolean pending;
 }
@@ -15,12 +15,14 @@
 
 package nel;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
 
@@ -88,6 +90,46 @@ public class Report {
     return type;
   }
 
+  /**
+   * Returns the summary of all of the requests that this report stands for, if a {@link
+   * ReportAggregator} merged several identical reports into this one, or <code>null</code> if this
+   * report describes a single request.
+   */
+  public ReportAggregate getAggregate() {
+    return aggregate;
+  }
+
+  /**
+   * Returns the string form of {@link #getUri}.  We cache this, since we need it more than once
+   * every time we render the report.
+   */
+  String getUriString() {
+    if (uriString == null) {
+      uriString = uri.toString();
+    }
+    return uriString;
+  }
+
+  /**
+   * Returns the string form of {@link #getReferrer}, which must not be <code>null</code>.
+   */
+  String getReferrerString() {
+    if (referrerString == null) {
+      referrerString = referrer.toString();
+    }
+    return referrerString;
+  }
+
+  /**
+   * Returns the string form of {@link #getServerIp}, which must not be <code>null</code>.
+   */
+  String getServerIpString() {
+    if (serverIpString == null) {
+      serverIpString = serverIp.getHostAddress();
+    }
+    return serverIpString;
+  }
+
   /** Sets the timestamp of this report. */
   public Report setTimestamp(Instant timestamp) {
     this.timestamp = timestamp;
@@ -102,6 +144,7 @@ public class Report {
     // Remove the fragment identifier from the URI, if any.
     try {
       this.uri = new URI(uri.getScheme(), uri.getSchemeSpecificPart(), null);
+      this.uriString = null;
     } catch (URISyntaxException e) {
       // Rethrow this as unchecked; we started with a valid URI, so this should never occur.
       throw new IllegalArgumentException(e);
@@ -125,6 +168,7 @@ public class Report {
   /** Sets the referrer URI of this report. */
   public Report setReferrer(URI referrer) {
     this.referrer = referrer;
+    this.referrerString = null;
     return this;
   }
 
@@ -137,6 +181,7 @@ public class Report {
   /** Sets the server IP address of this report. */
   public Report setServerIp(InetAddress serverIp) {
     this.serverIp = serverIp;
+    this.serverIpString = null;
     return this;
   }
 
@@ -178,6 +223,12 @@ public class Report {
     return this;
   }
 
+  /** Sets the aggregate summary of this report. */
+  public Report setAggregate(ReportAggregate aggregate) {
+    this.aggregate = aggregate;
+    return this;
+  }
+
   /**
    * Renders this report in JSON, using the current system time to calculate the <code>age</code> of
    * the report.
@@ -191,9 +242,18 @@ public class Report {
    * report.
    */
   public String toString(Instant now) {
-    GsonBuilder builder = new GsonBuilder();
-    builder.registerTypeAdapter(Report.class, new ReportJsonAdapter(now));
-    return builder.setPrettyPrinting().create().toJson(this);
+    StringWriter output = new StringWriter();
+    try {
+      JsonWriter writer = ReportJsonAdapter.newWriter(output);
+      writer.setIndent("  ");
+      ReportJsonAdapter.writeReport(writer, this, now);
+      writer.close();
+    } catch (IOException e) {
+      // Rethrow this as unchecked; we're writing to an in-memory buffer, so this should never
+      // occur.
+      throw new IllegalStateException(e);
+    }
+    return output.toString();
   }
 
   private Instant timestamp;
@@ -205,4 +265,10 @@ public class Report {
   private int statusCode;
   private Duration elapsedTime;
   private Type type;
+  private ReportAggregate aggregate;
+
+  // Cached string forms of some of the above fields.
+  private String uriString;
+  private String referrerString;
+  private String serverIpString;
 }
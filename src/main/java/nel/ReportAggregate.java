@@ -0,0 +1,127 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.Arrays;
+
+import org.joda.time.Duration;
+
+/**
+ * Summarizes the elapsed times of a group of identical reports that a {@link ReportAggregator} has
+ * merged into a single {@link Report}: how many there were, the fastest and slowest, and a
+ * histogram.
+ *
+ * <p>
+ * The histogram has a fixed set of buckets, so that aggregates from different clients can be
+ * added together by the collector.  Bucket <code>i</code> counts the requests whose elapsed time
+ * was at most {@link #getHistogramUpperBound getHistogramUpperBound(i)} milliseconds, and more
+ * than the upper bound of bucket <code>i - 1</code>.
+ * </p>
+ */
+public class ReportAggregate {
+  /** Creates a new aggregate that contains a single request. */
+  public ReportAggregate(Duration elapsedTime) {
+    this.histogram = new int[HISTOGRAM_UPPER_BOUNDS.length];
+    this.count = 0;
+    this.totalMillis = 0;
+    this.minMillis = Long.MAX_VALUE;
+    this.maxMillis = Long.MIN_VALUE;
+    add(elapsedTime);
+  }
+
+  /** Adds another request to this aggregate. */
+  public void add(Duration elapsedTime) {
+    long millis = elapsedTime.getMillis();
+    count++;
+    totalMillis += millis;
+    minMillis = Math.min(minMillis, millis);
+    maxMillis = Math.max(maxMillis, millis);
+    histogram[histogramBucket(millis)]++;
+  }
+
+  /** Returns the number of requests in this aggregate. */
+  public int getCount() {
+    return count;
+  }
+
+  public Duration getMinElapsedTime() {
+    return Duration.millis(minMillis);
+  }
+
+  public Duration getMaxElapsedTime() {
+    return Duration.millis(maxMillis);
+  }
+
+  /** Returns the mean elapsed time, rounded down to the nearest millisecond. */
+  public Duration getMeanElapsedTime() {
+    return Duration.millis(totalMillis / count);
+  }
+
+  /** Returns the number of requests in histogram bucket <code>bucket</code>. */
+  public int getHistogramCount(int bucket) {
+    return histogram[bucket];
+  }
+
+  /** Returns the number of buckets in every aggregate's histogram. */
+  public static int getHistogramBucketCount() {
+    return HISTOGRAM_UPPER_BOUNDS.length;
+  }
+
+  /**
+   * Returns the largest elapsed time, in milliseconds, that falls into histogram bucket
+   * <code>bucket</code>.  The last bucket's bound is {@link Long#MAX_VALUE}.
+   */
+  public static long getHistogramUpperBound(int bucket) {
+    return HISTOGRAM_UPPER_BOUNDS[bucket];
+  }
+
+  static int histogramBucket(long millis) {
+    int bucket = Arrays.binarySearch(HISTOGRAM_UPPER_BOUNDS, millis);
+    return bucket >= 0 ? bucket : -bucket - 1;
+  }
+
+  /**
+   * Restores an aggregate's exact state; used when decoding reports that were stored outside of
+   * the heap.
+   */
+  static ReportAggregate restore(int count, long totalMillis, long minMillis, long maxMillis,
+      int[] histogram) {
+    if (count <= 0 || histogram.length != HISTOGRAM_UPPER_BOUNDS.length) {
+      throw new IllegalArgumentException("Invalid report aggregate");
+    }
+    ReportAggregate aggregate = new ReportAggregate(Duration.ZERO);
+    aggregate.count = count;
+    aggregate.totalMillis = totalMillis;
+    aggregate.minMillis = minMillis;
+    aggregate.maxMillis = maxMillis;
+    System.arraycopy(histogram, 0, aggregate.histogram, 0, histogram.length);
+    return aggregate;
+  }
+
+  long getTotalMillis() {
+    return totalMillis;
+  }
+
+  private static final long[] HISTOGRAM_UPPER_BOUNDS = {
+    10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, Long.MAX_VALUE,
+  };
+
+  private int count;
+  private long totalMillis;
+  private long minMillis;
+  private long maxMillis;
+  private int[] histogram;
+}
@@ -0,0 +1,326 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * An optional stage in front of {@link ReportingCache#enqueueReport} that merges identical reports
+ * into a single report with a {@link ReportAggregate}, instead of queueing and uploading each one
+ * separately.  During an outage, a client can generate thousands of reports per second that only
+ * differ in their timestamp and elapsed time; aggregating them keeps the queue and the uploads
+ * small.
+ *
+ * <p>
+ * Two reports are merged if they have the same origin, error type, and sampling fraction, and
+ * agree on every {@link Field} in the aggregator's key.  Fields that aren't part of the key are
+ * left out of the merged report, since its requests might not agree on them.  The merged report
+ * has the timestamp of the earliest request, and the mean elapsed time of all of them.  A report
+ * that nothing else was merged into is passed on to the cache unchanged.
+ * </p>
+ *
+ * <p>
+ * Reports are held by the aggregator until the next call to {@link #flush}, which you can also
+ * schedule via {@link #start}.  To bound memory, the aggregator tracks at most a fixed number of
+ * distinct keys; once it's full, reports with new keys are passed straight to the cache.  All
+ * methods are synchronized, so the aggregator can be shared between threads if its cache is a
+ * {@link ConcurrentReportingCache}.
+ * </p>
+ */
+public class ReportAggregator {
+  /** The report fields that can be included in an aggregation key. */
+  public enum Field {
+    /** The full URI of the original request, including any query. */
+    URI,
+    /** The path of the original request's URI. */
+    PATH,
+    REFERRER,
+    SERVER_IP,
+    PROTOCOL,
+    STATUS_CODE,
+  }
+
+  /**
+   * Creates a new aggregator that merges reports for <code>cache</code> that have the same path,
+   * server IP, and status code.
+   */
+  public ReportAggregator(ReportingCache cache) {
+    this(cache, EnumSet.of(Field.PATH, Field.SERVER_IP, Field.STATUS_CODE), DEFAULT_MAX_KEYS);
+  }
+
+  /**
+   * Creates a new aggregator that merges reports for <code>cache</code> that agree on all of the
+   * given <code>fields</code>, keeping track of at most <code>maxKeys</code> distinct keys between
+   * flushes.
+   */
+  public ReportAggregator(ReportingCache cache, Set<Field> fields, int maxKeys) {
+    if (maxKeys < 1) {
+      throw new IllegalArgumentException("maxKeys must be at least 1");
+    }
+    this.cache = cache;
+    this.fields = fields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(fields);
+    this.maxKeys = maxKeys;
+    this.pending = new LinkedHashMap<Key, Pending>();
+    this.aggregatedReports = 0;
+  }
+
+  /** Returns the fields that are part of this aggregator's key. */
+  public Set<Field> getFields() {
+    return Collections.unmodifiableSet(fields);
+  }
+
+  /**
+   * Adds a new report, merging it with any pending report that has the same key.  The report must
+   * have a URI, type, and elapsed time.
+   */
+  public synchronized void add(Report report) {
+    Key key = new Key(report, fields);
+    Pending existing = pending.get(key);
+    if (existing != null) {
+      if (!existing.merged) {
+        // This is the first merge for this key, so swap the original report for a new one that
+        // only has the key's fields.
+        Report first = existing.report;
+        existing.report = key.newReport(first);
+        existing.report.setAggregate(new ReportAggregate(first.getElapsedTime()));
+        existing.merged = true;
+      }
+      Report merged = existing.report;
+      merged.getAggregate().add(report.getElapsedTime());
+      Instant timestamp = report.getTimestamp();
+      if (timestamp != null
+          && (merged.getTimestamp() == null || timestamp.isBefore(merged.getTimestamp()))) {
+        merged.setTimestamp(timestamp);
+      }
+      aggregatedReports++;
+      return;
+    }
+    if (pending.size() >= maxKeys) {
+      cache.enqueueReport(report);
+      return;
+    }
+    pending.put(key, new Pending(report));
+  }
+
+  /** Returns the number of distinct reports that are waiting for the next flush. */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Returns the total number of reports that have been merged into another report, and so didn't
+   * need to be queued separately.
+   */
+  public synchronized long getAggregatedReportCount() {
+    return aggregatedReports;
+  }
+
+  /** Enqueues all of the pending reports in the cache.  Returns the number of reports enqueued. */
+  public int flush() {
+    ArrayList<Pending> reports;
+    synchronized (this) {
+      reports = new ArrayList<Pending>(pending.values());
+      pending.clear();
+    }
+    for (Pending entry : reports) {
+      if (entry.merged) {
+        entry.report.setElapsedTime(entry.report.getAggregate().getMeanElapsedTime());
+      }
+      cache.enqueueReport(entry.report);
+    }
+    return reports.size();
+  }
+
+  /**
+   * Calls {@link #flush} on <code>timer</code> every <code>interval</code>, until {@link #stop} is
+   * called.  If a call throws, we pass the exception to the timer thread's uncaught exception
+   * handler and keep going.
+   */
+  public synchronized void start(ScheduledExecutorService timer, Duration interval) {
+    if (ticker != null) {
+      throw new IllegalStateException("Aggregator is already running");
+    }
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          // If this escaped, the timer would cancel the schedule, and pending reports would never
+          // be flushed again.
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    };
+    ticker = timer.scheduleWithFixedDelay(
+        task, interval.getMillis(), interval.getMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops flushing periodically.  Any pending reports stay pending until the next flush. */
+  public synchronized void stop() {
+    if (ticker != null) {
+      ticker.cancel(false);
+      ticker = null;
+    }
+  }
+
+  /**
+   * A report waiting for the next flush.  Until a second report is merged into it, this is the
+   * original report, which we pass on as-is if nothing else arrives with the same key.
+   */
+  private static class Pending {
+    Pending(Report report) {
+      this.report = report;
+      this.merged = false;
+    }
+
+    private Report report;
+    private boolean merged;
+  }
+
+  /**
+   * The values of the fields that reports must agree on to be merged.  Unless the full URI is part
+   * of the key, we key on the URI's raw scheme, authority, and path strings, and only build a URI
+   * from them once we actually need a merged report.
+   */
+  private static class Key {
+    Key(Report report, Set<Field> fields) {
+      URI uri = report.getUri();
+      this.type = report.getType().toString();
+      this.samplingFraction = report.getSamplingFraction();
+      if (fields.contains(Field.URI)) {
+        this.uri = uri;
+      } else {
+        this.scheme = uri.getScheme();
+        this.authority = uri.getRawAuthority();
+        this.path = fields.contains(Field.PATH) ? uri.getRawPath() : null;
+      }
+      this.referrer = fields.contains(Field.REFERRER) ? report.getReferrer() : null;
+      this.serverIp = fields.contains(Field.SERVER_IP) ? report.getServerIp() : null;
+      this.protocol = fields.contains(Field.PROTOCOL) ? report.getProtocol() : null;
+      this.statusCode = fields.contains(Field.STATUS_CODE) ? report.getStatusCode() : 0;
+      this.hash = computeHash();
+    }
+
+    /** Returns the URI that a merged report with this key should have. */
+    private URI mergedUri() {
+      if (uri != null) {
+        return uri;
+      }
+      try {
+        return new URI(scheme + "://" + authority
+            + (path == null || path.isEmpty() ? "/" : path));
+      } catch (URISyntaxException e) {
+        // Rethrow this as unchecked; we started with a valid URI, so this should never occur.
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    /**
+     * Creates the report that later reports with this key will be merged into.  It only contains
+     * the fields that are part of the key.
+     */
+    Report newReport(Report first) {
+      return new Report()
+          .setTimestamp(first.getTimestamp())
+          .setUri(mergedUri())
+          .setReferrer(referrer)
+          .setSamplingFraction(samplingFraction)
+          .setServerIp(serverIp)
+          .setProtocol(protocol)
+          .setStatusCode(statusCode)
+          .setElapsedTime(first.getElapsedTime())
+          .setType(first.getType());
+    }
+
+    private int computeHash() {
+      int result = type.hashCode();
+      result = 31 * result + Double.valueOf(samplingFraction).hashCode();
+      result = 31 * result + (uri == null ? 0 : uri.hashCode());
+      result = 31 * result + (scheme == null ? 0 : scheme.hashCode());
+      result = 31 * result + (authority == null ? 0 : authority.hashCode());
+      result = 31 * result + (path == null ? 0 : path.hashCode());
+      result = 31 * result + (referrer == null ? 0 : referrer.hashCode());
+      result = 31 * result + (serverIp == null ? 0 : serverIp.hashCode());
+      result = 31 * result + (protocol == null ? 0 : protocol.hashCode());
+      result = 31 * result + statusCode;
+      return result;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return this.hash == other.hash
+          && this.statusCode == other.statusCode
+          && Double.compare(this.samplingFraction, other.samplingFraction) == 0
+          && this.type.equals(other.type)
+          && equal(this.uri, other.uri)
+          && equal(this.scheme, other.scheme)
+          && equal(this.authority, other.authority)
+          && equal(this.path, other.path)
+          && equal(this.referrer, other.referrer)
+          && equal(this.serverIp, other.serverIp)
+          && equal(this.protocol, other.protocol);
+    }
+
+    private static boolean equal(Object a, Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    private String type;
+    private double samplingFraction;
+    private URI uri;
+    private String scheme;
+    private String authority;
+    private String path;
+    private URI referrer;
+    private InetAddress serverIp;
+    private String protocol;
+    private int statusCode;
+    private int hash;
+  }
+
+  private static final int DEFAULT_MAX_KEYS = 10000;
+
+  private ReportingCache cache;
+  private EnumSet<Field> fields;
+  private int maxKeys;
+  private LinkedHashMap<Key, Pending> pending;
+  private long aggregatedReports;
+  private ScheduledFuture<?> ticker;
+}
@@ -0,0 +1,160 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Instant;
+
+/**
+ * A set of queued reports that will be uploaded together, in a single request, to a particular
+ * {@link Endpoint}.  All of the reports in a batch were generated for the same origin, and are
+ * destined for the same endpoint group.
+ *
+ * <p>
+ * A batch can also be <em>size-limited</em>, in which case it holds on to the encoded JSON of its
+ * reports as they are added, so that it can tell whether another report will fit without
+ * exceeding its limits.  Size-limited batches always render that stored payload, so the
+ * <code>age</code> of each report is as of when it was added to the batch.
+ * </p>
+ */
+public class ReportBatch {
+  /** Creates a new, empty batch. */
+  public ReportBatch(Origin origin, String group, Endpoint endpoint) {
+    this.origin = origin;
+    this.group = group;
+    this.endpoint = endpoint;
+    this.reports = new ArrayList<QueuedReport>();
+    this.payload = null;
+    this.maxReports = Integer.MAX_VALUE;
+    this.maxBytes = Long.MAX_VALUE;
+  }
+
+  /**
+   * Creates a new, empty size-limited batch, which will hold at most <code>maxReports</code>
+   * reports, and whose payload will be at most <code>maxBytes</code> bytes long.  A single report
+   * that's larger than <code>maxBytes</code> gets a batch all to itself.
+   */
+  ReportBatch(Origin origin, String group, Endpoint endpoint, int maxReports, long maxBytes) {
+    this(origin, group, endpoint);
+    this.payload = new ByteArrayOutputStream();
+    this.payload.write('[');
+    this.maxReports = maxReports;
+    this.maxBytes = maxBytes;
+  }
+
+  public Origin getOrigin() {
+    return origin;
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public Endpoint getEndpoint() {
+    return endpoint;
+  }
+
+  /** Returns the queued reports in this batch. */
+  public List<QueuedReport> getReports() {
+    return reports;
+  }
+
+  /** Adds a queued report to this batch. */
+  public void addReport(QueuedReport report) {
+    if (payload != null) {
+      throw new IllegalStateException("Size-limited batches only accept encoded reports");
+    }
+    reports.add(report);
+  }
+
+  /**
+   * Returns whether a report whose encoded JSON is <code>size</code> bytes long can be added to
+   * this size-limited batch without exceeding its limits.
+   */
+  boolean fits(int size) {
+    if (reports.isEmpty()) {
+      return true;
+    }
+    // One byte for the separating comma, and one for the closing bracket.
+    return reports.size() < maxReports && payload.size() + 1L + size + 1L <= maxBytes;
+  }
+
+  /**
+   * Adds a queued report to this size-limited batch, along with its encoded JSON.  The encoded
+   * bytes are copied as-is, so the report doesn't have to be encoded again.
+   */
+  void addEncodedReport(QueuedReport report, ByteArrayOutputStream encoded) {
+    if (!reports.isEmpty()) {
+      payload.write(',');
+    }
+    try {
+      encoded.writeTo(payload);
+    } catch (IOException e) {
+      // Rethrow this as unchecked; we're writing to an in-memory buffer, so this should never
+      // occur.
+      throw new IllegalStateException(e);
+    }
+    reports.add(report);
+  }
+
+  /**
+   * Renders all of the reports in this batch as a single UTF-8 encoded JSON array, using
+   * <code>now</code> to calculate the <code>age</code> of each report.
+   */
+  public byte[] serialize(Instant now) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      writeTo(new ReportEncoder(), now, output);
+    } catch (IOException e) {
+      // Rethrow this as unchecked; we're writing to an in-memory buffer, so this should never
+      // occur.
+      throw new IllegalStateException(e);
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Renders all of the reports in this batch as a single UTF-8 encoded JSON array, streaming the
+   * result to <code>output</code>.
+   */
+  public void writeTo(ReportEncoder encoder, Instant now, OutputStream output) throws IOException {
+    if (payload != null) {
+      payload.writeTo(output);
+      output.write(']');
+      return;
+    }
+    encoder.encodeQueued(reports, now, output);
+  }
+
+  @Override
+  public String toString() {
+    return "ReportBatch(origin=" + origin + ", group=" + group + ", endpoint=" + endpoint
+        + ", reports=" + Integer.toString(reports.size()) + ")";
+  }
+
+  private Origin origin;
+  private String group;
+  private Endpoint endpoint;
+  private ArrayList<QueuedReport> reports;
+  private ByteArrayOutputStream payload;
+  private int maxReports;
+  private long maxBytes;
+}
@@ -0,0 +1,49 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+/**
+ * Assigns queued reports to fixed-width time buckets, so that a {@link ReportQueue} can expire old
+ * reports a bucket at a time.
+ */
+class ReportBuckets {
+  private ReportBuckets() {}
+
+  /**
+   * The bucket for reports without a timestamp.  It sorts after every real bucket, so those
+   * reports are never expired.
+   */
+  static final long UNTIMESTAMPED = Long.MAX_VALUE;
+
+  /** Returns the bucket that <code>report</code> belongs in. */
+  static long bucketOf(QueuedReport report, long bucketWidth) {
+    if (!report.hasTimestamp()) {
+      return UNTIMESTAMPED;
+    }
+    return bucketOf(report.getTimestampMillis(), bucketWidth);
+  }
+
+  /** Returns the bucket that contains the instant <code>millis</code>. */
+  static long bucketOf(long millis, long bucketWidth) {
+    long bucket = millis / bucketWidth;
+    // Round towards negative infinity, so that instants before the epoch still land in the right
+    // bucket.
+    if (millis < 0 && bucket * bucketWidth != millis) {
+      bucket--;
+    }
+    return bucket;
+  }
+}
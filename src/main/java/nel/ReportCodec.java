@@ -0,0 +1,169 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * A compact binary encoding for {@link QueuedReport}s, used when we need to store reports outside
+ * of the heap.  Optional fields are preceded by a presence flag, strings are length-prefixed UTF-8,
+ * and timestamps and durations are stored as milliseconds.  Only the report itself and its endpoint
+ * group are stored; upload bookkeeping like the number of attempts starts over when a report is
+ * decoded.
+ */
+class ReportCodec {
+  private ReportCodec() {}
+
+  /**
+   * Encodes <code>queuedReport</code> into <code>buffer</code>, starting at its current position.
+   * Throws {@link java.nio.BufferOverflowException} if it doesn't fit.
+   */
+  static void encode(QueuedReport queuedReport, ByteBuffer buffer) {
+    buffer.put(VERSION);
+    writeString(buffer, queuedReport.getGroup());
+    if (queuedReport.hasTimestamp()) {
+      buffer.put((byte) 1);
+      buffer.putLong(queuedReport.getTimestampMillis());
+    } else {
+      buffer.put((byte) 0);
+    }
+    writeString(buffer, queuedReport.getUriString());
+    writeString(buffer, queuedReport.getReferrerString());
+    buffer.putDouble(queuedReport.getSamplingFraction());
+    byte[] address = queuedReport.getServerIpAddress();
+    if (address == null) {
+      buffer.put((byte) 0);
+    } else {
+      buffer.put((byte) address.length);
+      buffer.put(address);
+    }
+    writeString(buffer, queuedReport.getProtocol());
+    buffer.putInt(queuedReport.getStatusCode());
+    buffer.putLong(queuedReport.hasElapsedTime() ? queuedReport.getElapsedMillis() : -1);
+    Type type = queuedReport.getType();
+    writeString(buffer, type == null ? null : type.toString());
+    ReportAggregate aggregate = queuedReport.getAggregate();
+    if (aggregate == null) {
+      buffer.put((byte) 0);
+    } else {
+      buffer.put((byte) 1);
+      buffer.putInt(aggregate.getCount());
+      buffer.putLong(aggregate.getTotalMillis());
+      buffer.putLong(aggregate.getMinElapsedTime().getMillis());
+      buffer.putLong(aggregate.getMaxElapsedTime().getMillis());
+      for (int i = 0; i < ReportAggregate.getHistogramBucketCount(); i++) {
+        buffer.putInt(aggregate.getHistogramCount(i));
+      }
+    }
+  }
+
+  /**
+   * Decodes a report from <code>buffer</code>, starting at its current position.  Throws {@link
+   * IllegalArgumentException} if the buffer doesn't contain a valid encoded report.
+   */
+  static QueuedReport decode(ByteBuffer buffer) {
+    try {
+      byte version = buffer.get();
+      if (version != VERSION && version != VERSION_WITHOUT_AGGREGATES) {
+        throw new IllegalArgumentException("Unknown report encoding " + Byte.toString(version));
+      }
+      String group = readString(buffer);
+      Report report = new Report().setTimestamp(readInstant(buffer));
+      String uri = readString(buffer);
+      if (uri != null) {
+        report.setUri(uri);
+      }
+      String referrer = readString(buffer);
+      if (referrer != null) {
+        report.setReferrer(URI.create(referrer));
+      }
+      report.setSamplingFraction(buffer.getDouble());
+      int addressLength = buffer.get();
+      if (addressLength < 0) {
+        throw new IllegalArgumentException("Invalid server IP length");
+      }
+      if (addressLength != 0) {
+        byte[] address = new byte[addressLength];
+        buffer.get(address);
+        report.setServerIp(InetAddress.getByAddress(address));
+      }
+      report.setProtocol(readString(buffer));
+      report.setStatusCode(buffer.getInt());
+      long elapsed = buffer.getLong();
+      report.setElapsedTime(elapsed == -1 ? null : Duration.millis(elapsed));
+      String type = readString(buffer);
+      report.setType(type == null ? null : Type.other(type));
+      if (version != VERSION_WITHOUT_AGGREGATES && buffer.get() != 0) {
+        int count = buffer.getInt();
+        long total = buffer.getLong();
+        long min = buffer.getLong();
+        long max = buffer.getLong();
+        int[] histogram = new int[ReportAggregate.getHistogramBucketCount()];
+        for (int i = 0; i < histogram.length; i++) {
+          histogram[i] = buffer.getInt();
+        }
+        report.setAggregate(ReportAggregate.restore(count, total, min, max, histogram));
+      }
+      return new QueuedReport(report, group);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated report", e);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid server IP", e);
+    }
+  }
+
+  private static Instant readInstant(ByteBuffer buffer) {
+    return buffer.get() == 0 ? null : new Instant(buffer.getLong());
+  }
+
+  private static void writeString(ByteBuffer buffer, String value) {
+    if (value == null) {
+      buffer.putInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid string length " + Integer.toString(length));
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static final byte VERSION = 2;
+
+  /**
+   * The original encoding, which predates {@link ReportAggregate}s.
+   */
+  private static final byte VERSION_WITHOUT_AGGREGATES = 1;
+}
@@ -0,0 +1,40 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Handles the actual HTTP communication needed to upload reports to a collector.  You must provide
+ * an implementation of this interface that uses whichever HTTP request library you're integrating
+ * with.
+ */
+public interface ReportDeliverer {
+  /**
+   * Uploads a batch of reports to a collector.  <code>payload</code> is a UTF-8 encoded JSON array
+   * of reports, and should be sent as the body of a <code>POST</code> request to <code>url</code>,
+   * with a <code>Content-Type</code> of <code>application/reports+json</code>.
+   *
+   * <p>
+   * Implementations should throw an exception if the upload fails for any reason, including the
+   * collector responding with a non-2xx status code.  The reports in the batch will stay queued,
+   * and the endpoint will be marked as pending so that we don't try to upload to it again right
+   * away.
+   * </p>
+   */
+  void deliverReports(URL url, byte[] payload) throws IOException;
+}
@@ -0,0 +1,407 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.joda.time.Instant;
+
+/**
+ * Renders batches of {@link Report}s as compact, UTF-8 encoded JSON, writing bytes directly to an
+ * {@link OutputStream}, {@link WritableByteChannel}, or {@link ByteBuffer}.  The output is
+ * byte-for-byte identical to what {@link ReportJsonAdapter} produces without pretty-printing, but
+ * we don't create any intermediate <code>String</code>s or <code>char</code> buffers along the way.
+ *
+ * <p>
+ * Each encoder owns a small scratch buffer, which is reused for every batch.  Encoders are not
+ * thread-safe; use a separate encoder for each thread that uploads reports.
+ * </p>
+ */
+public class ReportEncoder {
+  /** Creates a new encoder. */
+  public ReportEncoder() {
+    this.buffer = new byte[BUFFER_SIZE];
+    this.wrapped = ByteBuffer.wrap(buffer);
+    this.count = 0;
+  }
+
+  /**
+   * Renders <code>reports</code> as a JSON array, writing the result to <code>output</code>.  Uses
+   * <code>now</code> to calculate the <code>age</code> of each report.
+   */
+  public void encode(Iterable<Report> reports, Instant now, OutputStream output)
+      throws IOException {
+    this.output = output;
+    try {
+      encodeArray(reports, now);
+    } finally {
+      this.output = null;
+    }
+  }
+
+  /**
+   * Renders <code>reports</code> as a JSON array, writing the result to <code>channel</code>.  Uses
+   * <code>now</code> to calculate the <code>age</code> of each report.
+   */
+  public void encode(Iterable<Report> reports, Instant now, WritableByteChannel channel)
+      throws IOException {
+    this.channel = channel;
+    try {
+      encodeArray(reports, now);
+    } finally {
+      this.channel = null;
+    }
+  }
+
+  /**
+   * Renders <code>reports</code> as a JSON array, writing the result into <code>target</code>
+   * starting at its current position.  Throws {@link java.nio.BufferOverflowException} if the
+   * result doesn't fit.
+   */
+  public void encode(Iterable<Report> reports, Instant now, ByteBuffer target) {
+    this.target = target;
+    try {
+      encodeArray(reports, now);
+    } catch (IOException e) {
+      // Rethrow this as unchecked; we only write to memory, so this should never occur.
+      throw new IllegalStateException(e);
+    } finally {
+      this.target = null;
+    }
+  }
+
+  /**
+   * Renders queued reports as a JSON array, writing the result to <code>output</code>.  This reads
+   * each report's fields directly, instead of rebuilding a {@link Report} for it.
+   */
+  void encodeQueued(Iterable<QueuedReport> reports, Instant now, OutputStream output)
+      throws IOException {
+    this.output = output;
+    try {
+      count = 0;
+      writeByte('[');
+      boolean first = true;
+      for (QueuedReport report : reports) {
+        if (!first) {
+          writeByte(',');
+        }
+        first = false;
+        writeReport(report, now);
+      }
+      writeByte(']');
+      flushBuffer();
+    } finally {
+      this.output = null;
+    }
+  }
+
+  /**
+   * Renders a single queued report as a JSON object, without the surrounding array, writing the
+   * result to <code>output</code>.  This lets callers measure each report's encoded size as they
+   * assemble a batch.
+   */
+  void encodeReport(QueuedReport report, Instant now, OutputStream output) throws IOException {
+    this.output = output;
+    try {
+      count = 0;
+      writeReport(report, now);
+      flushBuffer();
+    } finally {
+      this.output = null;
+    }
+  }
+
+  private void encodeArray(Iterable<Report> reports, Instant now) throws IOException {
+    count = 0;
+    writeByte('[');
+    boolean first = true;
+    for (Report report : reports) {
+      if (!first) {
+        writeByte(',');
+      }
+      first = false;
+      writeReport(report, now);
+    }
+    writeByte(']');
+    flushBuffer();
+  }
+
+  /**
+   * Renders a single report, using the same fields and ordering as {@link ReportJsonAdapter}.
+   */
+  private void writeReport(Report report, Instant now) throws IOException {
+    Instant timestamp = report.getTimestamp();
+    writeHead(timestamp != null, timestamp == null ? 0 : now.getMillis() - timestamp.getMillis(),
+        report.getUriString(), report.getReferrer() == null ? null : report.getReferrerString(),
+        report.getSamplingFraction());
+    if (report.getServerIp() != null) {
+      writeAscii(",\"server-ip\":");
+      writeString(report.getServerIpString());
+    }
+    writeTail(report.getProtocol(), report.getStatusCode(), report.getElapsedTime().getMillis(),
+        report.getType(), report.getAggregate());
+  }
+
+  /** Renders a queued report exactly as we would render the report that it was created from. */
+  private void writeReport(QueuedReport report, Instant now) throws IOException {
+    if (!report.hasElapsedTime()) {
+      throw new IllegalStateException("Report has no elapsed time");
+    }
+    writeHead(report.hasTimestamp(), now.getMillis() - report.getTimestampMillis(),
+        report.getUriString(), report.getReferrerString(), report.getSamplingFraction());
+    byte[] serverIp = report.getServerIpAddress();
+    if (serverIp != null) {
+      writeAscii(",\"server-ip\":");
+      writeServerIp(serverIp);
+    }
+    writeTail(report.getProtocol(), report.getStatusCode(), report.getElapsedMillis(),
+        report.getType(), report.getAggregate());
+  }
+
+  /** Renders the fields of a report up to, but not including, <code>server-ip</code>. */
+  private void writeHead(boolean hasAge, long age, String uri, String referrer,
+      double samplingFraction) throws IOException {
+    writeAscii("{");
+    if (hasAge) {
+      writeAscii("\"age\":");
+      writeLong(age);
+      writeByte(',');
+    }
+    writeAscii("\"type\":\"network-error\",\"url\":");
+    writeString(uri);
+    writeAscii(",\"body\":{\"uri\":");
+    writeString(uri);
+    if (referrer != null) {
+      writeAscii(",\"referrer\":");
+      writeString(referrer);
+    }
+    writeAscii(",\"sampling-fraction\":");
+    writeAscii(Double.toString(samplingFraction));
+  }
+
+  /**
+   * Writes a server IP from its raw address bytes, in the same form as {@link
+   * InetAddress#getHostAddress}.  IPv4 addresses are written directly; we only create an
+   * <code>InetAddress</code> for IPv6 ones.
+   */
+  private void writeServerIp(byte[] address) throws IOException {
+    if (address.length != 4) {
+      try {
+        writeString(InetAddress.getByAddress(address).getHostAddress());
+      } catch (UnknownHostException e) {
+        // Rethrow this as unchecked; we got these bytes from a valid address, so this should never
+        // occur.
+        throw new IllegalStateException(e);
+      }
+      return;
+    }
+    writeByte('"');
+    for (int i = 0; i < address.length; i++) {
+      if (i != 0) {
+        writeByte('.');
+      }
+      writeLong(address[i] & 0xff);
+    }
+    writeByte('"');
+  }
+
+  /** Renders the fields of a report after <code>server-ip</code>, and closes the object. */
+  private void writeTail(String protocol, int statusCode, long elapsedMillis, Type type,
+      ReportAggregate aggregate) throws IOException {
+    if (protocol != null) {
+      writeAscii(",\"protocol\":");
+      writeString(protocol);
+    }
+    if (statusCode != 0) {
+      writeAscii(",\"status-code\":");
+      writeLong(statusCode);
+    }
+    writeAscii(",\"elapsed-time\":");
+    writeLong(elapsedMillis);
+    writeAscii(",\"type\":");
+    writeString(type.toString());
+    if (aggregate != null) {
+      writeAscii(",\"count\":");
+      writeLong(aggregate.getCount());
+      writeAscii(",\"min-elapsed-time\":");
+      writeLong(aggregate.getMinElapsedTime().getMillis());
+      writeAscii(",\"max-elapsed-time\":");
+      writeLong(aggregate.getMaxElapsedTime().getMillis());
+      writeAscii(",\"elapsed-time-histogram\":[");
+      for (int i = 0; i < ReportAggregate.getHistogramBucketCount(); i++) {
+        if (i != 0) {
+          writeByte(',');
+        }
+        writeLong(aggregate.getHistogramCount(i));
+      }
+      writeByte(']');
+    }
+    writeAscii("}}");
+  }
+
+  /** Writes a string that is known to only contain ASCII characters that don't need escaping. */
+  private void writeAscii(String value) throws IOException {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      writeByte(value.charAt(i));
+    }
+  }
+
+  private void writeLong(long value) throws IOException {
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        writeAscii(Long.toString(value));
+        return;
+      }
+      writeByte('-');
+      value = -value;
+    }
+    ensureCapacity(MAX_LONG_DIGITS);
+    int start = count;
+    do {
+      buffer[count++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value != 0);
+    // We wrote the digits in reverse order, so flip them around.
+    for (int i = start, j = count - 1; i < j; i++, j--) {
+      byte tmp = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = tmp;
+    }
+  }
+
+  /**
+   * Writes a quoted, escaped JSON string, encoded in UTF-8.  Escapes the same characters as {@link
+   * com.google.gson.stream.JsonWriter} does in HTML-safe mode.
+   */
+  private void writeString(String value) throws IOException {
+    writeByte('"');
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char ch = value.charAt(i);
+      ensureCapacity(MAX_BYTES_PER_CHAR);
+      if (ch < 0x80) {
+        String replacement = ch < ESCAPES.length ? ESCAPES[ch] : null;
+        if (replacement == null) {
+          buffer[count++] = (byte) ch;
+        } else {
+          for (int j = 0; j < replacement.length(); j++) {
+            buffer[count++] = (byte) replacement.charAt(j);
+          }
+        }
+      } else if (ch == LINE_SEPARATOR || ch == PARAGRAPH_SEPARATOR) {
+        writeUnicodeEscape(ch);
+      } else if (ch < 0x800) {
+        buffer[count++] = (byte) (0xc0 | (ch >> 6));
+        buffer[count++] = (byte) (0x80 | (ch & 0x3f));
+      } else if (Character.isHighSurrogate(ch) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+        buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(ch)) {
+        // An unpaired surrogate can't be encoded in UTF-8; use the replacement character, just
+        // like String.getBytes would.
+        buffer[count++] = (byte) 0xef;
+        buffer[count++] = (byte) 0xbf;
+        buffer[count++] = (byte) 0xbd;
+      } else {
+        buffer[count++] = (byte) (0xe0 | (ch >> 12));
+        buffer[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (ch & 0x3f));
+      }
+    }
+    writeByte('"');
+  }
+
+  private void writeUnicodeEscape(char ch) {
+    buffer[count++] = '\\';
+    buffer[count++] = 'u';
+    for (int shift = 12; shift >= 0; shift -= 4) {
+      buffer[count++] = (byte) HEX_DIGITS.charAt((ch >> shift) & 0xf);
+    }
+  }
+
+  private void writeByte(int value) throws IOException {
+    ensureCapacity(1);
+    buffer[count++] = (byte) value;
+  }
+
+  private void ensureCapacity(int needed) throws IOException {
+    if (count + needed > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count == 0) {
+      return;
+    }
+    if (output != null) {
+      output.write(buffer, 0, count);
+    } else if (channel != null) {
+      wrapped.clear();
+      wrapped.limit(count);
+      while (wrapped.hasRemaining()) {
+        channel.write(wrapped);
+      }
+    } else {
+      target.put(buffer, 0, count);
+    }
+    count = 0;
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_LONG_DIGITS = 19;
+  private static final int MAX_BYTES_PER_CHAR = 6;
+  private static final String HEX_DIGITS = "0123456789abcdef";
+  private static final char LINE_SEPARATOR = 0x2028;
+  private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+  /** The escape sequence for each ASCII character, or <code>null</code> if it's written as-is. */
+  private static final String[] ESCAPES = new String[128];
+
+  static {
+    for (int i = 0; i < 0x20; i++) {
+      ESCAPES[i] = String.format("\\u%04x", i);
+    }
+    ESCAPES['"'] = "\\\"";
+    ESCAPES['\\'] = "\\\\";
+    ESCAPES['\t'] = "\\t";
+    ESCAPES['\b'] = "\\b";
+    ESCAPES['\n'] = "\\n";
+    ESCAPES['\r'] = "\\r";
+    ESCAPES['\f'] = "\\f";
+    // Characters that could be misinterpreted if the JSON were embedded in HTML.
+    for (char ch : "<>&='".toCharArray()) {
+      ESCAPES[ch] = String.format("\\u%04x", (int) ch);
+    }
+  }
+
+  private byte[] buffer;
+  private ByteBuffer wrapped;
+  private int count;
+  private OutputStream output;
+  private WritableByteChannel channel;
+  private ByteBuffer target;
+}
@@ -0,0 +1,100 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * Removes queued reports from a {@link ReportingCache} once they are older than a maximum age,
+ * along with any expired endpoint groups, clients, and NEL policies.  This happens either on demand
+ * via {@link #expire}, or periodically in the background once you call {@link #start}.
+ *
+ * <p>
+ * Running in the background means calling into the cache from the timer's thread, so the cache
+ * must be a {@link ConcurrentReportingCache}.  Both of the built-in in-memory queues organize their
+ * reports by timestamp, so each expiry pass only costs as much as the number of expired buckets.
+ * </p>
+ */
+public class ReportExpirer {
+  /** Creates a new expirer that removes reports older than <code>maxAge</code>. */
+  public ReportExpirer(ReportingCache cache, Duration maxAge, Clock clock) {
+    this.cache = cache;
+    this.maxAge = maxAge;
+    this.clock = clock;
+  }
+
+  /**
+   * Creates a new expirer that removes reports older than <code>maxAge</code>, using the system
+   * clock.
+   */
+  public ReportExpirer(ReportingCache cache, Duration maxAge) {
+    this(cache, maxAge, Clock.SYSTEM);
+  }
+
+  /**
+   * Removes all reports that are older than the maximum age, and all configuration that has
+   * expired.
+   */
+  public void expire() {
+    Instant now = clock.now();
+    cache.removeOldReports(now.minus(maxAge));
+    cache.removeExpiredConfiguration(now);
+  }
+
+  /**
+   * Calls {@link #expire} on <code>timer</code> every <code>interval</code>, until {@link #stop} is
+   * called.  An exception from one pass is passed to the timer thread's uncaught exception handler,
+   * and doesn't stop later passes.
+   */
+  public synchronized void start(ScheduledExecutorService timer, Duration interval) {
+    if (ticker != null) {
+      throw new IllegalStateException("Expirer is already running");
+    }
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          expire();
+        } catch (RuntimeException e) {
+          // Letting this escape would cancel the schedule, and we'd never expire anything again.
+          // Hand it to the thread's handler instead, and try again next time.
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    };
+    ticker = timer.scheduleWithFixedDelay(
+        task, interval.getMillis(), interval.getMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops expiring reports in the background. */
+  public synchronized void stop() {
+    if (ticker != null) {
+      ticker.cancel(false);
+      ticker = null;
+    }
+  }
+
+  private ReportingCache cache;
+  private Duration maxAge;
+  private Clock clock;
+  private ScheduledFuture<?> ticker;
+}
@@ -16,11 +16,11 @@
 package nel;
 
 import java.io.IOException;
+import java.io.Writer;
 
 import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
-import org.joda.time.Duration;
 import org.joda.time.Instant;
 
 /**
@@ -35,6 +35,13 @@ import org.joda.time.Instant;
  * (or whatever time you wish to use as the "upload time"), which we will use to calculate the
  * <code>age</code> fields.
  * </p>
+ *
+ * <p>
+ * Reports that stand for several merged requests (see {@link ReportAggregator}) have four extra
+ * fields in their body: <code>count</code>, <code>min-elapsed-time</code>,
+ * <code>max-elapsed-time</code>, and <code>elapsed-time-histogram</code>, an array of counts using
+ * the buckets described in {@link ReportAggregate}.  Their <code>elapsed-time</code> is the mean.
+ * </p>
  */
 public class ReportJsonAdapter extends TypeAdapter<Report> {
   /**
@@ -50,30 +57,65 @@ public class ReportJsonAdapter extends TypeAdapter<Report> {
     throw new IllegalStateException("Cannot parse Reports from JSON");
   }
 
+  /**
+   * Creates a JSON writer with the same settings that {@link com.google.gson.Gson} uses by
+   * default, so that reports render the same whether or not they go through a <code>Gson</code>
+   * instance.  In particular, <code>null</code> fields are omitted.
+   */
+  static JsonWriter newWriter(Writer output) {
+    JsonWriter writer = new JsonWriter(output);
+    writer.setLenient(true);
+    writer.setHtmlSafe(true);
+    writer.setSerializeNulls(false);
+    return writer;
+  }
+
   @Override
   public void write(JsonWriter writer, Report report) throws IOException {
+    writeReport(writer, report, now);
+  }
+
+  /**
+   * Renders <code>report</code> to <code>writer</code>, using <code>now</code> to calculate its
+   * <code>age</code>.  This doesn't need an adapter instance, so it's safe to call from any thread.
+   */
+  static void writeReport(JsonWriter writer, Report report, Instant now) throws IOException {
     writer.beginObject();
     if (report.getTimestamp() != null) {
-      writer.name("age").value(
-          new Duration(report.getTimestamp(), now).getMillis());
+      writer.name("age").value(now.getMillis() - report.getTimestamp().getMillis());
     }
     writer.name("type").value("network-error");
-    writer.name("url").value(report.getUri().toString());
+    writer.name("url").value(report.getUriString());
     writer.name("body").beginObject();
-    writer.name("uri").value(report.getUri().toString());
+    writer.name("uri").value(report.getUriString());
     if (report.getReferrer() == null) {
       writer.name("referrer").nullValue();
     } else {
-      writer.name("referrer").value(report.getReferrer().toString());
+      writer.name("referrer").value(report.getReferrerString());
     }
     writer.name("sampling-fraction").value(report.getSamplingFraction());
-    writer.name("server-ip").value(report.getServerIp().getHostAddress());
+    if (report.getServerIp() == null) {
+      writer.name("server-ip").nullValue();
+    } else {
+      writer.name("server-ip").value(report.getServerIpString());
+    }
     writer.name("protocol").value(report.getProtocol());
     if (report.getStatusCode() != 0) {
       writer.name("status-code").value(report.getStatusCode());
     }
     writer.name("elapsed-time").value(report.getElapsedTime().getMillis());
     writer.name("type").value(report.getType().toString());
+    ReportAggregate aggregate = report.getAggregate();
+    if (aggregate != null) {
+      writer.name("count").value(aggregate.getCount());
+      writer.name("min-elapsed-time").value(aggregate.getMinElapsedTime().getMillis());
+      writer.name("max-elapsed-time").value(aggregate.getMaxElapsedTime().getMillis());
+      writer.name("elapsed-time-histogram").beginArray();
+      for (int i = 0; i < ReportAggregate.getHistogramBucketCount(); i++) {
+        writer.value(aggregate.getHistogramCount(i));
+      }
+      writer.endArray();
+    }
     writer.endObject();
     writer.endObject();
   }
@@ -0,0 +1,44 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.Instant;
+
+/**
+ * Stores the reports in a {@link ReportingCache} that are waiting to be uploaded.
+ */
+public interface ReportQueue {
+  /** Adds a report to the queue. */
+  void add(QueuedReport report);
+
+  /** Returns the number of reports in the queue. */
+  int size();
+
+  /**
+   * Returns a snapshot of all of the reports in the queue.  Changes to the queue are not reflected
+   * in the returned list.
+   */
+  List<QueuedReport> getAll();
+
+  /** Removes each of the given reports from the queue, if present. */
+  void removeAll(Collection<QueuedReport> reports);
+
+  /** Removes all reports whose timestamp is older than <code>cutoff</code>. */
+  void removeOlderThan(Instant cutoff);
+}
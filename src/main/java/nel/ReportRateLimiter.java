@@ -0,0 +1,391 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how quickly each origin can add reports to a {@link ReportingCache}, so that a single
+ * misbehaving origin can't produce so many reports during an incident that it crowds out everyone
+ * else.  Each origin gets a token bucket that holds up to <code>burst</code> tokens and refills at
+ * <code>reportsPerSecond</code>; every report takes one token, and reports that arrive when the
+ * bucket is empty are dropped.  You can also limit all of the origins that share a superdomain,
+ * which catches a single site that spreads its reports across many subdomains.
+ *
+ * <p>
+ * Buckets are refilled lazily, when a report arrives, so admitting a report only takes a hash
+ * lookup and a few arithmetic operations.  We hold on to at most a fixed number of buckets.  Once
+ * the table is full, we make room by forgetting buckets that have refilled completely, and then,
+ * if that isn't enough, ones that still have tokens left.  We never forget a drained bucket, since
+ * that would hand its origin a fresh burst in the middle of an incident, nor one with dropped
+ * reports that haven't been accounted for yet.  If we can't forget any buckets, origins that we
+ * can't make room for share a single overflow bucket until some of the others refill.
+ * </p>
+ *
+ * <p>
+ * Dropping reports would make an origin look less busy than it really was, so each admitted report
+ * stands in for any reports from the same origin that were dropped since the last one that was
+ * admitted: we divide its <code>sampling_fraction</code> by that number, plus one.  The overflow
+ * bucket is shared by unrelated origins, so we can't tell whose reports it dropped, and reports
+ * that it admits aren't reweighted.  This class is thread-safe.
+ * </p>
+ */
+public class ReportRateLimiter {
+  /**
+   * Creates a new limiter that lets each origin add <code>reportsPerSecond</code> reports per
+   * second, with bursts of up to <code>burst</code> reports, using the system clock.
+   */
+  public ReportRateLimiter(double reportsPerSecond, int burst) {
+    this(reportsPerSecond, burst, Clock.SYSTEM);
+  }
+
+  /** Creates a new per-origin limiter that uses <code>clock</code> to refill its buckets. */
+  public ReportRateLimiter(double reportsPerSecond, int burst, Clock clock) {
+    this.originLimit = new Limit(reportsPerSecond, burst);
+    this.superdomainLimit = null;
+    this.maxBuckets = DEFAULT_MAX_BUCKETS;
+    this.clock = clock;
+    this.originBuckets = new BucketTable(true);
+    this.superdomainBuckets = new BucketTable(false);
+    this.admitted = new AtomicLong();
+    this.dropped = new AtomicLong();
+  }
+
+  /**
+   * Also limits all of the origins that share a superdomain to <code>reportsPerSecond</code>
+   * reports per second, with bursts of up to <code>burst</code> reports.  The superdomain of an
+   * origin is its host's last two labels (so <code>a.b.example.com</code> and
+   * <code>c.example.com</code> share <code>example.com</code>'s bucket), along with its scheme and
+   * port.  We don't consult the public suffix list, so hosts under multi-label suffixes like
+   * <code>co.uk</code> will share a single bucket.  IP addresses don't have superdomains, so an
+   * origin whose host is an IPv4 or IPv6 literal gets a superdomain bucket of its own.
+   */
+  public synchronized ReportRateLimiter setSuperdomainLimit(double reportsPerSecond, int burst) {
+    this.superdomainLimit = new Limit(reportsPerSecond, burst);
+    superdomainBuckets.clear();
+    return this;
+  }
+
+  public int getMaxBuckets() {
+    return maxBuckets;
+  }
+
+  /** Sets the maximum number of origins (and of superdomains) that we track buckets for. */
+  public ReportRateLimiter setMaxBuckets(int maxBuckets) {
+    if (maxBuckets <= 0) {
+      throw new IllegalArgumentException("maxBuckets must be positive");
+    }
+    this.maxBuckets = maxBuckets;
+    return this;
+  }
+
+  /**
+   * Decides whether to admit a report from <code>origin</code>.  Returns 0 if the report should be
+   * dropped.  Otherwise, returns the factor (between 0 and 1) that the report's
+   * <code>sampling_fraction</code> should be multiplied by, to account for any earlier reports from
+   * the same origin that we dropped.
+   */
+  public double admit(Origin origin) {
+    long now = clock.now().getMillis();
+    Bucket originBucket = getBucket(originBuckets, origin, originLimit, now);
+    if (!originBucket.tryTake(now)) {
+      dropped.incrementAndGet();
+      return 0.0;
+    }
+    Limit superdomainLimit = this.superdomainLimit;
+    if (superdomainLimit != null) {
+      Bucket superdomainBucket =
+          getBucket(superdomainBuckets, getSuperdomain(origin), superdomainLimit, now);
+      if (!superdomainBucket.tryTake(now)) {
+        // The report still counts as dropped from this origin, but shouldn't use up its token.
+        originBucket.refund();
+        dropped.incrementAndGet();
+        return 0.0;
+      }
+    }
+    admitted.incrementAndGet();
+    return 1.0 / (originBucket.takeDropped() + 1);
+  }
+
+  /** Returns the number of reports that we've admitted. */
+  public long getAdmittedReportCount() {
+    return admitted.get();
+  }
+
+  /** Returns the number of reports that we've dropped because an origin was over its limit. */
+  public long getDroppedReportCount() {
+    return dropped.get();
+  }
+
+  private Bucket getBucket(BucketTable table, Origin key, Limit limit, long now) {
+    ConcurrentHashMap<Origin, Bucket> buckets = table.buckets;
+    Bucket bucket = buckets.get(key);
+    if (bucket != null && bucket.limit == limit) {
+      return bucket;
+    }
+    if (bucket == null && buckets.size() >= maxBuckets && !makeRoom(table, now)) {
+      return table.getOverflowBucket(limit);
+    }
+    Bucket created = new Bucket(limit, table.countsDrops);
+    if (bucket == null) {
+      bucket = buckets.putIfAbsent(key, created);
+      return bucket == null ? created : bucket;
+    }
+    // The limit changed since this bucket was created.
+    buckets.replace(key, bucket, created);
+    return created;
+  }
+
+  /**
+   * Forgets enough of the buckets in a full table to make room for new ones, starting with the
+   * ones that have refilled completely.  Returns <code>false</code> if every bucket is drained.
+   * Each pass looks at every bucket, so after a pass that can't free anything, we don't try again
+   * for a while, since buckets only refill as time passes.
+   */
+  private boolean makeRoom(BucketTable table, long now) {
+    int maxBuckets = this.maxBuckets;
+    synchronized (table) {
+      if (table.buckets.size() < maxBuckets) {
+        // Another thread made room while we were waiting for the lock.
+        return true;
+      }
+      if (now < table.retryAt) {
+        return false;
+      }
+      int target = table.buckets.size() - maxBuckets + Math.max(1, maxBuckets / EVICT_FRACTION);
+      int removed = removeBuckets(table, now, true, target);
+      if (removed < target) {
+        removed += removeBuckets(table, now, false, target - removed);
+      }
+      if (removed == 0) {
+        table.retryAt = now + RETRY_MILLIS;
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Removes up to <code>limit</code> buckets that are full, if <code>fullOnly</code> is true, or
+   * that at least aren't drained and have no dropped reports to account for.  Returns the number
+   * of buckets removed.
+   */
+  private static int removeBuckets(BucketTable table, long now, boolean fullOnly, int limit) {
+    int removed = 0;
+    Iterator<Map.Entry<Origin, Bucket>> iter = table.buckets.entrySet().iterator();
+    while (removed < limit && iter.hasNext()) {
+      Bucket bucket = iter.next().getValue();
+      if (fullOnly ? bucket.isFull(now) : bucket.isForgettable(now)) {
+        iter.remove();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Returns the origin whose host is the last two labels of <code>origin</code>'s host, or
+   * <code>origin</code> itself if its host is an IP address.
+   */
+  private static Origin getSuperdomain(Origin origin) {
+    // Superdomain origins are cached, so for interned origins this doesn't allocate anything.
+    String host = origin.getHost();
+    if (host != null && isIpLiteral(host)) {
+      return origin;
+    }
+    while (host != null) {
+      int dot = host.indexOf('.');
+      if (dot == -1 || host.indexOf('.', dot + 1) == -1) {
+        break;
+      }
+      origin = origin.getSuperdomainOrigin();
+      host = origin.getHost();
+    }
+    return origin;
+  }
+
+  /**
+   * Returns whether <code>host</code> is an IP address rather than a domain name.  IPv6 literals
+   * are the only hosts that contain colons, and no top-level domain is all digits, so a numeric
+   * last label means an IPv4 address.
+   */
+  private static boolean isIpLiteral(String host) {
+    if (host.indexOf(':') != -1) {
+      return true;
+    }
+    int start = host.lastIndexOf('.') + 1;
+    if (start == host.length()) {
+      return false;
+    }
+    for (int i = start; i < host.length(); i++) {
+      char c = host.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The rate and burst size of a set of buckets. */
+  private static class Limit {
+    Limit(double reportsPerSecond, int burst) {
+      if (!(reportsPerSecond > 0.0)) {
+        throw new IllegalArgumentException("reportsPerSecond must be positive");
+      }
+      if (burst <= 0) {
+        throw new IllegalArgumentException("burst must be positive");
+      }
+      this.tokensPerMilli = reportsPerSecond / 1000.0;
+      this.burst = burst;
+    }
+
+    private final double tokensPerMilli;
+    private final int burst;
+  }
+
+  /**
+   * The buckets for either origins or superdomains, along with the overflow bucket that we use for
+   * keys that we can't make room for.  We only need to count dropped reports in the origin table,
+   * since that's what we reweight admitted reports by.
+   */
+  private static class BucketTable {
+    BucketTable(boolean countsDrops) {
+      this.countsDrops = countsDrops;
+      this.buckets = new ConcurrentHashMap<Origin, Bucket>();
+      this.overflow = null;
+      this.retryAt = Long.MIN_VALUE;
+    }
+
+    synchronized Bucket getOverflowBucket(Limit limit) {
+      if (overflow == null || overflow.limit != limit) {
+        // The overflow bucket never counts drops, since they could belong to any origin.
+        overflow = new Bucket(limit, false);
+      }
+      return overflow;
+    }
+
+    synchronized void clear() {
+      buckets.clear();
+      overflow = null;
+      retryAt = Long.MIN_VALUE;
+    }
+
+    private final boolean countsDrops;
+    private final ConcurrentHashMap<Origin, Bucket> buckets;
+    private Bucket overflow;
+    /** When we should next try to make room, after a pass that couldn't remove any buckets. */
+    private long retryAt;
+  }
+
+  /**
+   * The state of a single token bucket, which starts out full.  If <code>countsDrops</code> is
+   * false, the bucket doesn't keep track of the reports that it drops.
+   */
+  private static class Bucket {
+    Bucket(Limit limit, boolean countsDrops) {
+      this.limit = limit;
+      this.countsDrops = countsDrops;
+      this.tokens = limit.burst;
+      this.refilledAt = Long.MIN_VALUE;
+      this.dropped = 0;
+    }
+
+    /**
+     * Refills the bucket for the time that has passed since we last looked at it, and then takes a
+     * token if there is one.  Records a dropped report if there isn't.
+     */
+    synchronized boolean tryTake(long now) {
+      refill(now);
+      if (tokens < 1.0) {
+        if (countsDrops) {
+          dropped++;
+        }
+        return false;
+      }
+      tokens -= 1.0;
+      return true;
+    }
+
+    /**
+     * Returns whether the bucket has refilled completely, and has no dropped reports to account
+     * for, so that forgetting it loses nothing.
+     */
+    synchronized boolean isFull(long now) {
+      refill(now);
+      return tokens >= limit.burst && dropped == 0;
+    }
+
+    /**
+     * Returns whether the bucket still has tokens left, and has no dropped reports to account for,
+     * so that forgetting it won't hand its origin a fresh burst or lose track of any drops.
+     */
+    synchronized boolean isForgettable(long now) {
+      refill(now);
+      return tokens >= 1.0 && dropped == 0;
+    }
+
+    private void refill(long now) {
+      if (now > refilledAt) {
+        if (refilledAt != Long.MIN_VALUE) {
+          tokens = Math.min(limit.burst, tokens + (now - refilledAt) * limit.tokensPerMilli);
+        }
+        refilledAt = now;
+      }
+    }
+
+    /** Gives back a token that we took, and records a dropped report instead. */
+    synchronized void refund() {
+      tokens += 1.0;
+      if (countsDrops) {
+        dropped++;
+      }
+    }
+
+    /** Returns the number of reports dropped since the last call, and resets it. */
+    synchronized long takeDropped() {
+      long result = dropped;
+      dropped = 0;
+      return result;
+    }
+
+    private final Limit limit;
+    private final boolean countsDrops;
+    private double tokens;
+    private long refilledAt;
+    private long dropped;
+  }
+
+  /** The default maximum number of origins that we track buckets for. */
+  public static final int DEFAULT_MAX_BUCKETS = 10000;
+
+  /** When a table is full, we try to free up this fraction of its buckets at once. */
+  private static final int EVICT_FRACTION = 8;
+
+  /** How long to wait before trying again to make room in a table whose buckets are all drained. */
+  private static final long RETRY_MILLIS = 1000;
+
+  private Limit originLimit;
+  private volatile Limit superdomainLimit;
+  private volatile int maxBuckets;
+  private Clock clock;
+  private BucketTable originBuckets;
+  private BucketTable superdomainBuckets;
+  private AtomicLong admitted;
+  private AtomicLong dropped;
+}
@@ -0,0 +1,118 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import org.joda.time.Instant;
+
+/**
+ * Drains the queued reports in a {@link ReportingCache}, uploading them in batches via a {@link
+ * ReportDeliverer}.  Each batch contains all of the queued reports for a particular origin and
+ * endpoint group, and is uploaded to its endpoint in a single request.
+ *
+ * <p>
+ * This implements the <a href="https://wicg.github.io/reporting/#send-reports">"Send reports"</a>
+ * algorithm in the Reporting spec.
+ * </p>
+ */
+public class ReportUploader {
+  /** Creates a new uploader that delivers the reports in <code>cache</code>. */
+  public ReportUploader(ReportingCache cache, ReportDeliverer deliverer) {
+    this.cache = cache;
+    this.deliverer = deliverer;
+    this.encoder = new ReportEncoder();
+    this.output = new ByteArrayOutputStream();
+  }
+
+  /**
+   * Creates a new uploader that delivers the reports in <code>cache</code>, using
+   * <code>compressor</code> to compress batches that are large enough to be worth it.
+   */
+  public ReportUploader(ReportingCache cache, CompressedReportDeliverer deliverer,
+      PayloadCompressor compressor) {
+    this(cache, deliverer);
+    this.compressedDeliverer = deliverer;
+    this.compressor = compressor;
+  }
+
+  /**
+   * Uploads all of the reports in the cache that have an available endpoint.  Returns the number of
+   * reports that were successfully delivered.  If the deliverer throws an unchecked exception, it
+   * is passed on to the caller, and the batches that weren't uploaded stay queued.
+   */
+  public int uploadReports(Instant now) {
+    int delivered = 0;
+    List<ReportBatch> batches = cache.getReportBatches(now);
+    int next = 0;
+    try {
+      for (; next < batches.size(); next++) {
+        ReportBatch batch = batches.get(next);
+        URL url = batch.getEndpoint().getUrl();
+        byte[] payload;
+        String contentEncoding = null;
+        try {
+          if (compressor == null) {
+            output.reset();
+            batch.writeTo(encoder, now, output);
+            payload = output.toByteArray();
+          } else {
+            PayloadCompressor.Payload encoded = compressor.encode(batch, encoder, now);
+            payload = encoded.getBytes();
+            contentEncoding = encoded.getContentEncoding();
+          }
+        } catch (IOException e) {
+          // We never got as far as talking to the collector, so this isn't the endpoint's fault.
+          cache.releaseBatch(batch);
+          continue;
+        }
+        // Only the delivery itself counts towards the upload's latency, not encoding the payload.
+        long start = System.nanoTime();
+        try {
+          if (compressedDeliverer != null) {
+            compressedDeliverer.deliverReports(url, payload, contentEncoding);
+          } else {
+            deliverer.deliverReports(url, payload);
+          }
+        } catch (IOException e) {
+          cache.recordUpload(now, batch, System.nanoTime() - start, false);
+          cache.markBatchFailed(now, batch);
+          continue;
+        }
+        cache.recordUpload(now, batch, System.nanoTime() - start, true);
+        cache.markBatchDelivered(batch);
+        delivered += batch.getReports().size();
+      }
+    } finally {
+      // If something other than an IOException escaped, give the batch that threw it, and every
+      // batch after it, back to the cache, so that a later call can collect them again.
+      for (int i = next; i < batches.size(); i++) {
+        cache.releaseBatch(batches.get(i));
+      }
+    }
+    return delivered;
+  }
+
+  private ReportingCache cache;
+  private ReportDeliverer deliverer;
+  private ReportEncoder encoder;
+  private ByteArrayOutputStream output;
+  private CompressedReportDeliverer compressedDeliverer;
+  private PayloadCompressor compressor;
+}
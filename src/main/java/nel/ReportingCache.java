@@ -15,25 +15,384 @@
 
 package nel;
 
-import java.util.HashSet;
-import java.util.Iterator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.joda.time.Instant;
 
 /**
  * A cache of all of all Reporting and NEL configurations that we have received, and of reports that
  * are queued for delivery.
+ *
+ * <p>
+ * This class is not thread-safe; use {@link ConcurrentReportingCache} if you need to access the
+ * cache from multiple threads.
+ * </p>
  */
 public class ReportingCache {
   /** Creates a new, empty cache. */
   public ReportingCache() {
-    this.clients = new OriginMap<Client>();
-    this.queuedReports = new HashSet<QueuedReport>();
+    this(new OriginMap<Client>(), new OriginMap<NelPolicy>(), new InMemoryReportQueue());
+  }
+
+  /** Creates a new, empty cache that stores its queued reports in <code>queue</code>. */
+  public ReportingCache(ReportQueue queue) {
+    this(new OriginMap<Client>(), new OriginMap<NelPolicy>(), queue);
+  }
+
+  /**
+   * Creates a new cache that uses the given data structures to store its clients, NEL policies,
+   * and queued reports.  Subclasses can use this to provide thread-safe versions of these data
+   * structures.
+   */
+  protected ReportingCache(Map<Origin, Client> clients, Map<Origin, NelPolicy> policies,
+      ReportQueue queue) {
+    this.clients = clients;
+    this.policies = policies;
+    this.queuedReports = queue;
+    this.interner = new OriginInterner();
+    this.hasSubdomainPolicies = false;
+    this.retryPolicy = RetryPolicy.DEFAULT;
+    this.metrics = ReportingMetrics.NONE;
+    this.maxBatchReports = Integer.MAX_VALUE;
+    this.maxBatchBytes = Long.MAX_VALUE;
+    this.expiryQueue = new PriorityQueue<ExpiryEntry>();
+    this.expiryQueueCompactSize = MIN_EXPIRY_QUEUE_COMPACT_SIZE;
+  }
+
+  /**
+   * Returns the interner that the cache uses for all of the origins it stores.  Passing interned
+   * origins to methods like {@link #shouldReport} and {@link #chooseEndpoint} makes their lookups
+   * slightly faster.
+   */
+  public OriginInterner getOriginInterner() {
+    return interner;
+  }
+
+  /**
+   * Sets the policy that decides how long a failed endpoint stays pending.  The default is {@link
+   * RetryPolicy#DEFAULT}.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  public int getMaxBatchReports() {
+    return maxBatchReports;
+  }
+
+  /** Sets the maximum number of reports in each batch returned by {@link #getReportBatches}. */
+  public void setMaxBatchReports(int maxBatchReports) {
+    if (maxBatchReports <= 0) {
+      throw new IllegalArgumentException("maxBatchReports must be positive");
+    }
+    this.maxBatchReports = maxBatchReports;
   }
 
-  /** Adds a new client to the cache, replacing any existing client for the same origin. */
+  public long getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  /**
+   * Sets the maximum size, in bytes, of the uncompressed JSON payload of each batch returned by
+   * {@link #getReportBatches}, so that uploads don't trip any request size limits of the
+   * collectors.  A single report that's larger than this is uploaded in a batch of its own.
+   */
+  public void setMaxBatchBytes(long maxBatchBytes) {
+    if (maxBatchBytes <= 0) {
+      throw new IllegalArgumentException("maxBatchBytes must be positive");
+    }
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  public ReportRateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Sets the limiter that decides whether to admit each new report, so that no single origin can
+   * flood the cache.  Pass <code>null</code> (the default) to admit every report.
+   */
+  public void setRateLimiter(ReportRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public EndpointHealthPolicy getEndpointHealthPolicy() {
+    return healthPolicy;
+  }
+
+  /**
+   * Turns on health-aware endpoint selection, which prefers fast and reliable endpoints, and stops
+   * using endpoints that keep failing until a probe upload succeeds.  Pass <code>null</code> (the
+   * default) to choose endpoints purely by their static priorities and weights.
+   */
+  public void setEndpointHealthPolicy(EndpointHealthPolicy healthPolicy) {
+    this.healthPolicy = healthPolicy;
+  }
+
+  public ReportingMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets where the cache sends events about enqueued reports, endpoint selection, and uploads.  The
+   * default is {@link ReportingMetrics#NONE}.  Evictions are reported by the queue itself; see
+   * {@link BoundedReportQueue#setMetrics}.
+   */
+  public void setMetrics(ReportingMetrics metrics) {
+    if (metrics == null) {
+      throw new IllegalArgumentException("metrics cannot be null");
+    }
+    this.metrics = metrics;
+  }
+
+  /**
+   * Adds a new client to the cache, replacing any existing client for the same origin.  Only the
+   * expiry queue update happens under its lock; the client map handles concurrent puts itself.
+   */
   public void addClient(Client client) {
-    clients.put(client.getOrigin(), client);
+    Origin origin = interner.intern(client.getOrigin());
+    clients.put(origin, client);
+    synchronized (expiryQueue) {
+      for (EndpointGroup group : client.getGroups()) {
+        expiryQueue.add(new ExpiryEntry(group.getExpiry(), origin, group, null));
+      }
+      maybeCompactExpiryQueue();
+    }
+  }
+
+  /** Adds a new NEL policy to the cache, replacing any existing policy for the same origin. */
+  public void addPolicy(NelPolicy policy) {
+    if (policy.includeSubdomains()) {
+      hasSubdomainPolicies = true;
+    }
+    Origin origin = interner.intern(policy.getOrigin());
+    policies.put(origin, policy);
+    synchronized (expiryQueue) {
+      expiryQueue.add(new ExpiryEntry(policy.getExpiry(), origin, null, policy));
+      maybeCompactExpiryQueue();
+    }
+  }
+
+  /**
+   * Removes the NEL policy for an origin, if there is one.  A response whose <code>NEL</code>
+   * header has a <code>max_age</code> of 0 should cause us to do this.
+   */
+  public void removePolicy(Origin origin) {
+    policies.remove(origin);
+  }
+
+  /**
+   * Removes every endpoint group and NEL policy that has expired as of <code>now</code>, along with
+   * any client that no longer has any groups.  Returns the number of groups and policies removed.
+   */
+  public int removeExpiredConfiguration(Instant now) {
+    return removeExpiredConfiguration(now, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Removes at most <code>limit</code> of the endpoint groups and NEL policies that have expired as
+   * of <code>now</code>, soonest-expiring first, along with any client that no longer has any
+   * groups.  Returns the number of groups and policies removed.
+   *
+   * <p>
+   * Expiry times are kept in a priority queue, so this only looks at configurations that have
+   * actually expired, and costs <code>O(log n)</code> for each one.  {@link #getReportBatches}
+   * calls this with a small limit, which spreads the work of keeping the cache's memory bounded
+   * across uploads; use a {@link ReportExpirer} to sweep on a timer instead.
+   * </p>
+   */
+  public int removeExpiredConfiguration(Instant now, int limit) {
+    int removed = 0;
+    synchronized (expiryQueue) {
+      while (removed < limit) {
+        ExpiryEntry entry = expiryQueue.peek();
+        if (entry == null || !now.isAfter(entry.expiry)) {
+          break;
+        }
+        expiryQueue.poll();
+        if (entry.group != null ? removeExpiredGroup(now, entry) : removeExpiredPolicy(entry)) {
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Removes the group in <code>entry</code>, if it's still part of the current client for its
+   * origin.  Clients can be read concurrently, so rather than modifying the client we replace it
+   * with a copy that only has its unexpired groups, or remove it if there aren't any.  Clients are
+   * added without holding the expiry queue's lock, so we only do that if nobody has replaced the
+   * client in the meantime.
+   */
+  private boolean removeExpiredGroup(Instant now, ExpiryEntry entry) {
+    Client client = clients.get(entry.origin);
+    if (client == null || client.getGroup(entry.group.getName()) != entry.group) {
+      // The client or group was replaced after this entry was added.
+      return false;
+    }
+    Client replacement = new Client(client.getOrigin());
+    for (EndpointGroup group : client.getGroups()) {
+      if (!group.isExpired(now)) {
+        replacement.addGroup(group);
+      }
+    }
+    return replaceIfUnchanged(
+        clients, entry.origin, client, replacement.getGroups().isEmpty() ? null : replacement);
+  }
+
+  /** Removes the policy in <code>entry</code>, if it's still the policy for its origin. */
+  private boolean removeExpiredPolicy(ExpiryEntry entry) {
+    if (policies.get(entry.origin) != entry.policy) {
+      return false;
+    }
+    return replaceIfUnchanged(policies, entry.origin, entry.policy, null);
+  }
+
+  /**
+   * Replaces <code>expected</code> with <code>replacement</code> in <code>map</code>, or removes it
+   * if <code>replacement</code> is <code>null</code>, as long as it's still the value for
+   * <code>origin</code>.  Returns whether the map was changed.
+   */
+  private static <V> boolean replaceIfUnchanged(
+      Map<Origin, V> map, Origin origin, V expected, V replacement) {
+    if (map instanceof ConcurrentMap) {
+      ConcurrentMap<Origin, V> concurrentMap = (ConcurrentMap<Origin, V>) map;
+      return replacement == null
+          ? concurrentMap.remove(origin, expected)
+          : concurrentMap.replace(origin, expected, replacement);
+    }
+    if (replacement == null) {
+      map.remove(origin);
+    } else {
+      map.put(origin, replacement);
+    }
+    return true;
+  }
+
+  /**
+   * Rebuilds the expiry queue from the current clients and policies once it has grown to twice its
+   * size after the last rebuild.  Each replaced client or policy leaves a stale entry in the queue,
+   * and origins that refresh their configuration on every response would otherwise fill it with
+   * them.
+   */
+  private void maybeCompactExpiryQueue() {
+    if (expiryQueue.size() < expiryQueueCompactSize) {
+      return;
+    }
+    ArrayList<ExpiryEntry> live = new ArrayList<ExpiryEntry>();
+    for (Client client : clients.values()) {
+      Origin origin = interner.intern(client.getOrigin());
+      for (EndpointGroup group : client.getGroups()) {
+        live.add(new ExpiryEntry(group.getExpiry(), origin, group, null));
+      }
+    }
+    for (NelPolicy policy : policies.values()) {
+      live.add(new ExpiryEntry(
+          policy.getExpiry(), interner.intern(policy.getOrigin()), null, policy));
+    }
+    expiryQueue.clear();
+    expiryQueue.addAll(live);
+    expiryQueueCompactSize = Math.max(MIN_EXPIRY_QUEUE_COMPACT_SIZE, 2 * live.size());
+  }
+
+  /** Returns the number of entries in the expiry queue, including stale ones. */
+  int getExpiryQueueSize() {
+    synchronized (expiryQueue) {
+      return expiryQueue.size();
+    }
+  }
+
+  /**
+   * Returns the NEL policy that applies to requests made to <code>origin</code>, or
+   * <code>null</code> if there isn't one.  That's either an unexpired policy for the origin itself,
+   * or an unexpired policy with <code>include-subdomains</code> for one of its superdomains, with
+   * more specific policies preferred.
+   */
+  public NelPolicy getPolicy(Instant now, Origin origin) {
+    NelPolicy policy = policies.get(origin);
+    if (policy != null && !policy.isExpired(now)) {
+      return policy;
+    }
+    if (!hasSubdomainPolicies) {
+      // No policy has ever covered its subdomains, so there's no need to look at any of this
+      // origin's superdomains.
+      return null;
+    }
+    SuperdomainKey key = SuperdomainKey.forCurrentThread(origin);
+    while (key.toSuperdomain()) {
+      policy = policies.get(key);
+      if (policy != null && policy.includeSubdomains() && !policy.isExpired(now)) {
+        return policy;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether we should generate a NEL report for a request to <code>origin</code> that just
+   * finished, either successfully or not.  This finds the policy that applies to the origin, and
+   * then randomly samples the request using the policy's success or failure fraction.
+   *
+   * <p>
+   * This is called for every request, so it's designed to be cheap: it performs at most one map
+   * lookup for each label in the origin's host, and doesn't create any objects.  We skip the
+   * superdomain lookups entirely when the origin itself has a policy, or when no policy in the
+   * cache has <code>include-subdomains</code> set.
+   * </p>
+   */
+  public boolean shouldReport(Instant now, Origin origin, boolean success) {
+    NelPolicy policy = getPolicy(now, origin);
+    if (policy == null) {
+      return false;
+    }
+    double fraction = success ? policy.getSuccessFraction() : policy.getFailureFraction();
+    if (fraction >= 1.0) {
+      return true;
+    }
+    if (fraction <= 0.0) {
+      return false;
+    }
+    return ThreadLocalRandom.current().nextDouble() < fraction;
+  }
+
+  /**
+   * Saves all of the clients and NEL policies in the cache to <code>file</code>, so that they can
+   * be restored via {@link #loadSnapshot} the next time the process starts.  Queued reports are not
+   * included; use a {@link PersistentReportQueue} if you need those to survive a restart.  The new
+   * snapshot atomically replaces any existing file.
+   */
+  public void saveSnapshot(Path file) throws IOException {
+    CacheSnapshot.save(this, file);
+  }
+
+  /**
+   * Adds all of the clients and NEL policies from a snapshot that was saved via {@link
+   * #saveSnapshot}, skipping anything that has expired as of <code>now</code>.  Returns
+   * <code>false</code> if <code>file</code> doesn't exist.
+   */
+  public boolean loadSnapshot(Path file, Instant now) throws IOException {
+    return CacheSnapshot.load(this, file, now);
+  }
+
+  /** Returns all of the clients in the cache. */
+  Collection<Client> getClients() {
+    return clients.values();
+  }
+
+  /** Returns all of the NEL policies in the cache. */
+  Collection<NelPolicy> getPolicies() {
+    return policies.values();
   }
 
   /** Returns the number of queued reports. */
@@ -41,20 +400,32 @@ public class ReportingCache {
     return queuedReports.size();
   }
 
-  /** Adds a new report to the cache. */
+  /**
+   * Adds a new report to the cache.  If the cache has a {@link ReportRateLimiter}, the report might
+   * be dropped instead.
+   */
   public void enqueueReport(Report report) {
-    queuedReports.add(new QueuedReport(report, "nel"));
+    Origin origin = interner.intern(report.getUri());
+    ReportRateLimiter rateLimiter = this.rateLimiter;
+    double samplingFactor = 1.0;
+    if (rateLimiter != null) {
+      samplingFactor = rateLimiter.admit(origin);
+      if (samplingFactor == 0.0) {
+        metrics.reportDropped();
+        return;
+      }
+    }
+    QueuedReport queuedReport = new QueuedReport(report, "nel", origin);
+    if (samplingFactor != 1.0) {
+      queuedReport.scaleSamplingFraction(samplingFactor);
+    }
+    queuedReports.add(queuedReport);
+    metrics.reportEnqueued();
   }
 
   /** Removes all queued reports older than <code>cutoff</code>. */
   public void removeOldReports(Instant cutoff) {
-    Iterator<QueuedReport> iter = queuedReports.iterator();
-    while (iter.hasNext()) {
-      QueuedReport queuedReport = iter.next();
-      if (queuedReport.getReport().getTimestamp().isBefore(cutoff)) {
-        iter.remove();
-      }
-    }
+    queuedReports.removeOlderThan(cutoff);
   }
 
   /**
@@ -72,27 +443,249 @@ public class ReportingCache {
    */
   public Endpoint chooseEndpoint(Instant now, Origin origin, String groupName) {
     // Loop through all of the clients registered for origin, or any of its superdomains.
-    for (Client client : clients.getAll(origin)) {
+    SuperdomainKey key = SuperdomainKey.forCurrentThread(origin);
+    do {
+      Client client = clients.get(key);
+      if (client == null) {
+        continue;
+      }
       EndpointGroup group = client.getGroup(groupName);
       if (group == null) {
         // This client has no group with the requested name.
         continue;
       }
-      if (client.getOrigin() != origin && !group.includeSubdomains()) {
+      if (!client.getOrigin().equals(origin) && !group.includeSubdomains()) {
         // This client is for a superdomain of origin, and its group does not have
         // include-subdomains set to true; that means we can't use it for the subdomain.
         continue;
       }
-      Endpoint endpoint = group.chooseEndpoint(now);
+      Endpoint endpoint = group.chooseEndpoint(now, healthPolicy);
       if (endpoint != null) {
+        metrics.endpointChosen(true);
         return endpoint;
       }
-    }
+    } while (key.toSuperdomain());
 
     // Couldn't find any suitable endpoints!
+    metrics.endpointChosen(false);
     return null;
   }
 
-  private OriginMap<Client> clients;
-  private HashSet<QueuedReport> queuedReports;
+  /**
+   * Collects all of the queued reports that aren't already being uploaded into batches, one for
+   * each origin and endpoint group.  We choose a single endpoint for each batch, so that all of the
+   * reports in a batch can be uploaded in a single request.  Reports for which we cannot find any
+   * appropriate endpoint are left in the queue, to be tried again later.
+   *
+   * <p>
+   * If you've limited the size of batches with {@link #setMaxBatchReports} or {@link
+   * #setMaxBatchBytes}, an origin and group whose reports don't fit into a single batch get
+   * several, all uploaded to the same endpoint.  In that case we encode each report as we add it
+   * to a batch, using <code>now</code> to calculate its <code>age</code>, and the batch holds on
+   * to the result; see {@link ReportBatch}.
+   * </p>
+   *
+   * <p>
+   * All of the reports in the returned batches are marked as pending.  You must pass each batch to
+   * either {@link #markBatchDelivered} or {@link #markBatchFailed} once its upload has finished,
+   * or to {@link #releaseBatch} if you decide not to upload it after all.
+   * </p>
+   */
+  public List<ReportBatch> getReportBatches(Instant now) {
+    return getReportBatches(now, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Collects queued reports into at most <code>maxBatches</code> batches.  Reports that would need
+   * a new batch once that many batches have been created are left in the queue, and are not marked
+   * as pending.
+   */
+  public List<ReportBatch> getReportBatches(Instant now, int maxBatches) {
+    removeExpiredConfiguration(now, EXPIRY_SWEEP_LIMIT);
+    int maxReports = maxBatchReports;
+    long maxBytes = maxBatchBytes;
+    boolean limited = maxReports != Integer.MAX_VALUE || maxBytes != Long.MAX_VALUE;
+    ReportEncoder encoder = limited ? new ReportEncoder() : null;
+    ByteArrayOutputStream encoded = limited ? new ByteArrayOutputStream() : null;
+    ArrayList<ReportBatch> batches = new ArrayList<ReportBatch>();
+    HashMap<Origin, HashMap<String, ReportBatch>> batchesByOrigin =
+        new HashMap<Origin, HashMap<String, ReportBatch>>();
+    for (QueuedReport queuedReport : queuedReports.getAll()) {
+      if (queuedReport.isPending()) {
+        continue;
+      }
+      HashMap<String, ReportBatch> batchesByGroup = batchesByOrigin.get(queuedReport.getOrigin());
+      if (batchesByGroup == null) {
+        batchesByGroup = new HashMap<String, ReportBatch>();
+        batchesByOrigin.put(queuedReport.getOrigin(), batchesByGroup);
+      }
+      ReportBatch batch;
+      if (batchesByGroup.containsKey(queuedReport.getGroup())) {
+        batch = batchesByGroup.get(queuedReport.getGroup());
+      } else {
+        if (batches.size() >= maxBatches) {
+          // We can't create any more batches, but there might be more reports for the batches
+          // that we already have.
+          continue;
+        }
+        // This is the first report we've seen for this origin and group, so choose the endpoint
+        // that all of them will be uploaded to.
+        Endpoint endpoint = chooseEndpoint(now, queuedReport.getOrigin(), queuedReport.getGroup());
+        batch = null;
+        if (endpoint != null) {
+          batch = newBatch(queuedReport, endpoint, limited, maxReports, maxBytes);
+          batches.add(batch);
+        }
+        batchesByGroup.put(queuedReport.getGroup(), batch);
+      }
+      if (batch == null) {
+        // There's no endpoint that we can upload this report to right now, or we've run out of
+        // batches for it.
+        continue;
+      }
+      if (!limited) {
+        queuedReport.setPending(true);
+        batch.addReport(queuedReport);
+        continue;
+      }
+      encoded.reset();
+      encodeReport(encoder, queuedReport, now, encoded);
+      if (!batch.fits(encoded.size())) {
+        if (batches.size() >= maxBatches) {
+          // Skip the rest of this origin and group's reports, too.
+          batchesByGroup.put(queuedReport.getGroup(), null);
+          continue;
+        }
+        batch = newBatch(queuedReport, batch.getEndpoint(), limited, maxReports, maxBytes);
+        batches.add(batch);
+        batchesByGroup.put(queuedReport.getGroup(), batch);
+      }
+      queuedReport.setPending(true);
+      batch.addEncodedReport(queuedReport, encoded);
+    }
+    return batches;
+  }
+
+  private static ReportBatch newBatch(QueuedReport queuedReport, Endpoint endpoint,
+      boolean limited, int maxReports, long maxBytes) {
+    if (limited) {
+      return new ReportBatch(
+          queuedReport.getOrigin(), queuedReport.getGroup(), endpoint, maxReports, maxBytes);
+    }
+    return new ReportBatch(queuedReport.getOrigin(), queuedReport.getGroup(), endpoint);
+  }
+
+  private static void encodeReport(ReportEncoder encoder, QueuedReport queuedReport, Instant now,
+      ByteArrayOutputStream output) {
+    try {
+      encoder.encodeReport(queuedReport, now, output);
+    } catch (IOException e) {
+      // Rethrow this as unchecked; we're writing to an in-memory buffer, so this should never
+      // occur.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Records that all of the reports in <code>batch</code> were successfully uploaded, removing them
+   * from the cache.
+   */
+  public void markBatchDelivered(ReportBatch batch) {
+    batch.getEndpoint().recordSuccess();
+    queuedReports.removeAll(batch.getReports());
+  }
+
+  /**
+   * Records that we were <em>not</em> able to upload the reports in <code>batch</code>.  The
+   * reports stay queued, and the batch's endpoint is marked as pending so that we won't choose it
+   * again until its retry delay has passed.  The delay comes from the cache's {@link RetryPolicy},
+   * and grows with the number of consecutive failures for the endpoint.
+   */
+  public void markBatchFailed(Instant now, ReportBatch batch) {
+    Endpoint endpoint = batch.getEndpoint();
+    endpoint.recordFailure(now.plus(retryPolicy.getRetryDelay(endpoint.getFailures() + 1)));
+    for (QueuedReport queuedReport : batch.getReports()) {
+      queuedReport.recordFailedAttempt();
+    }
+  }
+
+  /**
+   * Sends metrics events for an upload of <code>batch</code> that finished at <code>now</code>,
+   * after taking <code>latencyNanos</code>, and updates the health of the batch's endpoint.
+   * Uploaders should call this before marking the batch as delivered or failed.
+   */
+  void recordUpload(Instant now, ReportBatch batch, long latencyNanos, boolean success) {
+    EndpointHealthPolicy healthPolicy = this.healthPolicy;
+    if (healthPolicy != null) {
+      batch.getEndpoint().recordUploadResult(latencyNanos, success, healthPolicy.getSmoothing());
+    }
+    ReportingMetrics metrics = this.metrics;
+    List<QueuedReport> reports = batch.getReports();
+    metrics.uploadFinished(reports.size(), latencyNanos, success);
+    if (!success) {
+      return;
+    }
+    long nowMillis = now.getMillis();
+    for (QueuedReport queuedReport : reports) {
+      if (queuedReport.hasTimestamp()) {
+        metrics.reportDelivered(Math.max(0, nowMillis - queuedReport.getTimestampMillis()));
+      }
+    }
+  }
+
+  /**
+   * Returns the reports in <code>batch</code> to the queue without trying to upload them, so that
+   * they can be included in a later batch.  The batch's endpoint is not penalized.  If choosing the
+   * endpoint claimed its half-open circuit's probe, the claim is given back.
+   */
+  public void releaseBatch(ReportBatch batch) {
+    batch.getEndpoint().cancelProbe();
+    for (QueuedReport queuedReport : batch.getReports()) {
+      queuedReport.setPending(false);
+    }
+  }
+
+  /**
+   * An endpoint group or NEL policy, and when it expires.  Exactly one of <code>group</code> and
+   * <code>policy</code> is set.
+   */
+  private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+    ExpiryEntry(Instant expiry, Origin origin, EndpointGroup group, NelPolicy policy) {
+      this.expiry = expiry;
+      this.origin = origin;
+      this.group = group;
+      this.policy = policy;
+    }
+
+    @Override
+    public int compareTo(ExpiryEntry other) {
+      return expiry.compareTo(other.expiry);
+    }
+
+    private Instant expiry;
+    private Origin origin;
+    private EndpointGroup group;
+    private NelPolicy policy;
+  }
+
+  /**
+   * The maximum number of expired configurations that each call to {@link #getReportBatches}
+   * removes.
+   */
+  private static final int EXPIRY_SWEEP_LIMIT = 16;
+  private static final int MIN_EXPIRY_QUEUE_COMPACT_SIZE = 1024;
+
+  private Map<Origin, Client> clients;
+  private Map<Origin, NelPolicy> policies;
+  private ReportQueue queuedReports;
+  private OriginInterner interner;
+  private volatile boolean hasSubdomainPolicies;
+  private volatile RetryPolicy retryPolicy;
+  private volatile ReportingMetrics metrics;
+  private volatile EndpointHealthPolicy healthPolicy;
+  private volatile ReportRateLimiter rateLimiter;
+  private volatile int maxBatchReports;
+  private volatile long maxBatchBytes;
+  private PriorityQueue<ExpiryEntry> expiryQueue;
+  private int expiryQueueCompactSize;
 }
@@ -0,0 +1,95 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+/**
+ * Receives events from the reporting hot paths, so that you can export them to whichever metrics
+ * system you use.  Pass an implementation to {@link ReportingCache#setMetrics}, and to any other
+ * component whose events you want to see.  {@link CountingReportingMetrics} is a ready-made
+ * implementation that just counts everything.
+ *
+ * <p>
+ * Methods are called on whichever thread triggered the event, often while handling a request, so
+ * implementations must be thread-safe and should return quickly.
+ * </p>
+ */
+public interface ReportingMetrics {
+  /** Discards every event.  This is the default everywhere that accepts metrics. */
+  ReportingMetrics NONE = new ReportingMetrics() {
+    @Override
+    public void reportEnqueued() {}
+
+    @Override
+    public void reportEvicted() {}
+
+    @Override
+    public void reportDropped() {}
+
+    @Override
+    public void endpointChosen(boolean found) {}
+
+    @Override
+    public void reportToHeaderParsed(boolean valid) {}
+
+    @Override
+    public void nelHeaderParsed(boolean valid) {}
+
+    @Override
+    public void uploadFinished(int reports, long latencyNanos, boolean success) {}
+
+    @Override
+    public void reportDelivered(long ageMillis) {}
+  };
+
+  /** Called when a report is added to a {@link ReportingCache}. */
+  void reportEnqueued();
+
+  /**
+   * Called when a {@link ReportingCache} drops a new report instead of enqueueing it, because its
+   * {@link ReportRateLimiter} didn't admit it.
+   */
+  void reportDropped();
+
+  /** Called when a {@link BoundedReportQueue} evicts a report to stay within its limits. */
+  void reportEvicted();
+
+  /**
+   * Called whenever a {@link ReportingCache} chooses an endpoint.  <code>found</code> is
+   * <code>false</code> if there wasn't any endpoint that we could use.
+   */
+  void endpointChosen(boolean found);
+
+  /**
+   * Called after parsing a <code>Report-To</code> header value.  <code>valid</code> is
+   * <code>false</code> if we threw an {@link InvalidHeaderException}.
+   */
+  void reportToHeaderParsed(boolean valid);
+
+  /**
+   * Called after parsing a <code>NEL</code> header value.  <code>valid</code> is <code>false</code>
+   * if we threw an {@link InvalidHeaderException}.
+   */
+  void nelHeaderParsed(boolean valid);
+
+  /** Called when an upload of a batch of <code>reports</code> reports finishes. */
+  void uploadFinished(int reports, long latencyNanos, boolean success);
+
+  /**
+   * Called for each report that was uploaded successfully, with how long it was queued: the time
+   * between when the report was generated and when it was delivered.
+   */
+  void reportDelivered(long ageMillis);
+}
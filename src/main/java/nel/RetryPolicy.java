@@ -0,0 +1,76 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.joda.time.Duration;
+
+/**
+ * Decides how long to wait before retrying an endpoint whose uploads have failed.  The delay grows
+ * exponentially with the number of consecutive failures, up to a maximum, and is randomly reduced
+ * by up to a fraction of its value (the <em>jitter</em>) so that many clients that all failed at
+ * the same time don't all retry at the same time, too.
+ */
+public class RetryPolicy {
+  /**
+   * The default policy: wait one minute after the first failure, doubling for each consecutive
+   * failure up to one hour, with 10% jitter.
+   */
+  public static final RetryPolicy DEFAULT =
+      new RetryPolicy(Duration.standardMinutes(1), Duration.standardHours(1), 2.0, 0.1);
+
+  /**
+   * Creates a new retry policy.  After the first failure we wait <code>initialDelay</code>; each
+   * consecutive failure multiplies the delay by <code>multiplier</code>, up to
+   * <code>maximumDelay</code>.  <code>jitter</code> must be between 0 and 1.
+   */
+  public RetryPolicy(Duration initialDelay, Duration maximumDelay, double multiplier,
+      double jitter) {
+    if (multiplier < 1.0) {
+      throw new IllegalArgumentException("multiplier must be at least 1");
+    }
+    if (jitter < 0.0 || jitter > 1.0) {
+      throw new IllegalArgumentException("jitter must be between 0 and 1");
+    }
+    this.initialDelay = initialDelay;
+    this.maximumDelay = maximumDelay;
+    this.multiplier = multiplier;
+    this.jitter = jitter;
+  }
+
+  /**
+   * Returns how long to wait before retrying an endpoint that has failed <code>failures</code>
+   * times in a row.
+   */
+  public Duration getRetryDelay(int failures) {
+    double delay = initialDelay.getMillis();
+    double maximum = maximumDelay.getMillis();
+    for (int i = 1; i < failures && delay < maximum; i++) {
+      delay *= multiplier;
+    }
+    delay = Math.min(delay, maximum);
+    if (jitter > 0.0) {
+      delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+    }
+    return Duration.millis((long) delay);
+  }
+
+  private Duration initialDelay;
+  private Duration maximumDelay;
+  private double multiplier;
+  private double jitter;
+}
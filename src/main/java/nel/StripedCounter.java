@@ -0,0 +1,67 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment at once without contending on a single memory
+ * location.  Each thread adds to one of several stripes, chosen by its thread ID, and reading the
+ * counter adds up all of the stripes.  Each stripe gets a cache line of its own, so that threads
+ * updating neighboring stripes don't slow each other down.  This class is thread-safe.
+ */
+class StripedCounter {
+  StripedCounter() {
+    this.mask = STRIPES - 1;
+    this.cells = new AtomicLongArray(STRIPES * PADDING);
+  }
+
+  void increment() {
+    add(1);
+  }
+
+  void add(long delta) {
+    cells.getAndAdd(stripe() * PADDING, delta);
+  }
+
+  /**
+   * Returns the sum of all of the stripes.  Updates that happen while we're adding them up might or
+   * might not be included.
+   */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  private int stripe() {
+    // Thread IDs are usually sequential, so mix them up a bit before picking a stripe.
+    long id = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+    return (int) (id >>> 32) & mask;
+  }
+
+  /** The number of stripes, which is the next power of two at or above the number of CPUs. */
+  private static final int STRIPES =
+      Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+  /** The number of longs between stripes, so that each one gets its own 64-byte cache line. */
+  private static final int PADDING = 8;
+
+  private int mask;
+  private AtomicLongArray cells;
+}
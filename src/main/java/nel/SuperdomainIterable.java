@@ -0,0 +1,89 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates through all of the entries in a map that cover a particular origin.  This includes any
+ * entry for the origin itself, as well as the entries for all of the origin's superdomains, with
+ * more specific matches occurring first.  This is shared by {@link OriginMap} and {@link
+ * ConcurrentOriginMap}.
+ *
+ * <p>
+ * We look up each superdomain using a single {@link SuperdomainKey}, so apart from the iterator
+ * itself, walking through the superdomains doesn't allocate anything.
+ * </p>
+ */
+class SuperdomainIterable<V> implements Iterable<V> {
+  SuperdomainIterable(Map<Origin, V> map, Origin origin) {
+    this.map = map;
+    this.origin = origin;
+  }
+
+  public Iterator<V> iterator() {
+    return new AllIterator();
+  }
+
+  private class AllIterator implements Iterator<V> {
+    private AllIterator() {
+      this.key = new SuperdomainKey(origin);
+      this.done = false;
+      this.nextElement = null;
+      advance();
+    }
+
+    private void advance() {
+      while (!done) {
+        nextElement = map.get(key);
+        done = !key.toSuperdomain();
+        if (nextElement != null) {
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextElement != null;
+    }
+
+    @Override
+    public V next() {
+      if (nextElement == null) {
+        throw new NoSuchElementException();
+      }
+      V result = nextElement;
+      nextElement = null;
+      advance();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Cannot remove from OriginMap#getAll");
+    }
+
+    private SuperdomainKey key;
+    private boolean done;
+    private V nextElement;
+  }
+
+  private Map<Origin, V> map;
+  private Origin origin;
+}
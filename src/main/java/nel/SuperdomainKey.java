@@ -0,0 +1,154 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+/**
+ * A lookup key that walks through an origin and each of its superdomains, without allocating a new
+ * {@link Origin} (and a new host substring) for each one.  At each step, the key is equal to, and
+ * has the same hash code as, the {@link Origin} that {@link Origin#getSuperdomainOrigin} would have
+ * returned, so you can pass it to <code>Map.get</code> on any map keyed by origin.
+ *
+ * <p>
+ * The key only ever represents a suffix of the original host, so we can calculate the hash code of
+ * each superdomain by removing the contribution of each character that we skip over from the hash
+ * code of the full host.  That means that walking through all of the superdomains of a host takes
+ * time proportional to the length of the host, not to its length times its number of labels.
+ * </p>
+ *
+ * <p>
+ * Keys are only meant to be used for lookups; never add one to a map.
+ * </p>
+ */
+final class SuperdomainKey {
+  /** Creates a new key that is initially equal to <code>origin</code>. */
+  SuperdomainKey(Origin origin) {
+    reset(origin);
+  }
+
+  /**
+   * Returns a key owned by the current thread, reset so that it's equal to <code>origin</code>.
+   * This lets hot paths walk through superdomains without allocating anything at all.  The key is
+   * reset by the next call to this method on the same thread, so you must be done with it before
+   * calling anything that might perform a superdomain walk of its own.
+   */
+  static SuperdomainKey forCurrentThread(Origin origin) {
+    SuperdomainKey key = THREAD_KEYS.get();
+    key.reset(origin);
+    return key;
+  }
+
+  /** Resets the key so that it is equal to <code>origin</code>. */
+  void reset(Origin origin) {
+    this.scheme = origin.getScheme();
+    this.host = origin.getHost();
+    this.port = origin.getPort();
+    this.start = 0;
+    this.hostHash = host == null ? 0 : host.hashCode();
+    // The first character of the host is multiplied by 31^(length - 1) in its hash code.
+    this.multiplier = 1;
+    if (host != null) {
+      for (int i = 1; i < host.length(); i++) {
+        multiplier *= 31;
+      }
+    }
+    updateHash();
+  }
+
+  /**
+   * Moves the key to the superdomain of the host it currently represents.  Returns
+   * <code>false</code> (and leaves the key unchanged) if the current host has no superdomain.
+   */
+  boolean toSuperdomain() {
+    if (host == null) {
+      return false;
+    }
+    int dot = host.indexOf('.', start);
+    if (dot == -1) {
+      return false;
+    }
+    for (; start <= dot; start++) {
+      hostHash -= host.charAt(start) * multiplier;
+      multiplier *= INVERSE_31;
+    }
+    updateHash();
+    return true;
+  }
+
+  /** Returns a new origin for the host that the key currently represents. */
+  Origin toOrigin() {
+    return new Origin(scheme, host == null ? null : host.substring(start), port);
+  }
+
+  private void updateHash() {
+    // This must match the hash code that Origin precomputes.
+    int result = 31 + (scheme == null ? 0 : scheme.hashCode());
+    result = 31 * result + hostHash;
+    hash = 31 * result + port;
+  }
+
+  private boolean hostEquals(String other) {
+    if (host == null || other == null) {
+      return host == other;
+    }
+    int length = host.length() - start;
+    return other.length() == length && host.regionMatches(start, other, 0, length);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj instanceof Origin) {
+      Origin other = (Origin) obj;
+      return port == other.getPort() && hostEquals(other.getHost())
+          && (scheme == null ? other.getScheme() == null : scheme.equals(other.getScheme()));
+    }
+    if (obj instanceof SuperdomainKey) {
+      SuperdomainKey other = (SuperdomainKey) obj;
+      return port == other.port && hash == other.hash
+          && (host == null ? other.host == null : other.hostEquals(host.substring(start)))
+          && (scheme == null ? other.scheme == null : scheme.equals(other.scheme));
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return toOrigin().toString();
+  }
+
+  /** The multiplicative inverse of 31, modulo 2^32. */
+  private static final int INVERSE_31 = 0xbdef7bdf;
+
+  private static final ThreadLocal<SuperdomainKey> THREAD_KEYS =
+      new ThreadLocal<SuperdomainKey>() {
+        @Override
+        protected SuperdomainKey initialValue() {
+          return new SuperdomainKey(new Origin("https", null, 443));
+        }
+      };
+
+  private String scheme;
+  private String host;
+  private int port;
+  private int start;
+  private int hostHash;
+  private int multiplier;
+  private int hash;
+}
@@ -0,0 +1,191 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.net.URL;
+import java.util.HashMap;
+
+/**
+ * Limits how hard we hit report collectors, by capping the number of uploads in flight and the
+ * number of bytes uploaded per second, both for each collector and across all of them.  This keeps
+ * a backlog of queued reports (for instance, once a collector recovers from an outage) from all
+ * being thrown at the collector at once.  Collectors are identified by their upload URL, so
+ * endpoints in different groups that share a URL share their limits, too.
+ *
+ * <p>
+ * Byte rates are enforced with token buckets that hold up to one second's worth of bytes, and are
+ * refilled lazily.  An upload is allowed as long as its buckets aren't empty, even if its payload
+ * is larger than what's left in them; the bucket then goes into debt, and no other uploads are
+ * allowed until it has been paid back.  That way a payload that's larger than a whole second's
+ * worth of bytes can still be uploaded eventually.
+ * </p>
+ *
+ * <p>
+ * Limiters never block; {@link #tryAcquire} tells you whether an upload may start right now, and
+ * it's up to you to hold on to the upload and try again later.  {@link UploadScheduler} does this
+ * for you.  This class is thread-safe.
+ * </p>
+ */
+public class UploadLimiter {
+  /** Creates a new limiter that doesn't limit anything until you set its limits. */
+  public UploadLimiter() {
+    this.maxInFlight = Integer.MAX_VALUE;
+    this.maxInFlightPerEndpoint = Integer.MAX_VALUE;
+    this.maxBytesPerSecond = Long.MAX_VALUE;
+    this.maxBytesPerSecondPerEndpoint = Long.MAX_VALUE;
+    this.global = new State();
+    this.endpoints = new HashMap<String, State>();
+  }
+
+  public synchronized int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /** Sets the maximum number of uploads, to any collector, that can be in flight at once. */
+  public synchronized UploadLimiter setMaxInFlight(int maxInFlight) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+    this.maxInFlight = maxInFlight;
+    return this;
+  }
+
+  public synchronized int getMaxInFlightPerEndpoint() {
+    return maxInFlightPerEndpoint;
+  }
+
+  /** Sets the maximum number of uploads to any single collector that can be in flight at once. */
+  public synchronized UploadLimiter setMaxInFlightPerEndpoint(int maxInFlightPerEndpoint) {
+    if (maxInFlightPerEndpoint <= 0) {
+      throw new IllegalArgumentException("maxInFlightPerEndpoint must be positive");
+    }
+    this.maxInFlightPerEndpoint = maxInFlightPerEndpoint;
+    return this;
+  }
+
+  public synchronized long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  /** Sets the maximum number of payload bytes per second that we upload to all collectors. */
+  public synchronized UploadLimiter setMaxBytesPerSecond(long maxBytesPerSecond) {
+    if (maxBytesPerSecond <= 0) {
+      throw new IllegalArgumentException("maxBytesPerSecond must be positive");
+    }
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    return this;
+  }
+
+  public synchronized long getMaxBytesPerSecondPerEndpoint() {
+    return maxBytesPerSecondPerEndpoint;
+  }
+
+  /** Sets the maximum number of payload bytes per second that we upload to any single collector. */
+  public synchronized UploadLimiter setMaxBytesPerSecondPerEndpoint(
+      long maxBytesPerSecondPerEndpoint) {
+    if (maxBytesPerSecondPerEndpoint <= 0) {
+      throw new IllegalArgumentException("maxBytesPerSecondPerEndpoint must be positive");
+    }
+    this.maxBytesPerSecondPerEndpoint = maxBytesPerSecondPerEndpoint;
+    return this;
+  }
+
+  /**
+   * Tries to start an upload of <code>bytes</code> bytes to <code>url</code> at
+   * <code>nowMillis</code>.  Returns <code>false</code> if that would exceed any of our limits.  If
+   * we return <code>true</code>, you must call {@link #release} once the upload has finished,
+   * whether or not it succeeded.
+   */
+  public synchronized boolean tryAcquire(URL url, long bytes, long nowMillis) {
+    if (global.inFlight >= maxInFlight) {
+      return false;
+    }
+    String key = url.toString();
+    State endpoint = endpoints.get(key);
+    if (endpoint == null) {
+      endpoint = new State();
+    }
+    if (endpoint.inFlight >= maxInFlightPerEndpoint) {
+      return false;
+    }
+    global.refill(nowMillis, maxBytesPerSecond);
+    endpoint.refill(nowMillis, maxBytesPerSecondPerEndpoint);
+    if (global.tokens <= 0 || endpoint.tokens <= 0) {
+      return false;
+    }
+    global.take(bytes);
+    endpoint.take(bytes);
+    endpoints.put(key, endpoint);
+    return true;
+  }
+
+  /** Records that an upload to <code>url</code> that was allowed by {@link #tryAcquire} is done. */
+  public synchronized void release(URL url) {
+    String key = url.toString();
+    State endpoint = endpoints.get(key);
+    if (endpoint == null) {
+      return;
+    }
+    global.inFlight--;
+    endpoint.inFlight--;
+    if (endpoint.inFlight == 0 && (maxBytesPerSecondPerEndpoint == Long.MAX_VALUE
+        || endpoint.tokens >= maxBytesPerSecondPerEndpoint)) {
+      // Nothing in flight, and no bytes to earn back, so there's nothing worth remembering.
+      endpoints.remove(key);
+    }
+  }
+
+  /** Returns the number of uploads, to any collector, that are currently in flight. */
+  public synchronized int getInFlightCount() {
+    return global.inFlight;
+  }
+
+  /** The in-flight uploads and byte bucket for all collectors, or for a single one. */
+  private static class State {
+    State() {
+      this.inFlight = 0;
+      this.tokens = Double.MAX_VALUE;
+      this.refilledAt = Long.MIN_VALUE;
+    }
+
+    /** Adds the bytes that we've earned since we last refilled, up to one second's worth. */
+    void refill(long nowMillis, long bytesPerSecond) {
+      if (nowMillis > refilledAt) {
+        if (refilledAt != Long.MIN_VALUE) {
+          tokens += (nowMillis - refilledAt) * (bytesPerSecond / 1000.0);
+        }
+        refilledAt = nowMillis;
+      }
+      tokens = Math.min(tokens, bytesPerSecond);
+    }
+
+    void take(long bytes) {
+      inFlight++;
+      tokens -= bytes;
+    }
+
+    private int inFlight;
+    private double tokens;
+    private long refilledAt;
+  }
+
+  private int maxInFlight;
+  private int maxInFlightPerEndpoint;
+  private long maxBytesPerSecond;
+  private long maxBytesPerSecondPerEndpoint;
+  private State global;
+  private HashMap<String, State> endpoints;
+}
@@ -0,0 +1,376 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ * Periodically drains the queued reports in a {@link ReportingCache}, uploading each batch as a
+ * separate task on an {@link Executor}.  At most a fixed number of uploads are in flight at any
+ * time; any remaining reports are picked up by a later tick.  An {@link UploadLimiter} can also
+ * cap the uploads in flight and bytes per second for each collector.
+ *
+ * <p>
+ * Failed uploads are retried with exponential backoff: {@link ReportingCache#markBatchFailed} marks
+ * the batch's endpoint as pending for a delay chosen by the cache's {@link RetryPolicy}, and we
+ * won't upload to a pending endpoint until that delay has passed.
+ * </p>
+ *
+ * <p>
+ * If you give the scheduler a {@link PayloadCompressor}, large payloads are compressed before
+ * they're uploaded, and the limiter's byte rate applies to the compressed size.  Compressors
+ * aren't thread-safe, so the scheduler keeps a pool of them, creating a copy of the one that you
+ * provide whenever more uploads are encoding at once than there are idle compressors.
+ * </p>
+ *
+ * <p>
+ * The executor can be anything, including one that starts a new virtual thread for each upload on
+ * JDKs that support them.  If it runs uploads on a different thread than the one calling {@link
+ * #tick}, the cache must be a {@link ConcurrentReportingCache}.  All timestamps come from a {@link
+ * Clock}, so tests can drive the scheduler with a fake clock and an executor that runs each task
+ * immediately.
+ * </p>
+ */
+public class UploadScheduler {
+  /**
+   * Creates a new scheduler that uploads the reports in <code>cache</code>, running at most
+   * <code>maxInFlight</code> uploads at a time on <code>executor</code>.
+   */
+  public UploadScheduler(ReportingCache cache, ReportDeliverer deliverer, Executor executor,
+      int maxInFlight, Clock clock) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.cache = cache;
+    this.deliverer = deliverer;
+    this.compressedDeliverer = null;
+    this.compressor = null;
+    this.idleCompressors = new ConcurrentLinkedQueue<PayloadCompressor>();
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.clock = clock;
+    this.inFlight = new AtomicInteger();
+    this.limiter = null;
+    this.waiting = new ArrayDeque<Upload>();
+  }
+
+  /**
+   * Creates a new scheduler that uploads the reports in <code>cache</code>, running at most
+   * <code>maxInFlight</code> uploads at a time on <code>executor</code>, using the system clock.
+   */
+  public UploadScheduler(ReportingCache cache, ReportDeliverer deliverer, Executor executor,
+      int maxInFlight) {
+    this(cache, deliverer, executor, maxInFlight, Clock.SYSTEM);
+  }
+
+  /**
+   * Creates a new scheduler that uploads the reports in <code>cache</code>, running at most
+   * <code>maxInFlight</code> uploads at a time on <code>executor</code>, and using
+   * <code>compressor</code> (or copies of it) to compress batches that are large enough to be
+   * worth it.
+   */
+  public UploadScheduler(ReportingCache cache, CompressedReportDeliverer deliverer,
+      PayloadCompressor compressor, Executor executor, int maxInFlight, Clock clock) {
+    this(cache, deliverer, executor, maxInFlight, clock);
+    this.compressedDeliverer = deliverer;
+    this.compressor = compressor;
+    this.idleCompressors.add(compressor);
+  }
+
+  /** Returns the number of uploads that have been started but haven't finished yet. */
+  public int getInFlightCount() {
+    return inFlight.get();
+  }
+
+  public UploadLimiter getUploadLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Sets the limiter that decides how many uploads can be in flight to each collector, and how
+   * many bytes per second we can send them.  Pass <code>null</code> (the default) to only limit
+   * uploads by this scheduler's <code>maxInFlight</code>.
+   *
+   * <p>
+   * Uploads that the limiter doesn't admit keep their batch and encoded payload, and wait until
+   * another upload finishes or the next tick.  At most <code>maxInFlight</code> uploads can be
+   * waiting at once; any more than that have their batches returned to the cache, to be collected
+   * again by a later tick.
+   * </p>
+   */
+  public void setUploadLimiter(UploadLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  /** Returns the number of uploads that are waiting for the limiter to admit them. */
+  public int getWaitingCount() {
+    synchronized (waiting) {
+      return waiting.size();
+    }
+  }
+
+  /**
+   * Starts uploads for as many queued reports as the in-flight limit allows.  Returns the number of
+   * uploads that were started.
+   */
+  public synchronized int tick() {
+    startWaiting();
+    int available = maxInFlight - inFlight.get();
+    if (available <= 0) {
+      return 0;
+    }
+    List<ReportBatch> batches = cache.getReportBatches(clock.now(), available);
+    int started = 0;
+    for (ReportBatch batch : batches) {
+      inFlight.incrementAndGet();
+      try {
+        executor.execute(new Upload(batch));
+        started++;
+      } catch (RejectedExecutionException e) {
+        inFlight.decrementAndGet();
+        cache.releaseBatch(batch);
+      }
+    }
+    return started;
+  }
+
+  /**
+   * Calls {@link #tick} on <code>timer</code> every <code>interval</code>, until {@link #stop} is
+   * called.  If a call throws, we pass the exception to the timer thread's uncaught exception
+   * handler and keep going.
+   */
+  public synchronized void start(ScheduledExecutorService timer, Duration interval) {
+    if (ticker != null) {
+      throw new IllegalStateException("Scheduler is already running");
+    }
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          tick();
+        } catch (RuntimeException e) {
+          // If this escaped, the timer would cancel the schedule and we'd stop uploading for good.
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    };
+    ticker = timer.scheduleWithFixedDelay(
+        task, interval.getMillis(), interval.getMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops calling {@link #tick} periodically.  Uploads that have already started are allowed to
+   * finish.
+   */
+  public synchronized void stop() {
+    if (ticker != null) {
+      ticker.cancel(false);
+      ticker = null;
+    }
+  }
+
+  private class Upload implements Runnable {
+    Upload(ReportBatch batch) {
+      this.batch = batch;
+      this.url = batch.getEndpoint().getUrl();
+      this.payload = null;
+      this.contentEncoding = null;
+      this.admitted = false;
+      this.heldLimiter = null;
+    }
+
+    @Override
+    public void run() {
+      boolean finished = false;
+      try {
+        Instant now = clock.now();
+        if (batch.getEndpoint().isPending(now)) {
+          // Another upload to the same endpoint failed after this batch was collected; don't try
+          // it again until its retry delay has passed.
+          return;
+        }
+        if (payload == null) {
+          try {
+            encode(now);
+          } catch (IOException e) {
+            // We never got as far as talking to the collector, so this isn't the endpoint's fault
+            // and there's no latency to record.  Leaving finished unset returns the batch to the
+            // cache.
+            return;
+          }
+        }
+        if (!admitted && !tryAdmit(limiter, now.getMillis())) {
+          // We're over one of the limiter's limits.  Hold on to the encoded payload until another
+          // upload finishes or the next tick, unless there are already too many waiting.
+          finished = park(this);
+          return;
+        }
+        // Only the delivery itself counts towards the upload's latency, not encoding the payload or
+        // waiting for the limiter.
+        long start = System.nanoTime();
+        try {
+          if (compressedDeliverer != null) {
+            compressedDeliverer.deliverReports(url, payload, contentEncoding);
+          } else {
+            deliverer.deliverReports(url, payload);
+          }
+        } catch (IOException e) {
+          Instant failed = clock.now();
+          cache.recordUpload(failed, batch, System.nanoTime() - start, false);
+          cache.markBatchFailed(failed, batch);
+          finished = true;
+          return;
+        }
+        cache.recordUpload(clock.now(), batch, System.nanoTime() - start, true);
+        cache.markBatchDelivered(batch);
+        finished = true;
+      } finally {
+        if (!finished) {
+          cache.releaseBatch(batch);
+        }
+        inFlight.decrementAndGet();
+        if (heldLimiter != null) {
+          heldLimiter.release(url);
+          heldLimiter = null;
+          startWaiting();
+        }
+      }
+    }
+
+    /** Renders the batch's reports, compressing them if we have a compressor. */
+    private void encode(Instant now) throws IOException {
+      if (compressor == null) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        batch.writeTo(new ReportEncoder(), now, output);
+        payload = output.toByteArray();
+        return;
+      }
+      PayloadCompressor pooled = idleCompressors.poll();
+      if (pooled == null) {
+        pooled = compressor.copy();
+      }
+      try {
+        PayloadCompressor.Payload encoded = pooled.encode(batch, new ReportEncoder(), now);
+        payload = encoded.getBytes();
+        contentEncoding = encoded.getContentEncoding();
+      } finally {
+        idleCompressors.add(pooled);
+      }
+    }
+
+    /**
+     * Asks <code>limiter</code> whether this upload may start.  The payload must already be
+     * encoded, since the limiter needs to know its size.
+     */
+    boolean tryAdmit(UploadLimiter limiter, long nowMillis) {
+      if (limiter != null) {
+        if (!limiter.tryAcquire(url, payload.length, nowMillis)) {
+          return false;
+        }
+        heldLimiter = limiter;
+      }
+      admitted = true;
+      return true;
+    }
+
+    /** Gives up on a waiting upload that we couldn't start, returning its batch to the cache. */
+    void abandon() {
+      if (heldLimiter != null) {
+        heldLimiter.release(url);
+        heldLimiter = null;
+      }
+      cache.releaseBatch(batch);
+    }
+
+    private ReportBatch batch;
+    private URL url;
+    private byte[] payload;
+    private String contentEncoding;
+    private boolean admitted;
+    private UploadLimiter heldLimiter;
+  }
+
+  /**
+   * Adds an upload that the limiter didn't admit to the waiting list.  Returns <code>false</code>
+   * if the list is already full.
+   */
+  private boolean park(Upload upload) {
+    synchronized (waiting) {
+      if (waiting.size() >= maxInFlight) {
+        return false;
+      }
+      waiting.add(upload);
+      return true;
+    }
+  }
+
+  /** Starts every waiting upload that the limiter will now admit, oldest first. */
+  private void startWaiting() {
+    UploadLimiter limiter = this.limiter;
+    long now = clock.now().getMillis();
+    ArrayList<Upload> ready = new ArrayList<Upload>();
+    synchronized (waiting) {
+      Iterator<Upload> iter = waiting.iterator();
+      while (iter.hasNext()) {
+        Upload upload = iter.next();
+        if (upload.tryAdmit(limiter, now)) {
+          iter.remove();
+          ready.add(upload);
+        }
+      }
+    }
+    for (Upload upload : ready) {
+      inFlight.incrementAndGet();
+      try {
+        executor.execute(upload);
+      } catch (RejectedExecutionException e) {
+        inFlight.decrementAndGet();
+        upload.abandon();
+      }
+    }
+  }
+
+  private ReportingCache cache;
+  private ReportDeliverer deliverer;
+  private CompressedReportDeliverer compressedDeliverer;
+  private PayloadCompressor compressor;
+  /** Compressors that aren't being used by an upload right now. */
+  private ConcurrentLinkedQueue<PayloadCompressor> idleCompressors;
+  private Executor executor;
+  private int maxInFlight;
+  private Clock clock;
+  private AtomicInteger inFlight;
+  private volatile UploadLimiter limiter;
+  private ArrayDeque<Upload> waiting;
+  private ScheduledFuture<?> ticker;
+}
@@ -0,0 +1,246 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import nel.BoundedReportQueue.EvictionPolicy;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class BoundedReportQueueTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant I_1302 = Instant.parse("2018-02-20T13:02:00.000Z");
+  private static final Instant I_1303 = Instant.parse("2018-02-20T13:03:00.000Z");
+
+  private QueuedReport makeReport(String uri, Instant timestamp, Type type) {
+    Report report = new Report()
+        .setTimestamp(timestamp)
+        .setUri(uri)
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(type);
+    return new QueuedReport(report, "nel");
+  }
+
+  @Test
+  public void isUnboundedByDefault() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST);
+    for (int i = 0; i < 1000; i++) {
+      queue.add(makeReport("https://example.com/", I_1300, Type.OK));
+    }
+    assertEquals(1000, queue.size());
+    assertEquals(0, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void oldestFirstEvictsOldestReport() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxReports(2);
+    QueuedReport r1 = makeReport("https://example.com/", I_1301, Type.OK);
+    QueuedReport r2 = makeReport("https://example.com/", I_1300, Type.TCP_RESET);
+    QueuedReport r3 = makeReport("https://example.com/", I_1302, Type.OK);
+    queue.add(r1);
+    queue.add(r2);
+    queue.add(r3);
+    assertEquals(2, queue.size());
+    assertFalse(queue.getAll().contains(r2));
+    assertEquals(1, queue.getEvictedReportCount());
+    assertEquals(1, queue.getEvictedErrorReportCount());
+  }
+
+  @Test
+  public void preferErrorsEvictsSuccessfulReportsFirst() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.PREFER_ERRORS)
+        .setMaxReports(2);
+    QueuedReport error1 = makeReport("https://example.com/", I_1300, Type.TCP_RESET);
+    QueuedReport ok = makeReport("https://example.com/", I_1301, Type.OK);
+    QueuedReport error2 = makeReport("https://example.com/", I_1302, Type.DNS_FAILED);
+    QueuedReport error3 = makeReport("https://example.com/", I_1303, Type.DNS_FAILED);
+    queue.add(error1);
+    queue.add(ok);
+    queue.add(error2);
+    assertTrue(queue.getAll().containsAll(Arrays.asList(error1, error2)));
+    assertEquals(0, queue.getEvictedErrorReportCount());
+    // Once there are only errors left, we have to start evicting them.
+    queue.add(error3);
+    assertTrue(queue.getAll().containsAll(Arrays.asList(error2, error3)));
+    assertEquals(2, queue.getEvictedReportCount());
+    assertEquals(1, queue.getEvictedErrorReportCount());
+  }
+
+  @Test
+  public void fairShareEvictsFromLargestOrigin() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.FAIR_SHARE)
+        .setMaxReports(4);
+    QueuedReport quiet = makeReport("https://quiet.example.com/", I_1300, Type.OK);
+    queue.add(quiet);
+    for (int i = 0; i < 10; i++) {
+      queue.add(makeReport("https://noisy.example.com/", I_1301, Type.TCP_RESET));
+    }
+    assertEquals(4, queue.size());
+    assertTrue(queue.getAll().contains(quiet));
+    assertEquals(7, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void fairShareTracksLargestOriginAfterRemovals() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.FAIR_SHARE);
+    QueuedReport a1 = makeReport("https://a.example.com/", I_1300, Type.OK);
+    QueuedReport a2 = makeReport("https://a.example.com/", I_1301, Type.OK);
+    QueuedReport a3 = makeReport("https://a.example.com/", I_1302, Type.OK);
+    QueuedReport b1 = makeReport("https://b.example.com/", I_1300, Type.OK);
+    QueuedReport b2 = makeReport("https://b.example.com/", I_1301, Type.OK);
+    queue.add(a1);
+    queue.add(a2);
+    queue.add(a3);
+    queue.add(b1);
+    queue.add(b2);
+    queue.removeAll(Arrays.asList(a1, a2));
+    // b.example.com is now the largest origin, so it's the one that loses a report.
+    queue.setMaxReports(2);
+    assertEquals(2, queue.size());
+    assertTrue(queue.getAll().containsAll(Arrays.asList(a3, b2)));
+  }
+
+  @Test
+  public void enforcesPerOriginLimit() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxReportsPerOrigin(3);
+    for (int i = 0; i < 5; i++) {
+      queue.add(makeReport("https://a.example.com/", I_1300, Type.OK));
+      queue.add(makeReport("https://b.example.com/", I_1300, Type.OK));
+    }
+    assertEquals(6, queue.size());
+    assertEquals(4, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void enforcesByteLimit() {
+    QueuedReport report = makeReport("https://example.com/", I_1300, Type.OK);
+    long size = BoundedReportQueue.estimateSize(report);
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxBytes(size * 3);
+    for (int i = 0; i < 5; i++) {
+      queue.add(makeReport("https://example.com/", I_1300, Type.OK));
+    }
+    assertEquals(3, queue.size());
+    assertEquals(size * 3, queue.getEstimatedBytes());
+    assertEquals(2, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void dropsReportsLargerThanByteLimit() {
+    QueuedReport report = makeReport("https://example.com/", I_1300, Type.OK);
+    long size = BoundedReportQueue.estimateSize(report);
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxBytes(size * 2);
+    QueuedReport r1 = makeReport("https://example.com/", I_1300, Type.OK);
+    QueuedReport r2 = makeReport("https://example.com/", I_1301, Type.OK);
+    StringBuilder uri = new StringBuilder("https://example.com/");
+    for (long i = 0; i < size; i++) {
+      uri.append('a');
+    }
+    QueuedReport huge = makeReport(uri.toString(), I_1302, Type.TCP_RESET);
+    queue.add(r1);
+    queue.add(r2);
+    // The huge report can never fit, so it shouldn't push out the reports that already do.
+    queue.add(huge);
+    assertEquals(Arrays.asList(r1, r2), queue.getAll());
+    assertEquals(size * 2, queue.getEstimatedBytes());
+    assertEquals(1, queue.getEvictedReportCount());
+    assertEquals(1, queue.getEvictedErrorReportCount());
+  }
+
+  @Test
+  public void loweringLimitEvictsImmediately() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST);
+    for (int i = 0; i < 5; i++) {
+      queue.add(makeReport("https://example.com/", I_1300, Type.OK));
+    }
+    queue.setMaxReports(2);
+    assertEquals(2, queue.size());
+    assertEquals(3, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void removalsAreNotCountedAsEvictions() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxReports(10);
+    QueuedReport old = makeReport("https://example.com/", I_1300, Type.OK);
+    QueuedReport recent = makeReport("https://example.com/", I_1302, Type.OK);
+    queue.add(old);
+    queue.add(recent);
+    queue.removeOlderThan(I_1301);
+    assertEquals(Arrays.asList(recent), queue.getAll());
+    queue.removeAll(Arrays.asList(recent));
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.getEstimatedBytes());
+    assertEquals(0, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void removingOldReportsUpdatesOriginCounts() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxReportsPerOrigin(2);
+    QueuedReport old = makeReport("https://example.com/", I_1300, Type.OK);
+    QueuedReport recent = makeReport("https://example.com/", I_1302, Type.OK);
+    QueuedReport newest = makeReport("https://example.com/", I_1303, Type.OK);
+    queue.add(old);
+    queue.add(recent);
+    queue.removeOlderThan(I_1301);
+    // The expired report no longer counts against the origin's limit.
+    queue.add(newest);
+    assertEquals(2, queue.size());
+    assertTrue(queue.getAll().containsAll(Arrays.asList(recent, newest)));
+    assertEquals(0, queue.getEvictedReportCount());
+    assertEquals(2 * BoundedReportQueue.estimateSize(recent), queue.getEstimatedBytes());
+  }
+
+  @Test
+  public void removingOldReportsSkipsEvictedReports() {
+    BoundedReportQueue queue = new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST)
+        .setMaxReports(1);
+    QueuedReport old = makeReport("https://example.com/", I_1300, Type.OK);
+    QueuedReport recent = makeReport("https://example.com/", I_1302, Type.OK);
+    queue.add(old);
+    queue.add(recent);
+    queue.removeOlderThan(I_1303);
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.getEstimatedBytes());
+    assertEquals(1, queue.getEvictedReportCount());
+  }
+
+  @Test
+  public void canBeUsedByReportingCache() {
+    ReportingCache cache = new ReportingCache(
+        new BoundedReportQueue(EvictionPolicy.OLDEST_FIRST).setMaxReports(3));
+    for (int i = 0; i < 5; i++) {
+      cache.enqueueReport(makeReport("https://example.com/", I_1300, Type.OK).getReport());
+    }
+    assertEquals(3, cache.getQueuedReportCount());
+  }
+
+}
@@ -0,0 +1,191 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheSnapshotTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant I_1330 = Instant.parse("2018-02-20T13:30:00.000Z");
+  private static final Instant I_1400 = Instant.parse("2018-02-20T14:00:00.000Z");
+  private static final Instant I_1430 = Instant.parse("2018-02-20T14:30:00.000Z");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void canRestoreClientsAndPolicies() throws IOException {
+    Origin origin = new Origin("https", "example.com", 443);
+    Client client = new Client(origin);
+    EndpointGroup group = new EndpointGroup("nel", true, Duration.standardHours(1), I_1300);
+    Endpoint primary = new Endpoint(new URL("https://example.com/upload/1"), 1, 2);
+    Endpoint backup = new Endpoint(new URL("https://example.com/upload/2"), 2, 1);
+    group.addEndpoint(primary);
+    group.addEndpoint(backup);
+    client.addGroup(group);
+    primary.recordFailure(I_1330);
+    NelPolicy policy =
+        new NelPolicy(origin, "nel", true, 0.25, 1.0, Duration.standardHours(1), I_1300);
+    ReportingCache cache = new ReportingCache();
+    cache.addClient(client);
+    cache.addPolicy(policy);
+
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    cache.saveSnapshot(file);
+    ReportingCache restored = new ReportingCache();
+    assertTrue(restored.loadSnapshot(file, I_1301));
+
+    assertEquals(1, restored.getClients().size());
+    Client restoredClient = restored.getClients().iterator().next();
+    assertEquals(client, restoredClient);
+    EndpointGroup restoredGroup = restoredClient.getGroup("nel");
+    assertEquals(I_1300, restoredGroup.getCreation());
+    // The primary endpoint's failure state should have been restored, too.
+    assertEquals(1, restoredGroup.getEndpoints().get(0).getFailures());
+    assertEquals(backup, restored.chooseEndpoint(I_1301, origin, "nel"));
+    assertEquals(primary, restored.chooseEndpoint(I_1330, origin, "nel"));
+    assertEquals(policy, restored.getPolicy(I_1301, origin));
+  }
+
+  @Test
+  public void skipsExpiredEntries() throws IOException {
+    Origin shortLived = new Origin("https", "short.example.com", 443);
+    Origin longLived = new Origin("https", "long.example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    for (Origin origin : new Origin[] {shortLived, longLived}) {
+      Duration ttl = Duration.standardMinutes(origin == shortLived ? 30 : 120);
+      Client client = new Client(origin);
+      EndpointGroup group = new EndpointGroup("nel", false, ttl, I_1300);
+      group.addEndpoint(new Endpoint(new URL("https://collector.example.com/upload")));
+      client.addGroup(group);
+      cache.addClient(client);
+      cache.addPolicy(new NelPolicy(origin, "nel", false, 0.0, 1.0, ttl, I_1300));
+    }
+
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    cache.saveSnapshot(file);
+    ReportingCache restored = new ReportingCache();
+    assertTrue(restored.loadSnapshot(file, I_1400));
+    assertEquals(1, restored.getClients().size());
+    assertEquals(longLived, restored.getClients().iterator().next().getOrigin());
+    assertEquals(null, restored.getPolicy(I_1400, shortLived));
+    assertTrue(restored.getPolicy(I_1400, longLived) != null);
+
+    ReportingCache tooLate = new ReportingCache();
+    assertTrue(tooLate.loadSnapshot(file, I_1430.plus(Duration.standardHours(1))));
+    assertEquals(0, tooLate.getClients().size());
+    assertEquals(0, tooLate.getPolicies().size());
+  }
+
+  @Test
+  public void ignoresMissingSnapshot() throws IOException {
+    ReportingCache cache = new ReportingCache();
+    assertFalse(cache.loadSnapshot(folder.getRoot().toPath().resolve("missing"), I_1300));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsCorruptSnapshot() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    new ReportingCache().loadSnapshot(file, I_1300);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTruncatedSnapshot() throws IOException {
+    ReportingCache cache = new ReportingCache();
+    Client client = new Client(new Origin("https", "example.com", 443));
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    group.addEndpoint(new Endpoint(new URL("https://example.com/upload")));
+    client.addGroup(group);
+    cache.addClient(client);
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    cache.saveSnapshot(file);
+    byte[] contents = Files.readAllBytes(file);
+    byte[] truncated = new byte[contents.length - 10];
+    System.arraycopy(contents, 0, truncated, 0, truncated.length);
+    Files.write(file, truncated);
+    new ReportingCache().loadSnapshot(file, I_1300);
+  }
+
+  @Test
+  public void truncatedSnapshotLeavesCacheUnchanged() throws IOException {
+    Origin origin = new Origin("https", "example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    Client client = new Client(origin);
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    group.addEndpoint(new Endpoint(new URL("https://example.com/upload")));
+    client.addGroup(group);
+    cache.addClient(client);
+    cache.addPolicy(
+        new NelPolicy(origin, "nel", false, 0.0, 1.0, Duration.standardHours(1), I_1300));
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    cache.saveSnapshot(file);
+    // Cut the file off partway through the policy, after all of the clients.
+    byte[] contents = Files.readAllBytes(file);
+    byte[] truncated = new byte[contents.length - 10];
+    System.arraycopy(contents, 0, truncated, 0, truncated.length);
+    Files.write(file, truncated);
+
+    ReportingCache restored = new ReportingCache();
+    try {
+      restored.loadSnapshot(file, I_1301);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, restored.getClients().size());
+    assertEquals(0, restored.getPolicies().size());
+  }
+
+  @Test
+  public void canRestoreLongStrings() throws IOException {
+    // Longer than the 64KB that DataOutputStream.writeUTF can handle.
+    StringBuilder path = new StringBuilder("https://example.com/");
+    while (path.length() < 70000) {
+      path.append("upload/");
+    }
+    URL url = new URL(path.toString());
+    ReportingCache cache = new ReportingCache();
+    Client client = new Client(new Origin("https", "example.com", 443));
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    group.addEndpoint(new Endpoint(url));
+    client.addGroup(group);
+    cache.addClient(client);
+
+    Path file = folder.getRoot().toPath().resolve("snapshot");
+    cache.saveSnapshot(file);
+    ReportingCache restored = new ReportingCache();
+    assertTrue(restored.loadSnapshot(file, I_1301));
+    EndpointGroup restoredGroup = restored.getClients().iterator().next().getGroup("nel");
+    assertEquals(url, restoredGroup.getEndpoints().get(0).getUrl());
+  }
+
+}
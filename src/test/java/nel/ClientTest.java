@@ -130,4 +130,21 @@ public class ClientTest {
         + "{\"max-age\":1, \"endpoints\": [{\"url\":\"https://b/\"}]}]");
   }
 
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseEmptyHeader() throws InvalidHeaderException, MalformedURLException {
+    checkInvalidHeader("");
+  }
+
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseTrailingContent() throws InvalidHeaderException, MalformedURLException {
+    checkInvalidHeader("{\"max-age\":1, \"endpoints\": [{\"url\":\"https://a/\"}]} {}");
+  }
+
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseFractionalPriority()
+      throws InvalidHeaderException, MalformedURLException {
+    checkInvalidHeader(
+        "{\"max-age\":1, \"endpoints\": [{\"url\":\"https://endpoint/\",\"priority\":1.5}]}");
+  }
+
 }
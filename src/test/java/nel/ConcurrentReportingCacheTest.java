@@ -0,0 +1,136 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class ConcurrentReportingCacheTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private Report makeReport(String uri) {
+    return new Report()
+        .setTimestamp(I_1300)
+        .setUri(uri)
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+  }
+
+  @Test
+  public void canEnqueueFromManyThreads() throws Exception {
+    final ConcurrentReportingCache cache = new ConcurrentReportingCache();
+    final Origin origin = new Origin("https", "example.com", 443);
+    final Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    Client client = new Client(origin);
+    EndpointGroup group = new EndpointGroup("nel", true, Duration.standardHours(1), I_1300);
+    group.addEndpoint(endpoint);
+    client.addGroup(group);
+    cache.addClient(client);
+
+    final int threadCount = 8;
+    final int reportsPerThread = 1000;
+    final AtomicInteger chosen = new AtomicInteger();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < threadCount; i++) {
+      final String host = "thread" + Integer.toString(i) + ".example.com";
+      final String uri = "https://" + host + "/";
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Origin subdomain = new Origin("https", host, 443);
+          for (int j = 0; j < reportsPerThread; j++) {
+            cache.enqueueReport(makeReport(uri));
+            if (cache.chooseEndpoint(I_1301, subdomain, "nel") == endpoint) {
+              chosen.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(threadCount * reportsPerThread, cache.getQueuedReportCount());
+    assertEquals(threadCount * reportsPerThread, chosen.get());
+  }
+
+  @Test
+  public void batchesEachReportOnce() throws MalformedURLException {
+    ConcurrentReportingCache cache = new ConcurrentReportingCache();
+    Client client = new Client(new Origin("https", "example.com", 443));
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    group.addEndpoint(new Endpoint(new URL("https://example.com/upload")));
+    client.addGroup(group);
+    cache.addClient(client);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    assertEquals(1, cache.getReportBatches(I_1301).size());
+    assertEquals(0, cache.getReportBatches(I_1301).size());
+  }
+
+  @Test
+  public void expiryDoesNotOverwriteNewerClients() throws MalformedURLException {
+    final Origin origin = new Origin("https", "example.com", 443);
+    URL url = new URL("https://example.com/upload");
+    // The older client has one group that expires, so sweeping it replaces the client with a copy
+    // that only has its other group.
+    Client older = new Client(origin);
+    EndpointGroup expiring = new EndpointGroup("old", false, Duration.standardMinutes(1), I_1300);
+    expiring.addEndpoint(new Endpoint(url));
+    older.addGroup(expiring);
+    EndpointGroup lasting = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    lasting.addEndpoint(new Endpoint(url));
+    older.addGroup(lasting);
+    final Client newer = new Client(origin);
+    newer.addGroup(lasting);
+
+    // Simulate another thread adding a newer client just after the sweep has looked up the older
+    // one.
+    final AtomicInteger lookups = new AtomicInteger();
+    ConcurrentOriginMap<Client> clients = new ConcurrentOriginMap<Client>() {
+      @Override
+      public Client get(Object key) {
+        Client result = super.get(key);
+        if (lookups.incrementAndGet() == 1) {
+          put(origin, newer);
+        }
+        return result;
+      }
+    };
+    ReportingCache cache = new ReportingCache(
+        clients, new ConcurrentOriginMap<NelPolicy>(), new InMemoryReportQueue());
+    cache.addClient(older);
+    assertEquals(0, cache.removeExpiredConfiguration(I_1301.plus(Duration.standardMinutes(1))));
+    assertSame(newer, clients.get(origin));
+  }
+
+}
@@ -0,0 +1,198 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class CountingReportingMetricsTest {
+  private static class FakeDeliverer implements ReportDeliverer {
+    @Override
+    public void deliverReports(URL url, byte[] payload) throws IOException {
+      if (fail) {
+        throw new IOException("Upload failed");
+      }
+    }
+
+    private boolean fail = false;
+  }
+
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant I_1302 = Instant.parse("2018-02-20T13:02:00.000Z");
+
+  private static final Origin ORIGIN = new Origin("https", "example.com", 443);
+
+  private Report makeReport(String uri) {
+    return new Report()
+        .setTimestamp(I_1300)
+        .setUri(uri)
+        .setSamplingFraction(1.0)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+  }
+
+  private ReportingCache makeCache(CountingReportingMetrics metrics) throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    cache.setMetrics(metrics);
+    Client client = new Client(ORIGIN);
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    group.addEndpoint(new Endpoint(new URL("https://example.com/upload")));
+    client.addGroup(group);
+    cache.addClient(client);
+    return cache;
+  }
+
+  @Test
+  public void countsEnqueuedReportsAndEndpoints() throws MalformedURLException {
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    ReportingCache cache = makeCache(metrics);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    cache.enqueueReport(makeReport("https://other.test/c"));
+    assertEquals(3, metrics.getEnqueuedReportCount());
+    assertEquals(1, cache.getReportBatches(I_1301).size());
+    assertEquals(1, metrics.getChosenEndpointCount());
+    assertEquals(1, metrics.getMissingEndpointCount());
+  }
+
+  @Test
+  public void countsUploads() throws MalformedURLException {
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    ReportingCache cache = makeCache(metrics);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    deliverer.fail = true;
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    assertEquals(0, uploader.uploadReports(I_1301));
+    assertEquals(1, metrics.getFailedUploadCount());
+    assertEquals(0, metrics.getSuccessfulUploadCount());
+    assertEquals(0, metrics.getDeliveredReportCount());
+    // Failed uploads still count towards the latency histogram, but not towards report ages.
+    assertEquals(1, metrics.getUploadLatency().getTotalCount());
+    assertEquals(0, metrics.getDeliveredReportAge().getTotalCount());
+  }
+
+  @Test
+  public void recordsReportAgeOnDelivery() throws MalformedURLException {
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    ReportingCache cache = makeCache(metrics);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    ReportUploader uploader = new ReportUploader(cache, new FakeDeliverer());
+    assertEquals(2, uploader.uploadReports(I_1302));
+    assertEquals(1, metrics.getSuccessfulUploadCount());
+    assertEquals(2, metrics.getDeliveredReportCount());
+    assertEquals(1, metrics.getUploadLatency().getTotalCount());
+    LatencyHistogram age = metrics.getDeliveredReportAge();
+    assertEquals(2, age.getTotalCount());
+    assertEquals(240000, age.getSumMillis());
+    // Both reports were two minutes old, which falls into the "up to five minutes" bucket.
+    for (int i = 0; i < age.getBucketCount(); i++) {
+      assertEquals(age.getUpperBoundMillis(i) == 300000 ? 2 : 0, age.getCount(i));
+    }
+  }
+
+  @Test
+  public void countsEvictions() {
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    BoundedReportQueue queue =
+        new BoundedReportQueue(BoundedReportQueue.EvictionPolicy.OLDEST_FIRST)
+            .setMaxReports(1)
+            .setMetrics(metrics);
+    ReportingCache cache = new ReportingCache(queue);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    cache.enqueueReport(makeReport("https://example.com/c"));
+    assertEquals(2, metrics.getEvictedReportCount());
+  }
+
+  @Test
+  public void countsParsedHeaders() throws InvalidHeaderException {
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    String group =
+        "{\"max-age\": 3600, \"endpoints\": [{\"url\": \"https://example.com/upload\"}]}";
+    Client.parseFromReportToHeader(Arrays.asList(group, group), ORIGIN, I_1300, metrics);
+    NelPolicy.parseFromNelHeader("{\"report-to\": \"nel\", \"max-age\": 3600}", ORIGIN, I_1300,
+        metrics);
+    try {
+      NelPolicy.parseFromNelHeader("{", ORIGIN, I_1300, metrics);
+      fail("Expected an InvalidHeaderException");
+    } catch (InvalidHeaderException e) {
+      // expected
+    }
+    assertEquals(2, metrics.getValidReportToHeaderCount());
+    assertEquals(0, metrics.getInvalidReportToHeaderCount());
+    assertEquals(1, metrics.getValidNelHeaderCount());
+    assertEquals(1, metrics.getInvalidNelHeaderCount());
+
+    HeaderParseCache parseCache = new HeaderParseCache().setMetrics(metrics);
+    parseCache.parseReportToHeader(Arrays.asList(group), ORIGIN, I_1300);
+    parseCache.parseReportToHeader(Arrays.asList(group), ORIGIN, I_1301);
+    assertEquals(4, metrics.getValidReportToHeaderCount());
+  }
+
+  @Test
+  public void histogramBucketsAreInclusive() {
+    LatencyHistogram histogram = new LatencyHistogram(10, 100);
+    histogram.record(0);
+    histogram.record(10);
+    histogram.record(11);
+    histogram.record(1000);
+    assertEquals(3, histogram.getBucketCount());
+    assertEquals(2, histogram.getCount(0));
+    assertEquals(1, histogram.getCount(1));
+    assertEquals(1, histogram.getCount(2));
+    assertEquals(Long.MAX_VALUE, histogram.getUpperBoundMillis(2));
+    assertEquals(1021, histogram.getSumMillis());
+  }
+
+  @Test
+  public void stripedCountersAddUpAcrossThreads() throws InterruptedException {
+    final StripedCounter counter = new StripedCounter();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, counter.sum());
+  }
+}
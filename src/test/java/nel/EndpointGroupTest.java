@@ -202,4 +202,181 @@ public class EndpointGroupTest {
     assertEquals(2.0, ((double) counts.get(endpoint2)) / ((double) counts.get(endpoint1)), 0.5);
   }
 
+  @Test
+  public void chooseEndpointNoticesStateChanges() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    final Instant I_1302 = Instant.parse("2018-02-20T13:02:00.000Z");
+    final Instant I_1303 = Instant.parse("2018-02-20T13:03:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint endpoint1 = new Endpoint(new URL("https://example.com/upload/1"), 1, 1);
+    Endpoint endpoint2 = new Endpoint(new URL("https://example.com/upload/2"), 2, 1);
+    group.addEndpoint(endpoint1);
+    group.addEndpoint(endpoint2);
+    assertEquals(endpoint1, group.chooseEndpoint(I_1301));
+    // A failure makes endpoint 1 pending until 13:02.
+    endpoint1.recordFailure(I_1302);
+    assertEquals(endpoint2, group.chooseEndpoint(I_1301));
+    // Once the retry delay runs out, we should pick endpoint 1 again, even though nothing has told
+    // the group about it.
+    assertEquals(endpoint1, group.chooseEndpoint(I_1302));
+    endpoint1.recordFailure(I_1303);
+    assertEquals(endpoint2, group.chooseEndpoint(I_1302));
+    endpoint1.recordSuccess();
+    assertEquals(endpoint1, group.chooseEndpoint(I_1302));
+    // Adding a new endpoint with a better priority should be noticed, too.
+    Endpoint endpoint0 = new Endpoint(new URL("https://example.com/upload/0"), 0, 1);
+    group.addEndpoint(endpoint0);
+    assertEquals(endpoint0, group.chooseEndpoint(I_1302));
+  }
+
+  @Test
+  public void chooseEndpointIgnoresZeroWeights() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint endpoint1 = new Endpoint(new URL("https://example.com/upload/1"), 1, 0);
+    Endpoint endpoint2 = new Endpoint(new URL("https://example.com/upload/2"), 1, 1);
+    group.addEndpoint(endpoint1);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(null, group.chooseEndpoint(I_1301));
+    }
+    group.addEndpoint(endpoint2);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(endpoint2, group.chooseEndpoint(I_1301));
+    }
+  }
+
+  @Test
+  public void chooseEndpointObeysUnevenWeights() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint[] endpoints = new Endpoint[4];
+    int[] weights = {1, 2, 3, 10};
+    for (int i = 0; i < endpoints.length; i++) {
+      endpoints[i] = new Endpoint(
+          new URL("https://example.com/upload/" + Integer.toString(i)), 1, weights[i]);
+      group.addEndpoint(endpoints[i]);
+    }
+    HashMap<Endpoint, Integer> counts = new HashMap<Endpoint, Integer>();
+    final int iterations = 160000;
+    for (int i = 0; i < iterations; i++) {
+      Endpoint result = group.chooseEndpoint(I_1301);
+      Integer count = counts.get(result);
+      counts.put(result, count == null ? 1 : count + 1);
+    }
+    // Each endpoint should be chosen in proportion to its weight, which is 1/16th of the
+    // iterations per unit of weight.
+    for (int i = 0; i < endpoints.length; i++) {
+      double expected = iterations * weights[i] / 16.0;
+      assertEquals(expected, counts.get(endpoints[i]), expected * 0.05);
+    }
+  }
+
+
+  @Test
+  public void healthAwareSelectionPrefersFastEndpoints() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint fast = new Endpoint(new URL("https://example.com/upload/1"), 1, 1);
+    Endpoint slow = new Endpoint(new URL("https://example.com/upload/2"), 1, 1);
+    group.addEndpoint(fast);
+    group.addEndpoint(slow);
+    EndpointHealthPolicy health = EndpointHealthPolicy.DEFAULT;
+    fast.recordUploadResult(10000000L, true, health.getSmoothing());
+    slow.recordUploadResult(100000000L, true, health.getSmoothing());
+    assertEquals(10.0, fast.getAverageLatencyMillis(), 0.001);
+    assertEquals(100.0, slow.getAverageLatencyMillis(), 0.001);
+    int fastCount = 0;
+    final int iterations = 2000;
+    for (int i = 0; i < iterations; i++) {
+      if (group.chooseEndpoint(I_1301, health) == fast) {
+        fastCount++;
+      }
+    }
+    // The slow endpoint takes 10x as long, so it should get roughly 1/11 of the uploads.
+    assertEquals(10.0, ((double) fastCount) / (iterations - fastCount), 4.0);
+    // Without a health policy, we only look at the static weights.
+    fastCount = 0;
+    for (int i = 0; i < iterations; i++) {
+      if (group.chooseEndpoint(I_1301) == fast) {
+        fastCount++;
+      }
+    }
+    assertEquals(1.0, ((double) fastCount) / (iterations - fastCount), 0.5);
+  }
+
+  @Test
+  public void healthAwareSelectionPenalizesFailures() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint healthy = new Endpoint(new URL("https://example.com/upload/1"), 1, 1);
+    Endpoint flaky = new Endpoint(new URL("https://example.com/upload/2"), 1, 1);
+    group.addEndpoint(healthy);
+    group.addEndpoint(flaky);
+    EndpointHealthPolicy health =
+        new EndpointHealthPolicy(0.5, 3, Duration.standardMinutes(1), 0.1);
+    healthy.recordUploadResult(10000000L, true, health.getSmoothing());
+    flaky.recordUploadResult(10000000L, false, health.getSmoothing());
+    flaky.recordUploadResult(10000000L, false, health.getSmoothing());
+    assertEquals(0.25, flaky.getSuccessRate(), 0.001);
+    int healthyCount = 0;
+    final int iterations = 2000;
+    for (int i = 0; i < iterations; i++) {
+      if (group.chooseEndpoint(I_1301, health) == healthy) {
+        healthyCount++;
+      }
+    }
+    assertEquals(4.0, ((double) healthyCount) / (iterations - healthyCount), 1.5);
+  }
+
+  @Test
+  public void openCircuitOnlyLetsProbesThrough() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    final Instant I_1302 = Instant.parse("2018-02-20T13:02:00.000Z");
+    final Instant I_1303 = Instant.parse("2018-02-20T13:03:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint endpoint1 = new Endpoint(new URL("https://example.com/upload/1"), 1, 1);
+    Endpoint endpoint2 = new Endpoint(new URL("https://example.com/upload/2"), 2, 1);
+    group.addEndpoint(endpoint1);
+    group.addEndpoint(endpoint2);
+    EndpointHealthPolicy health =
+        new EndpointHealthPolicy(0.2, 2, Duration.standardMinutes(1), 0.05);
+    endpoint1.recordFailure(I_1301);
+    endpoint1.recordFailure(I_1302);
+    assertEquals(endpoint2, group.chooseEndpoint(I_1301, health));
+    // Once the retry delay runs out, the circuit is half-open, so we send a single probe to
+    // endpoint 1 and keep using endpoint 2 for everything else.
+    assertEquals(endpoint1, group.chooseEndpoint(I_1302, health));
+    assertEquals(endpoint2, group.chooseEndpoint(I_1302, health));
+    assertEquals(endpoint2, group.chooseEndpoint(I_1302, health));
+    // If we never hear back about the probe, we let another one through after the probe timeout.
+    assertEquals(endpoint1, group.chooseEndpoint(I_1303, health));
+    assertEquals(endpoint2, group.chooseEndpoint(I_1303, health));
+    // A successful probe closes the circuit.
+    endpoint1.recordSuccess();
+    assertEquals(endpoint1, group.chooseEndpoint(I_1303, health));
+    assertEquals(endpoint1, group.chooseEndpoint(I_1303, health));
+  }
+
+  @Test
+  public void closedCircuitBehavesLikeStaticSelection() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    final Instant I_1302 = Instant.parse("2018-02-20T13:02:00.000Z");
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint endpoint1 = new Endpoint(new URL("https://example.com/upload/1"), 1, 1);
+    Endpoint endpoint2 = new Endpoint(new URL("https://example.com/upload/2"), 2, 1);
+    group.addEndpoint(endpoint1);
+    group.addEndpoint(endpoint2);
+    // A single failure is below the threshold, so endpoint 1 goes straight back into rotation.
+    endpoint1.recordFailure(I_1302);
+    assertEquals(endpoint2, group.chooseEndpoint(I_1301, EndpointHealthPolicy.DEFAULT));
+    assertEquals(endpoint1, group.chooseEndpoint(I_1302, EndpointHealthPolicy.DEFAULT));
+    assertEquals(endpoint1, group.chooseEndpoint(I_1302, EndpointHealthPolicy.DEFAULT));
+  }
 }
@@ -0,0 +1,114 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class HeaderParseCacheTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Origin ORIGIN = new Origin("https", "example.com", 443);
+  private static final Origin OTHER_ORIGIN = new Origin("https", "other.test", 443);
+
+  private static final List<String> REPORT_TO = Arrays.asList(
+      "{\"group\":\"nel\",\"max-age\":600,\"endpoints\":["
+      + "{\"url\":\"https://example.com/upload\",\"priority\":1,\"weight\":2}]}");
+
+  private static final String NEL = "{\"report-to\":\"nel\",\"max-age\":600,"
+      + "\"success-fraction\":0.5}";
+
+  @Test
+  public void reusesParsedReportTo() throws InvalidHeaderException {
+    HeaderParseCache cache = new HeaderParseCache();
+    Client first = cache.parseReportToHeader(REPORT_TO, ORIGIN, I_1300);
+    assertEquals(Client.parseFromReportToHeader(REPORT_TO, ORIGIN, I_1300), first);
+    first.getGroup("nel").getEndpoints().get(0).recordFailure(I_1301);
+
+    Client second = cache.parseReportToHeader(REPORT_TO, ORIGIN, I_1301);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    // The new client should have an up-to-date creation time, and endpoints with no history.
+    assertEquals(Client.parseFromReportToHeader(REPORT_TO, ORIGIN, I_1301), second);
+    assertEquals(I_1301, second.getGroup("nel").getCreation());
+    Endpoint endpoint = second.getGroup("nel").getEndpoints().get(0);
+    assertNotSame(first.getGroup("nel").getEndpoints().get(0), endpoint);
+    assertFalse(endpoint.isPending(I_1300));
+    assertEquals(0, endpoint.getFailures());
+  }
+
+  @Test
+  public void reusesParsedNelAcrossOrigins() throws InvalidHeaderException {
+    HeaderParseCache cache = new HeaderParseCache();
+    cache.parseNelHeader(NEL, ORIGIN, I_1300);
+    NelPolicy policy = cache.parseNelHeader(NEL, OTHER_ORIGIN, I_1301);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(NelPolicy.parseFromNelHeader(NEL, OTHER_ORIGIN, I_1301), policy);
+  }
+
+  @Test
+  public void keepsHeaderKindsSeparate() throws InvalidHeaderException {
+    HeaderParseCache cache = new HeaderParseCache();
+    String header = "{\"report-to\":\"nel\",\"max-age\":600,\"endpoints\":["
+        + "{\"url\":\"https://example.com/upload\"}]}";
+    cache.parseNelHeader(header, ORIGIN, I_1300);
+    cache.parseReportToHeader(Arrays.asList(header), ORIGIN, I_1300);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void doesNotCacheInvalidHeaders() {
+    HeaderParseCache cache = new HeaderParseCache();
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.parseNelHeader("{\"report-to\":\"nel\"}", ORIGIN, I_1300);
+        fail("Expected an InvalidHeaderException");
+      } catch (InvalidHeaderException e) {
+        // expected
+      }
+    }
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedHeaders() throws InvalidHeaderException {
+    HeaderParseCache cache = new HeaderParseCache(2);
+    String nel1 = "{\"report-to\":\"nel\",\"max-age\":1}";
+    String nel2 = "{\"report-to\":\"nel\",\"max-age\":2}";
+    cache.parseNelHeader(nel1, ORIGIN, I_1300);
+    cache.parseNelHeader(nel2, ORIGIN, I_1300);
+    cache.parseNelHeader(nel1, ORIGIN, I_1300);
+    // nel2 is now the least recently used entry.
+    cache.parseNelHeader("{\"report-to\":\"nel\",\"max-age\":3}", ORIGIN, I_1300);
+    assertEquals(2, cache.size());
+    cache.parseNelHeader(nel1, ORIGIN, I_1300);
+    assertEquals(2, cache.getHitCount());
+    cache.parseNelHeader(nel2, ORIGIN, I_1300);
+    assertEquals(2, cache.getHitCount());
+    assertEquals(4, cache.getMissCount());
+  }
+}
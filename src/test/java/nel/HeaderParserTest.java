@@ -0,0 +1,293 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class HeaderParserTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Origin ORIGIN = new Origin("https", "example.com", 443);
+
+  private static final String REPORT_TO =
+      "{\"group\":\"nel\",\"max-age\":2592000,\"include-subdomains\":true,\"endpoints\":["
+      + "{\"url\":\"https://collector1.example.com/upload\",\"priority\":1,\"weight\":2},"
+      + "{\"url\":\"https://backup.example.net/upload\",\"priority\":2}]}";
+
+  private static final String NEL = "{\"report-to\":\"nel\",\"max-age\":2592000,"
+      + "\"include-subdomains\":true,\"success-fraction\":0.01,\"failure-fraction\":1.0}";
+
+  /**
+   * Renders an exception thrown by one of the parsers.  (A huge <code>max-age</code> overflows
+   * Joda's Duration, and both parsers let that ArithmeticException escape.)
+   */
+  private static String describe(Exception e) {
+    return "error: " + e.getClass().getName() + ": " + e.getMessage();
+  }
+
+  /** Parses a Report-To header with the Gson-based parser, rendering the result or exception. */
+  private static String parseReportToWithGson(String header) {
+    try {
+      return EndpointGroupJsonAdapter.parseHeader(header, I_1300).toString();
+    } catch (InvalidHeaderException | RuntimeException e) {
+      return describe(e);
+    }
+  }
+
+  private static String parseNelWithGson(String header) {
+    try {
+      return NelPolicyJsonAdapter.parseHeader(header, ORIGIN, I_1300).toString();
+    } catch (InvalidHeaderException | RuntimeException e) {
+      return describe(e);
+    }
+  }
+
+  private static String parseReportTo(String header) {
+    try {
+      return HeaderParser.parseEndpointGroup(header, I_1300).toString();
+    } catch (InvalidHeaderException | RuntimeException e) {
+      return describe(e);
+    }
+  }
+
+  private static String parseNel(String header) {
+    try {
+      return HeaderParser.parseNelHeader(header, ORIGIN, I_1300).toString();
+    } catch (InvalidHeaderException | RuntimeException e) {
+      return describe(e);
+    }
+  }
+
+  /**
+   * Checks that both parsers agree about <code>header</code>, and that whenever the single-pass
+   * parser handles a header itself, the Gson-based parser accepts it too.
+   */
+  private static void checkBothParsers(String header) {
+    String expected = parseReportToWithGson(header);
+    assertEquals(header, expected, parseReportTo(header));
+    EndpointGroup group = HeaderParser.tryParseEndpointGroup(header, I_1300);
+    if (group != null) {
+      assertEquals(header, expected, group.toString());
+    }
+
+    expected = parseNelWithGson(header);
+    assertEquals(header, expected, parseNel(header));
+    NelPolicy policy = HeaderParser.tryParseNelPolicy(header, ORIGIN, I_1300);
+    if (policy != null) {
+      assertEquals(header, expected, policy.toString());
+    }
+  }
+
+  @Test
+  public void handlesTypicalHeadersWithoutGson() throws InvalidHeaderException {
+    assertNotNull(HeaderParser.tryParseEndpointGroup(REPORT_TO, I_1300));
+    assertNotNull(HeaderParser.tryParseNelPolicy(NEL, ORIGIN, I_1300));
+    assertEquals(Client.parseFromReportToHeader(Arrays.asList(REPORT_TO), ORIGIN, I_1300),
+        HeaderParser.parseReportToHeader(Arrays.asList(REPORT_TO), ORIGIN, I_1300));
+    assertEquals(NelPolicy.parseFromNelHeader(NEL, ORIGIN, I_1300),
+        HeaderParser.parseNelHeader(NEL, ORIGIN, I_1300));
+  }
+
+  @Test
+  public void fallsBackForLenientSyntax() throws InvalidHeaderException {
+    String header = "{report-to:'nel', max-age:600 // comment\n}";
+    assertNull(HeaderParser.tryParseNelPolicy(header, ORIGIN, I_1300));
+    assertEquals(NelPolicy.parseFromNelHeader(header, ORIGIN, I_1300).toString(),
+        HeaderParser.parseNelHeader(header, ORIGIN, I_1300).toString());
+  }
+
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseInvalidReportTo() throws InvalidHeaderException {
+    HeaderParser.parseEndpointGroup("{\"max-age\":1, \"endpoints\": [{\"url\":0}]}", I_1300);
+  }
+
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseInvalidNel() throws InvalidHeaderException {
+    HeaderParser.parseNelHeader("{\"report-to\":\"nel\",\"max-age\":-1}", ORIGIN, I_1300);
+  }
+
+  @Test
+  public void agreesWithGsonOnEdgeCases() {
+    String[] headers = {
+      "",
+      "{}",
+      "  {\"report-to\":\"nel\",\"max-age\":0}  ",
+      "{\"max-age\":0}",
+      "{\"report-to\":\"n\\u0065l\\n\\\"\",\"max-age\":1.0}",
+      "{\"report-to\":\"nel\",\"max-age\":1e2}",
+      "{\"report-to\":\"nel\",\"max-age\":-0}",
+      "{\"report-to\":\"nel\",\"max-age\":01}",
+      "{\"report-to\":\"nel\",\"max-age\":99999999999999999999}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"success-fraction\":-0.0}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"success-fraction\":0.1234567890123456789}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"success-fraction\":5e-1}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"failure-fraction\":1.5}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"include-subdomains\":TRUE}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"include-subdomains\":truex}",
+      "{\"report-to\":\"nel\",\"max-age\":1,\"extra\":[1,{\"a\":[null,false]},\"x\"]}",
+      "{\"report-to\":\"nel\",\"max-age\":1,}",
+      "{\"report-to\":\"nel\";\"max-age\":1}",
+      "{\"report-to\"=\"nel\",\"max-age\":1}",
+      "{\"report-to\":\"nel\",\"max-age\":1} x",
+      "{\"report-to\":\"nel\",\"max-age\":1}{}",
+      "{\"max-age\":1,\"endpoints\":[]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"https://a.test/\",\"priority\":0}]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"https://a.test/\",\"weight\":0}]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"https://a.test/\",\"weight\":4294967297}]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"http://a.test/\"}]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"not a url\"}]}",
+      "{\"max-age\":1,\"include-subdomains\":1,\"endpoints\":[{\"url\":\"https://a.test/\"}]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"https://a.test/\"},]}",
+      "{\"max-age\":1,\"endpoints\":[{\"url\":\"https://a.test/\"}],\"endpoints\":[{}]}",
+    };
+    for (String header : headers) {
+      checkBothParsers(header);
+    }
+    checkBothParsers(REPORT_TO);
+    checkBothParsers(NEL);
+  }
+
+  /** The pieces that we assemble random headers from, mostly valid but with a few surprises. */
+  private static final String[] STRINGS = {
+    "\"nel\"", "\"default\"", "\"caf\\u00e9\"", "\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\"", "\"\\x\"",
+    "'nel'", "nel", "1",
+  };
+
+  private static final String[] URLS = {
+    "\"https://example.com/upload\"", "\"https://b.test:8443/a?b=c\"", "\"https:\\/\\/c.test\\/\"",
+    "\"http://example.com/\"", "\"not a url\"", "'https://example.com/'", "0",
+  };
+
+  private static final String[] INTEGERS = {
+    "0", "1", "7", "600", "2592000", "-1", "-0", "2147483648", "123456789012345678901", "01",
+    "1.0", "1.5", "1e3", "\"1\"", "+1",
+  };
+
+  private static final String[] FRACTIONS = {
+    "0", "1", "0.5", "0.01", "1.0", "0.000123", "0.1234567890123456789", "5e-1", "-0.0", "-0.25",
+    "1.5", ".5", "1.", "NaN", "\"0.5\"",
+  };
+
+  private static final String[] BOOLEANS = {"true", "false", "true", "false", "TRUE", "truex", "1"};
+
+  private static final String[] OTHERS = {
+    "null", "[]", "{}", "[1,{\"a\":[null,false]},\"x\"]", "{\"url\":\"x\"}", "-1.5e+10", "nul",
+  };
+
+  private static final String[] UNKNOWN_NAMES = {
+    "\"Group\"", "\"max_age\"", "\"groupx\"", "\"\"", "\"gr\\u006fup\"", "max-age", "'url'",
+  };
+
+  private static final String[] WHITESPACE = {"", "", "", "", " ", "\n", "\t", "\r\n"};
+
+  private static final String MUTATIONS = "{}[]:,\"'\\ -.0123456789etrufalsn/#;=";
+
+  private static String pick(Random random, String[] choices) {
+    // Favor the first few choices, which are the valid ones.
+    int index = random.nextInt(choices.length);
+    if (random.nextBoolean()) {
+      index = Math.min(index, random.nextInt(choices.length));
+    }
+    return choices[index];
+  }
+
+  private static String randomObject(Random random, String[] names, String[][] values) {
+    StringBuilder object = new StringBuilder();
+    object.append(pick(random, WHITESPACE)).append('{');
+    boolean first = true;
+    for (int i = 0; i < names.length; i++) {
+      int count = random.nextInt(8) == 0 ? 2 : (random.nextInt(5) == 0 ? 0 : 1);
+      for (int j = 0; j < count; j++) {
+        if (!first) {
+          object.append(',');
+        }
+        first = false;
+        String name = random.nextInt(20) == 0 ? pick(random, UNKNOWN_NAMES) : names[i];
+        String[] choices = random.nextInt(20) == 0 ? OTHERS : values[i];
+        String value = choices == null ? randomEndpoints(random) : pick(random, choices);
+        object.append(pick(random, WHITESPACE)).append(name).append(pick(random, WHITESPACE))
+            .append(':').append(pick(random, WHITESPACE)).append(value);
+      }
+    }
+    return object.append(pick(random, WHITESPACE)).append('}').append(pick(random, WHITESPACE))
+        .toString();
+  }
+
+  private static String randomEndpoints(Random random) {
+    StringBuilder endpoints = new StringBuilder("[");
+    int count = random.nextInt(4);
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        endpoints.append(',');
+      }
+      endpoints.append(randomObject(random, new String[] {"\"url\"", "\"priority\"", "\"weight\""},
+          new String[][] {URLS, INTEGERS, INTEGERS}));
+    }
+    return endpoints.append(']').toString();
+  }
+
+  private static String randomReportTo(Random random) {
+    return randomObject(random,
+        new String[] {"\"group\"", "\"include-subdomains\"", "\"max-age\"", "\"endpoints\""},
+        new String[][] {STRINGS, BOOLEANS, INTEGERS, null});
+  }
+
+  private static String randomNel(Random random) {
+    return randomObject(random,
+        new String[] {"\"report-to\"", "\"include-subdomains\"", "\"max-age\"",
+          "\"success-fraction\"", "\"failure-fraction\""},
+        new String[][] {STRINGS, BOOLEANS, INTEGERS, FRACTIONS, FRACTIONS});
+  }
+
+  private static String mutate(Random random, String header) {
+    StringBuilder mutated = new StringBuilder(header);
+    int count = random.nextInt(3);
+    for (int i = 0; i < count; i++) {
+      int pos = random.nextInt(mutated.length());
+      char ch = MUTATIONS.charAt(random.nextInt(MUTATIONS.length()));
+      switch (random.nextInt(3)) {
+        case 0:
+          mutated.deleteCharAt(pos);
+          break;
+        case 1:
+          mutated.insert(pos, ch);
+          break;
+        default:
+          mutated.setCharAt(pos, ch);
+          break;
+      }
+    }
+    return mutated.toString();
+  }
+
+  @Test
+  public void agreesWithGsonOnRandomHeaders() {
+    // Use a fixed seed so that any failures are reproducible.
+    Random random = new Random(20180220);
+    for (int i = 0; i < 20000; i++) {
+      String header = i % 2 == 0 ? randomReportTo(random) : randomNel(random);
+      checkBothParsers(header);
+      checkBothParsers(mutate(random, header));
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+/**
+ * Tests the time-bucketed in-memory queues.  Each test runs against both {@link
+ * InMemoryReportQueue} and {@link ConcurrentReportQueue}, which should behave identically.
+ */
+public class InMemoryReportQueueTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_130030 = Instant.parse("2018-02-20T13:00:30.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant I_130130 = Instant.parse("2018-02-20T13:01:30.000Z");
+  private static final Instant I_1310 = Instant.parse("2018-02-20T13:10:00.000Z");
+
+  private List<ReportQueue> makeQueues() {
+    return Arrays.<ReportQueue>asList(new InMemoryReportQueue(), new ConcurrentReportQueue());
+  }
+
+  private QueuedReport makeReport(String uri, Instant timestamp) {
+    Report report = new Report()
+        .setTimestamp(timestamp)
+        .setUri(uri)
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+    return new QueuedReport(report, "nel");
+  }
+
+  private HashSet<String> uris(ReportQueue queue) {
+    HashSet<String> result = new HashSet<String>();
+    for (QueuedReport report : queue.getAll()) {
+      result.add(report.getReport().getUri().toString());
+    }
+    return result;
+  }
+
+  @Test
+  public void canAddAndRemoveReports() {
+    for (ReportQueue queue : makeQueues()) {
+      QueuedReport a = makeReport("https://example.com/a", I_1300);
+      QueuedReport b = makeReport("https://example.com/b", I_1310);
+      queue.add(a);
+      queue.add(b);
+      queue.add(a);
+      assertEquals(2, queue.size());
+      queue.removeAll(Arrays.asList(a));
+      assertEquals(1, queue.size());
+      assertEquals(new HashSet<String>(Arrays.asList("https://example.com/b")), uris(queue));
+      queue.removeAll(Arrays.asList(a, b));
+      assertEquals(0, queue.size());
+    }
+  }
+
+  @Test
+  public void getAllReturnsOldestBucketFirst() {
+    for (ReportQueue queue : makeQueues()) {
+      queue.add(makeReport("https://example.com/c", I_1310));
+      queue.add(makeReport("https://example.com/a", I_1300));
+      queue.add(makeReport("https://example.com/b", I_1301));
+      ArrayList<String> order = new ArrayList<String>();
+      for (QueuedReport report : queue.getAll()) {
+        order.add(report.getReport().getUri().toString());
+      }
+      assertEquals(
+          Arrays.asList("https://example.com/a", "https://example.com/b", "https://example.com/c"),
+          order);
+    }
+  }
+
+  @Test
+  public void removesWholeBucketsAndSplitsCutoffBucket() {
+    for (ReportQueue queue : makeQueues()) {
+      queue.add(makeReport("https://example.com/a", I_1300));
+      queue.add(makeReport("https://example.com/b", I_130030));
+      queue.add(makeReport("https://example.com/c", I_1301));
+      queue.add(makeReport("https://example.com/d", I_130130));
+      queue.add(makeReport("https://example.com/e", I_1310));
+      // The cutoff falls in the middle of the 13:01 bucket.
+      queue.removeOlderThan(I_1301.plus(Duration.standardSeconds(10)));
+      assertEquals(2, queue.size());
+      assertEquals(
+          new HashSet<String>(Arrays.asList("https://example.com/d", "https://example.com/e")),
+          uris(queue));
+      queue.removeOlderThan(I_1310);
+      assertEquals(new HashSet<String>(Arrays.asList("https://example.com/e")), uris(queue));
+      queue.removeOlderThan(I_1310.plus(1));
+      assertEquals(0, queue.size());
+    }
+  }
+
+  @Test
+  public void handlesTimestampsBeforeEpoch() {
+    for (ReportQueue queue : makeQueues()) {
+      queue.add(makeReport("https://example.com/a", new Instant(-90000)));
+      queue.add(makeReport("https://example.com/b", new Instant(-30000)));
+      queue.removeOlderThan(new Instant(-60000));
+      assertEquals(new HashSet<String>(Arrays.asList("https://example.com/b")), uris(queue));
+    }
+  }
+
+  @Test
+  public void canUseCustomBucketWidth() {
+    InMemoryReportQueue queue = new InMemoryReportQueue(Duration.standardSeconds(1));
+    for (int i = 0; i < 100; i++) {
+      queue.add(makeReport("https://example.com/" + Integer.toString(i),
+          I_1300.plus(Duration.standardSeconds(i))));
+    }
+    queue.removeOlderThan(I_1300.plus(Duration.millis(42500)));
+    assertEquals(57, queue.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyBuckets() {
+    new InMemoryReportQueue(Duration.ZERO);
+  }
+}
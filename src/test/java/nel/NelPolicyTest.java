@@ -111,4 +111,14 @@ public class NelPolicyTest {
     checkInvalidHeader("{\"max-age\":1, \"report-to\": \"nel\", \"failure-fraction\":1.5}");
   }
 
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseTrailingContent() throws InvalidHeaderException {
+    checkInvalidHeader("{\"max-age\":1, \"report-to\": \"nel\"} []");
+  }
+
+  @Test(expected = InvalidHeaderException.class)
+  public void cannotParseFractionalMaxAge() throws InvalidHeaderException {
+    checkInvalidHeader("{\"max-age\":1.5, \"report-to\": \"nel\"}");
+  }
+
 }
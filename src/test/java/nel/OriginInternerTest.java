@@ -0,0 +1,70 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class OriginInternerTest {
+  @Test
+  public void returnsCanonicalInstance() {
+    OriginInterner interner = new OriginInterner();
+    Origin origin = interner.intern(new Origin("https", "example.com", 443));
+    assertSame(origin, interner.intern(new Origin("https", "example.com", 443)));
+    assertSame(origin, interner.intern(new Origin("HTTPS", "EXAMPLE.COM", 443)));
+    assertSame(origin, interner.intern(URI.create("https://example.com/path")));
+    assertNotSame(origin, interner.intern(new Origin("https", "example.com", 8443)));
+    assertEquals(2, interner.size());
+  }
+
+  @Test
+  public void startsOverWhenFull() {
+    OriginInterner interner = new OriginInterner(2);
+    Origin first = interner.intern(new Origin("https", "a.example.com", 443));
+    interner.intern(new Origin("https", "b.example.com", 443));
+    interner.intern(new Origin("https", "c.example.com", 443));
+    assertEquals(1, interner.size());
+    Origin copy = new Origin("https", "a.example.com", 443);
+    assertSame(copy, interner.intern(copy));
+    assertEquals(first, copy);
+  }
+
+  @Test
+  public void cacheInternsQueuedReportOrigins() {
+    InMemoryReportQueue queue = new InMemoryReportQueue();
+    ReportingCache cache = new ReportingCache(queue);
+    Origin origin = cache.getOriginInterner().intern(new Origin("https", "example.com", 443));
+    cache.enqueueReport(new Report()
+        .setTimestamp(new Instant(0))
+        .setUri("https://example.com/a")
+        .setType(Type.OK));
+    cache.enqueueReport(new Report()
+        .setTimestamp(new Instant(0))
+        .setUri("https://example.com/b")
+        .setType(Type.OK));
+    for (QueuedReport queuedReport : queue.getAll()) {
+      assertSame(origin, queuedReport.getOrigin());
+    }
+    assertEquals(1, cache.getOriginInterner().size());
+  }
+
+}
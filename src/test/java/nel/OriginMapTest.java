@@ -80,4 +80,23 @@ public class OriginMapTest {
     assertEquals(Arrays.asList("test3", "test2", "test1"), list(map.getAll(origin)));
   }
 
+  @Test
+  public void canGetForTopLevelSuperdomain() {
+    final Origin origin = new Origin("https", "example.com", 443);
+    final Origin superdomainOrigin = new Origin("https", "com", 443);
+    OriginMap<String> map = new OriginMap<String>();
+    map.put(superdomainOrigin, "test");
+    assertEquals(Arrays.asList("test"), list(map.getAll(origin)));
+  }
+
+  @Test
+  public void concurrentMapCanGetAllForSubdomain() {
+    final Origin origin = new Origin("https", "foo.example.com", 443);
+    final Origin superdomainOrigin = new Origin("https", "example.com", 443);
+    ConcurrentOriginMap<String> map = new ConcurrentOriginMap<String>();
+    map.put(superdomainOrigin, "test");
+    map.put(origin, "test2");
+    assertEquals(Arrays.asList("test2", "test"), list(map.getAll(origin)));
+  }
+
 }
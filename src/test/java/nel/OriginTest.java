@@ -16,6 +16,10 @@
 package nel;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
 
 import org.junit.Test;
 
@@ -28,4 +32,40 @@ public class OriginTest {
         new Origin("https", "example.com", 443).getSuperdomainOrigin());
     assertEquals(null, new Origin("https", "com", 443).getSuperdomainOrigin());
   }
+
+  @Test
+  public void usesDefaultPortForUri() {
+    assertEquals(new Origin("https", "example.com", 443),
+        new Origin(URI.create("https://example.com/path")));
+    assertEquals(new Origin("http", "example.com", 80),
+        new Origin(URI.create("http://example.com/path")));
+    assertEquals(new Origin("https", "example.com", 8443),
+        new Origin(URI.create("https://example.com:8443/path")));
+  }
+
+  @Test
+  public void ignoresCase() {
+    Origin origin = new Origin("HTTPS", "Example.COM", 443);
+    assertEquals(new Origin("https", "example.com", 443), origin);
+    assertEquals(new Origin("https", "example.com", 443).hashCode(), origin.hashCode());
+    assertEquals("https://example.com:443", origin.toString());
+    assertEquals(origin, new Origin(URI.create("HTTPS://EXAMPLE.com/path")));
+  }
+
+  @Test
+  public void comparesAllFields() {
+    Origin origin = new Origin("https", "example.com", 443);
+    assertNotEquals(new Origin("http", "example.com", 443), origin);
+    assertNotEquals(new Origin("https", "example.org", 443), origin);
+    assertNotEquals(new Origin("https", "example.com", 8443), origin);
+    assertNotEquals(new Origin("https", null, 443), origin);
+    assertEquals(new Origin("https", null, 443), new Origin("https", null, 443));
+  }
+
+  @Test
+  public void cachesSuperdomainOrigin() {
+    Origin origin = new Origin("https", "foo.example.com", 443);
+    assertSame(origin.getSuperdomainOrigin(), origin.getSuperdomainOrigin());
+    assertEquals(null, new Origin("https", null, 443).getSuperdomainOrigin());
+  }
 }
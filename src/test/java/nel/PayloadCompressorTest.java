@@ -0,0 +1,131 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private ReportBatch makeBatch(int size) throws MalformedURLException {
+    Origin origin = new Origin("https", "example.com", 443);
+    ReportBatch batch =
+        new ReportBatch(origin, "nel", new Endpoint(new URL("https://example.com/upload")));
+    for (int i = 0; i < size; i++) {
+      batch.addReport(new QueuedReport(new Report()
+          .setTimestamp(I_1300)
+          .setUri("https://example.com/" + Integer.toString(i))
+          .setSamplingFraction(0.5)
+          .setServerIp("192.0.2.24")
+          .setProtocol("h2")
+          .setStatusCode(200)
+          .setElapsedTime(Duration.millis(i))
+          .setType(Type.OK), "nel", origin));
+    }
+    return batch;
+  }
+
+  private static String readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = input.read(buffer)) != -1) {
+      output.write(buffer, 0, count);
+    }
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void canCompressWithGzip() throws IOException {
+    ReportBatch batch = makeBatch(1000);
+    PayloadCompressor.Payload payload = new PayloadCompressor(PayloadCompressor.Encoding.GZIP)
+        .encode(batch, new ReportEncoder(), I_1301);
+    assertEquals("gzip", payload.getContentEncoding());
+    String expected = new String(batch.serialize(I_1301), StandardCharsets.UTF_8);
+    assertEquals(expected.length(), payload.getUncompressedSize());
+    assertTrue(payload.getBytes().length < expected.length() / 4);
+    assertEquals(expected,
+        readAll(new GZIPInputStream(new ByteArrayInputStream(payload.getBytes()))));
+  }
+
+  @Test
+  public void canCompressWithDeflate() throws IOException {
+    ReportBatch batch = makeBatch(1000);
+    PayloadCompressor.Payload payload = new PayloadCompressor(PayloadCompressor.Encoding.DEFLATE)
+        .setLevel(9)
+        .encode(batch, new ReportEncoder(), I_1301);
+    assertEquals("deflate", payload.getContentEncoding());
+    assertEquals(new String(batch.serialize(I_1301), StandardCharsets.UTF_8),
+        readAll(new InflaterInputStream(new ByteArrayInputStream(payload.getBytes()))));
+  }
+
+  @Test
+  public void sendsSmallBatchesUncompressed() throws IOException {
+    ReportBatch batch = makeBatch(2);
+    PayloadCompressor.Payload payload = new PayloadCompressor(PayloadCompressor.Encoding.GZIP)
+        .encode(batch, new ReportEncoder(), I_1301);
+    assertNull(payload.getContentEncoding());
+    assertEquals(new String(batch.serialize(I_1301), StandardCharsets.UTF_8),
+        new String(payload.getBytes(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void canCompressEverything() throws IOException {
+    ReportBatch batch = makeBatch(0);
+    PayloadCompressor.Payload payload = new PayloadCompressor(PayloadCompressor.Encoding.GZIP)
+        .setMinBytes(0)
+        .encode(batch, new ReportEncoder(), I_1301);
+    assertEquals("gzip", payload.getContentEncoding());
+    assertEquals("[]", readAll(new GZIPInputStream(new ByteArrayInputStream(payload.getBytes()))));
+  }
+
+  @Test
+  public void canReuseCompressor() throws IOException {
+    PayloadCompressor compressor = new PayloadCompressor(PayloadCompressor.Encoding.GZIP);
+    ReportEncoder encoder = new ReportEncoder();
+    for (int size : new int[] {1000, 2, 10, 500}) {
+      ReportBatch batch = makeBatch(size);
+      PayloadCompressor.Payload payload = compressor.encode(batch, encoder, I_1301);
+      InputStream input = new ByteArrayInputStream(payload.getBytes());
+      if (payload.getContentEncoding() != null) {
+        input = new GZIPInputStream(input);
+      }
+      assertEquals(new String(batch.serialize(I_1301), StandardCharsets.UTF_8), readAll(input));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cannotUseInvalidLevel() {
+    new PayloadCompressor(PayloadCompressor.Encoding.GZIP).setLevel(10);
+  }
+}
@@ -0,0 +1,246 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PersistentReportQueueTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant I_1302 = Instant.parse("2018-02-20T13:02:00.000Z");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private QueuedReport makeReport(String uri, Instant timestamp) {
+    Report report = new Report()
+        .setTimestamp(timestamp)
+        .setUri(uri)
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+    return new QueuedReport(report, "nel");
+  }
+
+  /** Returns the URIs of all of the reports in a queue, which should be unique in each test. */
+  private HashSet<String> uris(ReportQueue queue) {
+    HashSet<String> result = new HashSet<String>();
+    for (QueuedReport report : queue.getAll()) {
+      result.add(report.getReport().getUri().toString());
+    }
+    return result;
+  }
+
+  @Test
+  public void survivesRestart() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory);
+    QueuedReport delivered = makeReport("https://example.com/delivered", I_1300);
+    queue.add(makeReport("https://example.com/a", I_1300));
+    queue.add(delivered);
+    queue.add(makeReport("https://example.com/b", I_1301));
+    queue.removeAll(Arrays.asList(delivered));
+    queue.close();
+
+    PersistentReportQueue reopened = new PersistentReportQueue(directory);
+    assertEquals(new HashSet<String>(Arrays.asList("https://example.com/a",
+        "https://example.com/b")), uris(reopened));
+    reopened.close();
+  }
+
+  @Test
+  public void preservesReportContents() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory);
+    ReportAggregate aggregate = new ReportAggregate(Duration.millis(20));
+    aggregate.add(Duration.millis(4000));
+    Report report = makeReport("https://example.com/path?q=1", I_1300).getReport()
+        .setReferrer(URI.create("https://example.com/referrer"))
+        .setServerIp("2001:db8::1")
+        .setType(Type.TCP_RESET)
+        .setAggregate(aggregate);
+    QueuedReport original = new QueuedReport(report, "nel");
+    QueuedReport sparse = new QueuedReport(new Report()
+        .setTimestamp(I_1301)
+        .setUri("https://example.com/sparse")
+        .setElapsedTime(Duration.ZERO)
+        .setType(Type.OK), "other-group");
+    queue.add(original);
+    queue.add(sparse);
+    queue.close();
+
+    PersistentReportQueue reopened = new PersistentReportQueue(directory);
+    List<QueuedReport> reports = reopened.getAll();
+    assertEquals(2, reports.size());
+    QueuedReport restored = reports.get(0);
+    assertEquals("nel", restored.getGroup());
+    assertEquals(original.getOrigin(), restored.getOrigin());
+    assertEquals(original.getReport().toString(I_1302), restored.getReport().toString(I_1302));
+    assertEquals("other-group", reports.get(1).getGroup());
+    assertEquals(sparse.getReport().toString(I_1302), reports.get(1).getReport().toString(I_1302));
+    reopened.close();
+  }
+
+  @Test
+  public void recoversWithoutClose() throws IOException {
+    // If the process dies, we won't have a final checkpoint, and have to replay the log.
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory, 4096);
+    ArrayList<QueuedReport> added = new ArrayList<QueuedReport>();
+    for (int i = 0; i < 200; i++) {
+      QueuedReport report = makeReport("https://example.com/" + Integer.toString(i), I_1300);
+      queue.add(report);
+      added.add(report);
+    }
+    queue.removeAll(added.subList(0, 150));
+    HashSet<String> expected = uris(queue);
+
+    PersistentReportQueue reopened = new PersistentReportQueue(directory, 4096);
+    assertEquals(expected, uris(reopened));
+    reopened.close();
+  }
+
+  @Test
+  public void ignoresTornRecords() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory);
+    queue.add(makeReport("https://example.com/a", I_1300));
+    queue.add(makeReport("https://example.com/b", I_1300));
+    queue.sync();
+
+    // Corrupt the last byte of the second record, as if we had crashed while writing it.
+    Path segment = directory.resolve("segment-0000000000.log");
+    FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(4);
+    channel.read(header, 0);
+    int firstLength = header.getInt(0);
+    header.clear();
+    int secondOffset = 8 + firstLength;
+    channel.read(header, secondOffset);
+    int secondEnd = secondOffset + 8 + header.getInt(0);
+    channel.write(ByteBuffer.wrap(new byte[] {0x7f}), secondEnd - 1);
+    channel.close();
+
+    PersistentReportQueue reopened = new PersistentReportQueue(directory);
+    assertEquals(new HashSet<String>(Arrays.asList("https://example.com/a")), uris(reopened));
+    // We should be able to keep appending after the last good record.
+    reopened.add(makeReport("https://example.com/c", I_1300));
+    reopened.close();
+    PersistentReportQueue again = new PersistentReportQueue(directory);
+    assertEquals(new HashSet<String>(Arrays.asList("https://example.com/a",
+        "https://example.com/c")), uris(again));
+    again.close();
+  }
+
+  @Test
+  public void deletesDrainedSegments() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory, 4096);
+    for (int round = 0; round < 20; round++) {
+      ArrayList<QueuedReport> batch = new ArrayList<QueuedReport>();
+      for (int i = 0; i < 50; i++) {
+        QueuedReport report = makeReport("https://example.com/" + Integer.toString(i), I_1300);
+        queue.add(report);
+        batch.add(report);
+      }
+      queue.removeAll(batch);
+    }
+    assertEquals(0, queue.size());
+    // We've written far more than two segments' worth of records, but all of the older segments
+    // should have been deleted.
+    assertTrue(queue.getSegmentCount() <= 2);
+    queue.close();
+    assertTrue(Files.exists(directory.resolve("checkpoint")));
+  }
+
+  @Test
+  public void canRemoveOldReports() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory);
+    queue.add(makeReport("https://example.com/old", I_1300));
+    queue.add(makeReport("https://example.com/new", I_1302));
+    queue.removeOlderThan(I_1301);
+    queue.close();
+    PersistentReportQueue reopened = new PersistentReportQueue(directory);
+    assertEquals(new HashSet<String>(Arrays.asList("https://example.com/new")), uris(reopened));
+    reopened.close();
+  }
+
+  @Test
+  public void expiryOnlyAppliesToEarlierReports() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory);
+    queue.add(makeReport("https://example.com/expired", I_1300));
+    queue.add(makeReport("https://example.com/kept", I_1302));
+    queue.removeOlderThan(I_1301);
+    // A report with an old timestamp that's added after the expiry must survive replaying it.
+    queue.add(makeReport("https://example.com/late", I_1300));
+    // Don't close the queue, so that recovery has to replay the expiry record.
+    PersistentReportQueue reopened = new PersistentReportQueue(directory);
+    assertEquals(
+        new HashSet<String>(Arrays.asList("https://example.com/kept", "https://example.com/late")),
+        uris(reopened));
+    reopened.removeOlderThan(I_1301);
+    assertEquals(new HashSet<String>(Arrays.asList("https://example.com/kept")), uris(reopened));
+    reopened.close();
+  }
+
+  @Test
+  public void expiryDeletesDrainedSegments() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    PersistentReportQueue queue = new PersistentReportQueue(directory, 4096);
+    for (int i = 0; i < 500; i++) {
+      queue.add(makeReport("https://example.com/" + Integer.toString(i), I_1300));
+    }
+    assertTrue(queue.getSegmentCount() > 2);
+    queue.removeOlderThan(I_1301);
+    assertEquals(0, queue.size());
+    // Everything before the active segment is drained, and predates the latest checkpoint.
+    assertEquals(1, queue.getSegmentCount());
+    queue.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cannotSyncAfterClose() throws IOException {
+    PersistentReportQueue queue = new PersistentReportQueue(folder.getRoot().toPath());
+    queue.close();
+    queue.sync();
+  }
+
+}
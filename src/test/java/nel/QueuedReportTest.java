@@ -0,0 +1,85 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class QueuedReportTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private Report makeReport() {
+    return new Report()
+        .setTimestamp(I_1300)
+        .setUri("https://example.com/path?q=1#fragment")
+        .setReferrer(URI.create("https://example.com/referrer"))
+        .setSamplingFraction(0.5)
+        .setServerIp("2001:db8::1")
+        .setProtocol("h2")
+        .setStatusCode(503)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.HTTP_FAILED);
+  }
+
+  @Test
+  public void rebuildsReport() {
+    Report report = makeReport();
+    QueuedReport queued = new QueuedReport(report, "nel");
+    assertEquals(new Origin("https", "example.com", 443), queued.getOrigin());
+    assertEquals(report.toString(I_1301), queued.getReport().toString(I_1301));
+  }
+
+  @Test
+  public void rebuildsSparseReport() {
+    Report report = new Report()
+        .setUri("https://example.com/")
+        .setElapsedTime(Duration.ZERO)
+        .setType(Type.OK);
+    QueuedReport queued = new QueuedReport(report, "nel");
+    assertFalse(queued.hasTimestamp());
+    assertFalse(queued.isOlderThan(I_1301));
+    Report rebuilt = queued.getReport();
+    assertNull(rebuilt.getTimestamp());
+    assertNull(rebuilt.getReferrer());
+    assertNull(rebuilt.getServerIp());
+    assertEquals(report.toString(I_1301), rebuilt.toString(I_1301));
+  }
+
+  @Test
+  public void doesNotShareReport() {
+    Report report = makeReport();
+    QueuedReport queued = new QueuedReport(report, "nel");
+    report.setStatusCode(200);
+    queued.getReport().setStatusCode(404);
+    assertEquals(503, queued.getReport().getStatusCode());
+  }
+
+  @Test
+  public void comparesTimestamps() {
+    QueuedReport queued = new QueuedReport(makeReport(), "nel");
+    assertTrue(queued.isOlderThan(I_1301));
+    assertFalse(queued.isOlderThan(I_1300));
+  }
+}
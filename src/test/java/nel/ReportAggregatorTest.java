@@ -0,0 +1,166 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+import java.util.EnumSet;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class ReportAggregatorTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private Report makeReport(String uri, Instant timestamp, long elapsedMillis) {
+    return new Report()
+        .setTimestamp(timestamp)
+        .setUri(uri)
+        .setSamplingFraction(1.0)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(503)
+        .setElapsedTime(Duration.millis(elapsedMillis))
+        .setType(Type.HTTP_FAILED);
+  }
+
+  @Test
+  public void mergesIdenticalReports() {
+    ReportingCache cache = new ReportingCache();
+    ReportAggregator aggregator = new ReportAggregator(cache);
+    aggregator.add(makeReport("https://example.com/path?a=1", I_1301, 10));
+    aggregator.add(makeReport("https://example.com/path?a=2", I_1300, 30));
+    aggregator.add(makeReport("https://example.com/path", I_1301, 3000));
+    assertEquals(1, aggregator.getPendingCount());
+    assertEquals(2, aggregator.getAggregatedReportCount());
+    assertEquals(0, cache.getQueuedReportCount());
+
+    assertEquals(1, aggregator.flush());
+    assertEquals(0, aggregator.getPendingCount());
+    assertEquals(1, cache.getQueuedReportCount());
+  }
+
+  @Test
+  public void mergedReportSummarizesRequests() {
+    ReportingCache cache = new ReportingCache() {
+      @Override
+      public void enqueueReport(Report report) {
+        flushed = report;
+      }
+    };
+    ReportAggregator aggregator = new ReportAggregator(cache);
+    aggregator.add(makeReport("https://example.com/path?a=1", I_1301, 10));
+    aggregator.add(makeReport("https://example.com/path?a=2", I_1300, 30));
+    aggregator.add(makeReport("https://example.com/path", I_1301, 3020));
+    aggregator.flush();
+
+    assertEquals("https://example.com/path", flushed.getUri().toString());
+    assertEquals(I_1300, flushed.getTimestamp());
+    assertEquals("192.0.2.24", flushed.getServerIp().getHostAddress());
+    assertEquals(503, flushed.getStatusCode());
+    // The protocol isn't part of the default key.
+    assertNull(flushed.getProtocol());
+    assertEquals(Duration.millis(1020), flushed.getElapsedTime());
+    ReportAggregate aggregate = flushed.getAggregate();
+    assertEquals(3, aggregate.getCount());
+    assertEquals(Duration.millis(10), aggregate.getMinElapsedTime());
+    assertEquals(Duration.millis(3020), aggregate.getMaxElapsedTime());
+    assertEquals(1, aggregate.getHistogramCount(0));
+    assertEquals(1, aggregate.getHistogramCount(2));
+    assertEquals(1, aggregate.getHistogramCount(8));
+  }
+
+  @Test
+  public void keepsDistinctKeysApart() {
+    ReportingCache cache = new ReportingCache();
+    ReportAggregator aggregator = new ReportAggregator(cache);
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10));
+    aggregator.add(makeReport("https://example.com/b", I_1300, 10));
+    aggregator.add(makeReport("https://other.example.com/a", I_1300, 10));
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10).setStatusCode(500));
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10).setType(Type.TCP_RESET));
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10).setSamplingFraction(0.5));
+    assertEquals(6, aggregator.getPendingCount());
+    assertEquals(0, aggregator.getAggregatedReportCount());
+  }
+
+  @Test
+  public void singleReportsAreNotAggregated() {
+    InMemoryReportQueue queue = new InMemoryReportQueue();
+    ReportingCache cache = new ReportingCache(queue);
+    ReportAggregator aggregator = new ReportAggregator(cache);
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10));
+    aggregator.flush();
+    assertNull(queue.getAll().get(0).getReport().getAggregate());
+  }
+
+  @Test
+  public void singleReportsKeepFieldsOutsideTheKey() {
+    ReportingCache cache = new ReportingCache() {
+      @Override
+      public void enqueueReport(Report report) {
+        flushed = report;
+      }
+    };
+    ReportAggregator aggregator = new ReportAggregator(cache);
+    Report original = makeReport("https://example.com/path?a=1", I_1300, 10)
+        .setReferrer(URI.create("https://example.com/referrer"));
+    aggregator.add(original);
+    aggregator.flush();
+    assertSame(original, flushed);
+    assertEquals("https://example.com/path?a=1", flushed.getUri().toString());
+    assertEquals("https://example.com/referrer", flushed.getReferrer().toString());
+    assertEquals("h2", flushed.getProtocol());
+    assertEquals(Duration.millis(10), flushed.getElapsedTime());
+  }
+
+  @Test
+  public void canChooseKeyFields() {
+    InMemoryReportQueue queue = new InMemoryReportQueue();
+    ReportingCache cache = new ReportingCache(queue);
+    ReportAggregator aggregator =
+        new ReportAggregator(cache, EnumSet.noneOf(ReportAggregator.Field.class), 100);
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10));
+    aggregator.add(makeReport("https://example.com/b", I_1300, 10).setStatusCode(500));
+    assertEquals(1, aggregator.getPendingCount());
+    aggregator.flush();
+    Report merged = queue.getAll().get(0).getReport();
+    assertEquals("https://example.com/", merged.getUri().toString());
+    assertEquals(0, merged.getStatusCode());
+    assertEquals(2, merged.getAggregate().getCount());
+  }
+
+  @Test
+  public void passesReportsThroughWhenFull() {
+    ReportingCache cache = new ReportingCache();
+    ReportAggregator aggregator =
+        new ReportAggregator(cache, EnumSet.of(ReportAggregator.Field.PATH), 2);
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10));
+    aggregator.add(makeReport("https://example.com/b", I_1300, 10));
+    aggregator.add(makeReport("https://example.com/c", I_1300, 10));
+    aggregator.add(makeReport("https://example.com/a", I_1300, 10));
+    assertEquals(2, aggregator.getPendingCount());
+    assertEquals(1, cache.getQueuedReportCount());
+    assertEquals(1, aggregator.getAggregatedReportCount());
+  }
+
+  private Report flushed;
+}
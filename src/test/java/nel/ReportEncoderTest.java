@@ -0,0 +1,147 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class ReportEncoderTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private Report makeReport(String uri) {
+    return new Report()
+        .setTimestamp(I_1300)
+        .setUri(uri)
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+  }
+
+  /** Renders reports using the Gson-based ReportJsonAdapter, which is our reference output. */
+  private String renderWithGson(List<Report> reports) throws IOException {
+    StringWriter output = new StringWriter();
+    JsonWriter writer = ReportJsonAdapter.newWriter(output);
+    writer.beginArray();
+    for (Report report : reports) {
+      ReportJsonAdapter.writeReport(writer, report, I_1301);
+    }
+    writer.endArray();
+    writer.close();
+    return output.toString();
+  }
+
+  private String renderWithEncoder(List<Report> reports) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new ReportEncoder().encode(reports, I_1301, output);
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private String renderQueued(List<Report> reports) throws IOException {
+    ArrayList<QueuedReport> queued = new ArrayList<QueuedReport>();
+    for (Report report : reports) {
+      queued.add(new QueuedReport(report, "nel"));
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new ReportEncoder().encodeQueued(queued, I_1301, output);
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private List<Report> makeVariedReports() {
+    Report withReferrer = makeReport("https://example.com/path?q=a&b='c'")
+        .setReferrer(URI.create("https://example.com/referrer"));
+    Report withMissingFields = makeReport("https://example.com/")
+        .setServerIp((InetAddress) null)
+        .setProtocol(null)
+        .setStatusCode(0)
+        .setType(Type.other("weird\"type\\\n\u2028"));
+    // CHECKSTYLE.OFF: AvoidEscapedUnicodeCharacters
+    Report withUnicode = makeReport("https://example.com/")
+        .setTimestamp(null)
+        .setServerIp("2001:db8::1")
+        .setType(Type.other("caf\u00e9 \u4e2d \ud83d\ude00"));
+    // CHECKSTYLE.ON: AvoidEscapedUnicodeCharacters
+    Report aggregated = makeReport("https://example.com/")
+        .setAggregate(new ReportAggregate(Duration.millis(5)));
+    aggregated.getAggregate().add(Duration.millis(60000));
+    return Arrays.asList(makeReport("https://example.com/"), withReferrer, withMissingFields,
+        withUnicode, aggregated);
+  }
+
+  @Test
+  public void matchesGsonOutput() throws IOException {
+    List<Report> reports = makeVariedReports();
+    assertEquals(renderWithGson(reports), renderWithEncoder(reports));
+  }
+
+  @Test
+  public void queuedReportsMatchGsonOutput() throws IOException {
+    List<Report> reports = makeVariedReports();
+    assertEquals(renderWithGson(reports), renderQueued(reports));
+  }
+
+  @Test
+  public void canEncodeEmptyBatch() throws IOException {
+    assertEquals("[]", renderWithEncoder(new ArrayList<Report>()));
+  }
+
+  @Test
+  public void canEncodeLargeBatches() throws IOException {
+    // This is much larger than the encoder's scratch buffer.
+    ArrayList<Report> reports = new ArrayList<Report>();
+    for (int i = 0; i < 1000; i++) {
+      reports.add(makeReport("https://example.com/" + Integer.toString(i)));
+    }
+    assertEquals(renderWithGson(reports), renderWithEncoder(reports));
+  }
+
+  @Test
+  public void canEncodeToByteBuffer() throws IOException {
+    List<Report> reports = Arrays.asList(makeReport("https://example.com/"));
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    new ReportEncoder().encode(reports, I_1301, buffer);
+    buffer.flip();
+    assertEquals(renderWithGson(reports), StandardCharsets.UTF_8.decode(buffer).toString());
+  }
+
+  @Test
+  public void canEncodeToChannel() throws IOException {
+    List<Report> reports = Arrays.asList(makeReport("https://example.com/"));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new ReportEncoder().encode(reports, I_1301, Channels.newChannel(output));
+    assertEquals(renderWithGson(reports), new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+}
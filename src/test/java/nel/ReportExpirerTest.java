@@ -0,0 +1,136 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class ReportExpirerTest {
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1330 = Instant.parse("2018-02-20T13:30:00.000Z");
+  private static final Instant I_1400 = Instant.parse("2018-02-20T14:00:00.000Z");
+
+  private static class FakeClock implements Clock {
+    @Override
+    public Instant now() {
+      return now;
+    }
+
+    private Instant now = I_1400;
+  }
+
+  private Report makeReport(Instant timestamp) {
+    return new Report()
+        .setTimestamp(timestamp)
+        .setUri("https://example.com")
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+  }
+
+  @Test
+  public void removesReportsOlderThanMaxAge() {
+    ReportingCache cache = new ReportingCache();
+    cache.enqueueReport(makeReport(I_1300));
+    cache.enqueueReport(makeReport(I_1330));
+    cache.enqueueReport(makeReport(I_1400));
+    FakeClock clock = new FakeClock();
+    ReportExpirer expirer = new ReportExpirer(cache, Duration.standardMinutes(45), clock);
+    expirer.expire();
+    assertEquals(2, cache.getQueuedReportCount());
+    clock.now = I_1400.plus(Duration.standardMinutes(20));
+    expirer.expire();
+    assertEquals(1, cache.getQueuedReportCount());
+  }
+
+  @Test
+  public void canExpireInBackground() throws InterruptedException {
+    ReportingCache cache = new ConcurrentReportingCache();
+    cache.enqueueReport(makeReport(I_1300));
+    cache.enqueueReport(makeReport(I_1400));
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      ReportExpirer expirer =
+          new ReportExpirer(cache, Duration.standardMinutes(30), new FakeClock());
+      expirer.start(timer, Duration.millis(1));
+      for (int i = 0; i < 1000 && cache.getQueuedReportCount() != 1; i++) {
+        Thread.sleep(5);
+      }
+      expirer.stop();
+      assertEquals(1, cache.getQueuedReportCount());
+    } finally {
+      timer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void keepsExpiringAfterException() throws InterruptedException {
+    ReportingCache cache = new ConcurrentReportingCache();
+    cache.enqueueReport(makeReport(I_1300));
+    cache.enqueueReport(makeReport(I_1400));
+    final AtomicInteger calls = new AtomicInteger();
+    Clock clock = new FakeClock() {
+      @Override
+      public Instant now() {
+        if (calls.getAndIncrement() == 0) {
+          throw new IllegalStateException("clock failed");
+        }
+        return super.now();
+      }
+    };
+    final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+              @Override
+              public void uncaughtException(Thread thread, Throwable e) {
+                uncaught.add(e);
+              }
+            });
+            return thread;
+          }
+        });
+    try {
+      ReportExpirer expirer = new ReportExpirer(cache, Duration.standardMinutes(30), clock);
+      expirer.start(timer, Duration.millis(1));
+      for (int i = 0; i < 1000 && cache.getQueuedReportCount() != 1; i++) {
+        Thread.sleep(5);
+      }
+      expirer.stop();
+      assertEquals(1, cache.getQueuedReportCount());
+      assertEquals(1, uncaught.size());
+    } finally {
+      timer.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class ReportRateLimiterTest {
+  private static class FakeClock implements Clock {
+    FakeClock(Instant now) {
+      this.now = now;
+    }
+
+    @Override
+    public Instant now() {
+      return now;
+    }
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    private Instant now;
+  }
+
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+
+  private static final Origin EXAMPLE = new Origin("https", "example.com", 443);
+  private static final Origin FOO = new Origin("https", "foo.example.com", 443);
+  private static final Origin BAR = new Origin("https", "bar.baz.example.com", 443);
+  private static final Origin OTHER = new Origin("https", "other.test", 443);
+
+  @Test
+  public void admitsBurstAndThenRefills() {
+    FakeClock clock = new FakeClock(I_1300);
+    ReportRateLimiter limiter = new ReportRateLimiter(2.0, 3, clock);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(0.0, limiter.admit(EXAMPLE), 0.0);
+    // Other origins have their own buckets.
+    assertEquals(1.0, limiter.admit(OTHER), 0.0);
+    // Half a second is enough for one more token.
+    clock.advance(Duration.millis(500));
+    assertEquals(0.5, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(0.0, limiter.admit(EXAMPLE), 0.0);
+    // The bucket never holds more than the burst size.
+    clock.advance(Duration.standardHours(1));
+    assertEquals(0.5, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(0.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(8, limiter.getAdmittedReportCount());
+    assertEquals(3, limiter.getDroppedReportCount());
+  }
+
+  @Test
+  public void canLimitSuperdomains() {
+    FakeClock clock = new FakeClock(I_1300);
+    ReportRateLimiter limiter =
+        new ReportRateLimiter(10.0, 10, clock).setSuperdomainLimit(1.0, 2);
+    assertEquals(1.0, limiter.admit(FOO), 0.0);
+    assertEquals(1.0, limiter.admit(BAR), 0.0);
+    // All three origins share example.com's bucket, which is now empty.
+    assertEquals(0.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(0.0, limiter.admit(FOO), 0.0);
+    assertEquals(1.0, limiter.admit(OTHER), 0.0);
+    clock.advance(Duration.standardSeconds(1));
+    // The dropped report from foo.example.com didn't use up one of its own tokens, but is still
+    // accounted for in the next one that's admitted.
+    assertEquals(0.5, limiter.admit(FOO), 0.0);
+  }
+
+  @Test
+  public void ipAddressesDontShareSuperdomains() {
+    FakeClock clock = new FakeClock(I_1300);
+    ReportRateLimiter limiter =
+        new ReportRateLimiter(10.0, 10, clock).setSuperdomainLimit(1.0, 1);
+    Origin ipv4a = new Origin("https", "192.0.2.1", 443);
+    Origin ipv4b = new Origin("https", "10.0.2.1", 443);
+    Origin ipv6a = new Origin("https", "[2001:db8::1]", 443);
+    Origin ipv6b = new Origin("https", "[2001:db8::2]", 443);
+    // None of these share a bucket, even though both IPv4 addresses end in "2.1".
+    assertEquals(1.0, limiter.admit(ipv4a), 0.0);
+    assertEquals(1.0, limiter.admit(ipv4b), 0.0);
+    assertEquals(1.0, limiter.admit(ipv6a), 0.0);
+    assertEquals(1.0, limiter.admit(ipv6b), 0.0);
+    // But each address is still limited on its own.
+    assertEquals(0.0, limiter.admit(ipv4a), 0.0);
+    assertEquals(0.0, limiter.admit(ipv6a), 0.0);
+  }
+
+  @Test
+  public void forgetsFullBucketsWhenTableIsFull() {
+    FakeClock clock = new FakeClock(I_1300);
+    ReportRateLimiter limiter = new ReportRateLimiter(1.0, 2, clock).setMaxBuckets(2);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    clock.advance(Duration.standardSeconds(1));
+    assertEquals(1.0, limiter.admit(OTHER), 0.0);
+    assertEquals(1.0, limiter.admit(OTHER), 0.0);
+    // example.com's bucket has refilled, so it's the one that makes room for foo.example.com.
+    assertEquals(1.0, limiter.admit(FOO), 0.0);
+    assertEquals(1.0, limiter.admit(FOO), 0.0);
+    assertEquals(0.0, limiter.admit(FOO), 0.0);
+    assertEquals(0.0, limiter.admit(OTHER), 0.0);
+  }
+
+  @Test
+  public void neverForgetsDrainedBuckets() {
+    FakeClock clock = new FakeClock(I_1300);
+    ReportRateLimiter limiter = new ReportRateLimiter(1.0, 1, clock).setMaxBuckets(2);
+    assertEquals(1.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(1.0, limiter.admit(OTHER), 0.0);
+    // Both tracked buckets are drained, so new origins share an overflow bucket.
+    assertEquals(1.0, limiter.admit(FOO), 0.0);
+    assertEquals(0.0, limiter.admit(BAR), 0.0);
+    assertEquals(0.0, limiter.admit(EXAMPLE), 0.0);
+    assertEquals(0.0, limiter.admit(OTHER), 0.0);
+    // The buckets have refilled, but we can't forget them until their drops are accounted for.
+    // The overflow bucket's own drop came from bar.baz.example.com, so it doesn't reweight this
+    // report from foo.example.com.
+    clock.advance(Duration.standardSeconds(2));
+    assertEquals(1.0, limiter.admit(FOO), 0.0);
+    assertEquals(0.5, limiter.admit(EXAMPLE), 0.0);
+    // Once example.com's bucket has refilled again, there's room for a new origin.
+    clock.advance(Duration.standardSeconds(2));
+    assertEquals(1.0, limiter.admit(FOO), 0.0);
+    assertEquals(0.0, limiter.admit(FOO), 0.0);
+    assertEquals(0.5, limiter.admit(OTHER), 0.0);
+  }
+
+  @Test
+  public void cacheDropsAndReweightsReports() {
+    FakeClock clock = new FakeClock(I_1300);
+    InMemoryReportQueue queue = new InMemoryReportQueue();
+    ReportingCache cache = new ReportingCache(queue);
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    cache.setMetrics(metrics);
+    cache.setRateLimiter(new ReportRateLimiter(1.0, 1, clock));
+    for (int i = 0; i < 4; i++) {
+      cache.enqueueReport(new Report()
+          .setTimestamp(I_1300)
+          .setUri("https://example.com/" + Integer.toString(i))
+          .setSamplingFraction(0.5)
+          .setType(Type.OK));
+    }
+    assertEquals(1, cache.getQueuedReportCount());
+    assertEquals(3, metrics.getDroppedReportCount());
+    clock.advance(Duration.standardSeconds(1));
+    cache.enqueueReport(new Report()
+        .setTimestamp(I_1300)
+        .setUri("https://example.com/4")
+        .setSamplingFraction(0.5)
+        .setType(Type.OK));
+    List<QueuedReport> queued = queue.getAll();
+    assertEquals(2, queued.size());
+    double total = 0.0;
+    for (QueuedReport report : queued) {
+      total += 1.0 / report.getSamplingFraction();
+    }
+    // Five reports were generated, each with a sampling fraction of 0.5.
+    assertEquals(10.0, total, 0.0001);
+  }
+}
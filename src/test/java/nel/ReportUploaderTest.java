@@ -0,0 +1,213 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class ReportUploaderTest {
+  private static class FakeDeliverer implements ReportDeliverer {
+    @Override
+    public void deliverReports(URL url, byte[] payload) throws IOException {
+      urls.add(url);
+      payloads.add(new String(payload, StandardCharsets.UTF_8));
+      if (fail) {
+        throw new IOException("Upload failed");
+      }
+    }
+
+    private ArrayList<URL> urls = new ArrayList<URL>();
+    private ArrayList<String> payloads = new ArrayList<String>();
+    private boolean fail = false;
+  }
+
+  private static class FakeCompressedDeliverer extends FakeDeliverer
+      implements CompressedReportDeliverer {
+    @Override
+    public void deliverReports(URL url, byte[] payload, String contentEncoding)
+        throws IOException {
+      encodings.add(contentEncoding);
+      deliverReports(url, payload);
+    }
+
+    private ArrayList<String> encodings = new ArrayList<String>();
+  }
+
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+  private static final Instant I_130130 = Instant.parse("2018-02-20T13:01:30.000Z");
+
+  private Report makeReport(String uri) {
+    return new Report()
+        .setTimestamp(I_1300)
+        .setUri(uri)
+        .setSamplingFraction(0.5)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+  }
+
+  private ReportingCache makeCache(Endpoint endpoint) {
+    ReportingCache cache = new ReportingCache();
+    Client client = new Client(new Origin("https", "example.com", 443));
+    EndpointGroup group = new EndpointGroup("nel", true, Duration.standardHours(1), I_1300);
+    group.addEndpoint(endpoint);
+    client.addGroup(group);
+    cache.addClient(client);
+    return cache;
+  }
+
+  @Test
+  public void canUploadReportsInOneBatch() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    assertEquals(2, uploader.uploadReports(I_1301));
+    // Both reports should have been uploaded in a single request.
+    assertEquals(1, deliverer.payloads.size());
+    assertEquals(new URL("https://example.com/upload"), deliverer.urls.get(0));
+    String payload = deliverer.payloads.get(0);
+    assertTrue(payload.startsWith("[{"));
+    assertTrue(payload.contains("\"url\":\"https://example.com/a\""));
+    assertTrue(payload.contains("\"url\":\"https://example.com/b\""));
+    assertEquals(0, cache.getQueuedReportCount());
+  }
+
+  @Test
+  public void separatesBatchesByOrigin() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://foo.example.com/b"));
+    cache.enqueueReport(makeReport("https://foo.example.com/c"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    assertEquals(3, uploader.uploadReports(I_1301));
+    assertEquals(2, deliverer.payloads.size());
+  }
+
+  @Test
+  public void keepsReportsWithoutEndpoint() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://other.test/b"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    assertEquals(1, uploader.uploadReports(I_1301));
+    // There's no client for other.test, so its report stays queued.
+    assertEquals(1, cache.getQueuedReportCount());
+  }
+
+  @Test
+  public void keepsReportsAfterFailedUpload() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    deliverer.fail = true;
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    assertEquals(0, uploader.uploadReports(I_1301));
+    assertEquals(1, cache.getQueuedReportCount());
+    // The endpoint is now pending, so we shouldn't try to upload to it again right away.
+    assertTrue(endpoint.isPending(I_130130));
+    assertEquals(0, uploader.uploadReports(I_130130));
+    assertEquals(1, deliverer.payloads.size());
+  }
+
+  @Test
+  public void releasesBatchesAfterUncheckedException() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://foo.example.com/b"));
+    ReportDeliverer deliverer = new ReportDeliverer() {
+      @Override
+      public void deliverReports(URL url, byte[] payload) {
+        throw new IllegalStateException("Deliverer is broken");
+      }
+    };
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    try {
+      uploader.uploadReports(I_1301);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // Neither batch was uploaded, so both can be collected again.
+    assertEquals(2, cache.getQueuedReportCount());
+    assertEquals(2, cache.getReportBatches(I_1301).size());
+  }
+
+  @Test
+  public void doesNotBatchPendingReports() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    assertEquals(1, cache.getReportBatches(I_1301).size());
+    // The report is already part of an in-flight batch.
+    assertEquals(0, cache.getReportBatches(I_1301).size());
+  }
+
+  @Test
+  public void canCompressLargeBatches() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    FakeCompressedDeliverer deliverer = new FakeCompressedDeliverer();
+    PayloadCompressor compressor = new PayloadCompressor(PayloadCompressor.Encoding.GZIP);
+    ReportUploader uploader = new ReportUploader(cache, deliverer, compressor);
+    assertEquals(1, uploader.uploadReports(I_1301));
+    // A single report is below the default threshold, so it's sent as-is.
+    assertNull(deliverer.encodings.get(0));
+    for (int i = 0; i < 100; i++) {
+      cache.enqueueReport(makeReport("https://example.com/" + Integer.toString(i)));
+    }
+    assertEquals(100, uploader.uploadReports(I_1301));
+    assertEquals("gzip", deliverer.encodings.get(1));
+  }
+
+  @Test
+  public void tracksEndpointHealth() throws MalformedURLException {
+    Endpoint endpoint = new Endpoint(new URL("https://example.com/upload"));
+    ReportingCache cache = makeCache(endpoint);
+    cache.setEndpointHealthPolicy(EndpointHealthPolicy.DEFAULT);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    deliverer.fail = true;
+    ReportUploader uploader = new ReportUploader(cache, deliverer);
+    assertEquals(0, uploader.uploadReports(I_1301));
+    assertTrue(endpoint.getAverageLatencyMillis() >= 0.0);
+    assertEquals(0.8, endpoint.getSuccessRate(), 0.001);
+  }
+}
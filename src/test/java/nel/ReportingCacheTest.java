@@ -16,9 +16,13 @@
 package nel;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import org.joda.time.Duration;
 import org.joda.time.Instant;
@@ -121,4 +125,265 @@ public class ReportingCacheTest {
     assertEquals(null, cache.chooseEndpoint(I_1301, origin, "nel"));
   }
 
+  @Test
+  public void canGetPolicy() {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    final Instant I_1400 = Instant.parse("2018-02-20T14:00:00.000Z");
+    final Origin origin = new Origin("https", "example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    NelPolicy policy =
+        new NelPolicy(origin, "nel", false, 0.0, 1.0, Duration.standardMinutes(30), I_1300);
+    cache.addPolicy(policy);
+    assertEquals(policy, cache.getPolicy(I_1301, origin));
+    assertEquals(null, cache.getPolicy(I_1301, new Origin("https", "foo.example.com", 443)));
+    // The policy has expired by 14:00.
+    assertEquals(null, cache.getPolicy(I_1400, origin));
+    cache.removePolicy(origin);
+    assertEquals(null, cache.getPolicy(I_1301, origin));
+  }
+
+  @Test
+  public void getPolicyObeysIncludeSubdomains() {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    final Origin origin = new Origin("https", "foo.bar.example.com", 443);
+    final Origin superdomainOrigin = new Origin("https", "bar.example.com", 443);
+    final Origin superSuperdomainOrigin = new Origin("https", "example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    NelPolicy withoutSubdomains = new NelPolicy(superdomainOrigin, "nel", false, 0.0, 1.0,
+        Duration.standardMinutes(30), I_1300);
+    NelPolicy withSubdomains = new NelPolicy(superSuperdomainOrigin, "nel", true, 0.0, 1.0,
+        Duration.standardMinutes(30), I_1300);
+    cache.addPolicy(withoutSubdomains);
+    cache.addPolicy(withSubdomains);
+    // The closer superdomain policy doesn't have include-subdomains, so we skip over it.
+    assertEquals(withSubdomains, cache.getPolicy(I_1301, origin));
+    assertEquals(withoutSubdomains, cache.getPolicy(I_1301, superdomainOrigin));
+  }
+
+  @Test
+  public void shouldReportUsesSamplingFractions() {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    final Origin origin = new Origin("https", "example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    assertFalse(cache.shouldReport(I_1301, origin, false));
+    cache.addPolicy(
+        new NelPolicy(origin, "nel", false, 0.0, 1.0, Duration.standardMinutes(30), I_1300));
+    assertFalse(cache.shouldReport(I_1301, origin, true));
+    assertTrue(cache.shouldReport(I_1301, origin, false));
+
+    cache.addPolicy(
+        new NelPolicy(origin, "nel", false, 0.25, 1.0, Duration.standardMinutes(30), I_1300));
+    int sampled = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (cache.shouldReport(I_1301, origin, true)) {
+        sampled++;
+      }
+    }
+    // This should fail with a probability of roughly 1 in 10^30.
+    assertTrue(sampled > 2000 && sampled < 3000);
+  }
+
+  @Test
+  public void removesExpiredGroupsAndClients() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1331 = Instant.parse("2018-02-20T13:31:00.000Z");
+    final Instant I_1401 = Instant.parse("2018-02-20T14:01:00.000Z");
+    final Origin origin = new Origin("https", "example.com", 443);
+    final Origin other = new Origin("https", "other.example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    Client client = new Client(origin);
+    EndpointGroup shortGroup =
+        new EndpointGroup("short", false, Duration.standardMinutes(30), I_1300);
+    shortGroup.addEndpoint(new Endpoint(new URL("https://example.com/short")));
+    EndpointGroup longGroup = new EndpointGroup("long", false, Duration.standardHours(1), I_1300);
+    longGroup.addEndpoint(new Endpoint(new URL("https://example.com/long")));
+    client.addGroup(shortGroup);
+    client.addGroup(longGroup);
+    cache.addClient(client);
+    cache.addPolicy(
+        new NelPolicy(other, "nel", false, 0.0, 1.0, Duration.standardMinutes(30), I_1300));
+
+    assertEquals(0, cache.removeExpiredConfiguration(I_1300));
+    assertEquals(2, cache.removeExpiredConfiguration(I_1331));
+    assertEquals(1, cache.getClients().size());
+    Client remaining = cache.getClients().iterator().next();
+    assertEquals(null, remaining.getGroup("short"));
+    assertEquals(longGroup, remaining.getGroup("long"));
+    // The original client isn't modified, since other threads might be reading it.
+    assertEquals(shortGroup, client.getGroup("short"));
+    assertEquals(0, cache.getPolicies().size());
+
+    assertEquals(1, cache.removeExpiredConfiguration(I_1401));
+    assertEquals(0, cache.getClients().size());
+  }
+
+  @Test
+  public void expirySkipsReplacedConfiguration() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1320 = Instant.parse("2018-02-20T13:20:00.000Z");
+    final Instant I_1331 = Instant.parse("2018-02-20T13:31:00.000Z");
+    final Origin origin = new Origin("https", "example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    for (Instant created : new Instant[] {I_1300, I_1320}) {
+      Client client = new Client(origin);
+      EndpointGroup group = new EndpointGroup("nel", false, Duration.standardMinutes(30), created);
+      group.addEndpoint(new Endpoint(new URL("https://example.com/upload")));
+      client.addGroup(group);
+      cache.addClient(client);
+      cache.addPolicy(
+          new NelPolicy(origin, "nel", false, 0.0, 1.0, Duration.standardMinutes(30), created));
+    }
+    // The configuration received at 13:00 has expired, but it was replaced at 13:20.
+    assertEquals(0, cache.removeExpiredConfiguration(I_1331));
+    assertEquals(1, cache.getClients().size());
+    assertEquals(1, cache.getPolicies().size());
+  }
+
+  @Test
+  public void expiryIsLimitedPerCall() {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1400 = Instant.parse("2018-02-20T14:00:00.000Z");
+    ReportingCache cache = new ReportingCache();
+    for (int i = 0; i < 10; i++) {
+      Origin origin = new Origin("https", "site" + Integer.toString(i) + ".example.com", 443);
+      cache.addPolicy(
+          new NelPolicy(origin, "nel", false, 0.0, 1.0, Duration.standardMinutes(30), I_1300));
+    }
+    assertEquals(4, cache.removeExpiredConfiguration(I_1400, 4));
+    assertEquals(6, cache.getPolicies().size());
+    // Collecting report batches sweeps a few more.
+    cache.getReportBatches(I_1400);
+    assertEquals(0, cache.getPolicies().size());
+  }
+
+  @Test
+  public void expiryQueueStaysBounded() {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Origin origin = new Origin("https", "example.com", 443);
+    ReportingCache cache = new ReportingCache();
+    for (int i = 0; i < 100000; i++) {
+      cache.addPolicy(
+          new NelPolicy(origin, "nel", false, 0.0, 1.0, Duration.standardDays(1), I_1300));
+    }
+    assertTrue(cache.getExpiryQueueSize() <= 1024);
+  }
+
+  private ReportingCache makeBatchingCache(Instant now) throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    Client client = new Client(new Origin("https", "example.com", 443));
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), now);
+    group.addEndpoint(new Endpoint(new URL("https://example.com/upload")));
+    client.addGroup(group);
+    cache.addClient(client);
+    for (int i = 0; i < 10; i++) {
+      cache.enqueueReport(new Report()
+          .setTimestamp(now)
+          .setUri("https://example.com/" + Integer.toString(i))
+          .setSamplingFraction(1.0)
+          .setElapsedTime(Duration.millis(100))
+          .setType(Type.OK));
+    }
+    return cache;
+  }
+
+  @Test
+  public void releasingBatchReturnsProbe() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    ReportingCache cache = new ReportingCache();
+    cache.setEndpointHealthPolicy(
+        new EndpointHealthPolicy(0.2, 2, Duration.standardMinutes(1), 0.05));
+    Client client = new Client(new Origin("https", "example.com", 443));
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    Endpoint primary = new Endpoint(new URL("https://example.com/upload/1"), 1, 1);
+    Endpoint backup = new Endpoint(new URL("https://example.com/upload/2"), 2, 1);
+    group.addEndpoint(primary);
+    group.addEndpoint(backup);
+    client.addGroup(group);
+    cache.addClient(client);
+    primary.recordFailure(I_1300);
+    primary.recordFailure(I_1300);
+    cache.enqueueReport(new Report()
+        .setTimestamp(I_1300)
+        .setUri("https://example.com/")
+        .setSamplingFraction(1.0)
+        .setType(Type.OK));
+    // The primary endpoint's circuit is half-open, so the batch is its probe.
+    List<ReportBatch> batches = cache.getReportBatches(I_1301);
+    assertEquals(primary, batches.get(0).getEndpoint());
+    // If we decide not to upload it, the next batch can use the probe straight away.
+    cache.releaseBatch(batches.get(0));
+    batches = cache.getReportBatches(I_1301);
+    assertEquals(primary, batches.get(0).getEndpoint());
+  }
+
+  @Test
+  public void canLimitReportsPerBatch() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    ReportingCache cache = makeBatchingCache(I_1300);
+    cache.setMaxBatchReports(4);
+    List<ReportBatch> batches = cache.getReportBatches(I_1301);
+    assertEquals(3, batches.size());
+    assertEquals(4, batches.get(0).getReports().size());
+    assertEquals(4, batches.get(1).getReports().size());
+    assertEquals(2, batches.get(2).getReports().size());
+    for (ReportBatch batch : batches) {
+      // The stored payload should be exactly what we'd get by encoding the batch from scratch.
+      ReportBatch plain = new ReportBatch(batch.getOrigin(), batch.getGroup(), batch.getEndpoint());
+      for (QueuedReport report : batch.getReports()) {
+        plain.addReport(report);
+      }
+      assertEquals(new String(plain.serialize(I_1301), StandardCharsets.UTF_8),
+          new String(batch.serialize(I_1301), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void canLimitBytesPerBatch() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    ReportingCache cache = makeBatchingCache(I_1300);
+    int single = cache.getReportBatches(I_1301).get(0).serialize(I_1301).length / 10;
+    cache = makeBatchingCache(I_1300);
+    // Room for three reports, but not quite four.
+    cache.setMaxBatchBytes(4 * single);
+    List<ReportBatch> batches = cache.getReportBatches(I_1301);
+    assertEquals(4, batches.size());
+    int total = 0;
+    for (ReportBatch batch : batches) {
+      assertTrue(batch.serialize(I_1301).length <= 4 * single);
+      total += batch.getReports().size();
+    }
+    assertEquals(10, total);
+    assertEquals(3, batches.get(0).getReports().size());
+  }
+
+  @Test
+  public void oversizedReportsGetTheirOwnBatch() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    ReportingCache cache = makeBatchingCache(I_1300);
+    cache.setMaxBatchBytes(10);
+    assertEquals(10, cache.getReportBatches(I_1301).size());
+  }
+
+  @Test
+  public void splitBatchesCountTowardsMaxBatches() throws MalformedURLException {
+    final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+    final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+    ReportingCache cache = makeBatchingCache(I_1300);
+    cache.setMaxBatchReports(3);
+    List<ReportBatch> batches = cache.getReportBatches(I_1301, 2);
+    assertEquals(2, batches.size());
+    // The reports that didn't make it into a batch aren't pending, so we'll pick them up later.
+    batches = cache.getReportBatches(I_1301, 2);
+    assertEquals(2, batches.size());
+    assertEquals(3, batches.get(0).getReports().size());
+    assertEquals(1, batches.get(1).getReports().size());
+    assertEquals(0, cache.getReportBatches(I_1301, 2).size());
+  }
 }
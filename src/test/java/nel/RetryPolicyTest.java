@@ -0,0 +1,58 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+  @Test
+  public void delayGrowsExponentially() {
+    RetryPolicy policy =
+        new RetryPolicy(Duration.standardMinutes(1), Duration.standardHours(1), 2.0, 0.0);
+    assertEquals(Duration.standardMinutes(1), policy.getRetryDelay(1));
+    assertEquals(Duration.standardMinutes(2), policy.getRetryDelay(2));
+    assertEquals(Duration.standardMinutes(4), policy.getRetryDelay(3));
+    assertEquals(Duration.standardMinutes(32), policy.getRetryDelay(6));
+  }
+
+  @Test
+  public void delayIsCapped() {
+    RetryPolicy policy =
+        new RetryPolicy(Duration.standardMinutes(1), Duration.standardHours(1), 2.0, 0.0);
+    assertEquals(Duration.standardHours(1), policy.getRetryDelay(7));
+    assertEquals(Duration.standardHours(1), policy.getRetryDelay(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void jitterOnlyShortensDelay() {
+    RetryPolicy policy =
+        new RetryPolicy(Duration.standardMinutes(1), Duration.standardHours(1), 2.0, 0.5);
+    for (int i = 0; i < 100; i++) {
+      long delay = policy.getRetryDelay(2).getMillis();
+      assertTrue(delay >= Duration.standardMinutes(1).getMillis());
+      assertTrue(delay <= Duration.standardMinutes(2).getMillis());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidJitter() {
+    new RetryPolicy(Duration.standardMinutes(1), Duration.standardHours(1), 2.0, 1.5);
+  }
+}
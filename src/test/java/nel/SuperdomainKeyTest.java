@@ -0,0 +1,95 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class SuperdomainKeyTest {
+  /**
+   * Walks through every superdomain of <code>origin</code>, verifying that the key matches the
+   * origins created by getSuperdomainOrigin at each step.
+   */
+  private void assertMatchesSuperdomainOrigins(Origin origin) {
+    SuperdomainKey key = new SuperdomainKey(origin);
+    Origin expected = origin;
+    while (true) {
+      assertTrue(key.equals(expected));
+      assertEquals(expected.hashCode(), key.hashCode());
+      assertEquals(expected, key.toOrigin());
+      expected = expected.getSuperdomainOrigin();
+      if (expected == null) {
+        assertFalse(key.toSuperdomain());
+        return;
+      }
+      assertTrue(key.toSuperdomain());
+    }
+  }
+
+  @Test
+  public void matchesSuperdomainOrigins() {
+    assertMatchesSuperdomainOrigins(new Origin("https", "example.com", 443));
+    assertMatchesSuperdomainOrigins(new Origin("https", "a.b.c.d.e.f.example.com", 443));
+    assertMatchesSuperdomainOrigins(new Origin("http", "localhost", 8080));
+    assertMatchesSuperdomainOrigins(new Origin("https", "..example..com.", 443));
+    assertMatchesSuperdomainOrigins(new Origin("https", "", 443));
+    assertMatchesSuperdomainOrigins(new Origin("https", "very-long-label-that-overflows-the"
+        + "-hash-code-several-times-over.sub.example.com", 443));
+    assertMatchesSuperdomainOrigins(new Origin("https", "über.例子.example", 443));
+  }
+
+  @Test
+  public void doesNotMatchOtherOrigins() {
+    SuperdomainKey key = new SuperdomainKey(new Origin("https", "foo.example.com", 443));
+    assertFalse(key.equals(new Origin("http", "foo.example.com", 443)));
+    assertFalse(key.equals(new Origin("https", "foo.example.com", 8443)));
+    assertFalse(key.equals(new Origin("https", "example.com", 443)));
+    key.toSuperdomain();
+    assertFalse(key.equals(new Origin("https", "foo.example.com", 443)));
+    assertFalse(key.equals(new Origin("https", "xample.com", 443)));
+  }
+
+  @Test
+  public void handlesMissingHost() {
+    Origin origin = new Origin("https", null, 443);
+    SuperdomainKey key = new SuperdomainKey(origin);
+    assertTrue(key.equals(origin));
+    assertEquals(origin.hashCode(), key.hashCode());
+    assertFalse(key.toSuperdomain());
+  }
+
+  @Test
+  public void canLookUpMapEntries() {
+    HashMap<Origin, String> map = new HashMap<Origin, String>();
+    map.put(new Origin("https", "bar.example.com", 443), "bar");
+    map.put(new Origin("https", "example.com", 443), "example");
+    SuperdomainKey key = new SuperdomainKey(new Origin("https", "foo.bar.example.com", 443));
+    assertEquals(null, map.get(key));
+    key.toSuperdomain();
+    assertEquals("bar", map.get(key));
+    key.toSuperdomain();
+    assertEquals("example", map.get(key));
+    key.toSuperdomain();
+    assertEquals(null, map.get(key));
+    assertFalse(key.toSuperdomain());
+  }
+
+}
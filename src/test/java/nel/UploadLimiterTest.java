@@ -0,0 +1,86 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.junit.Test;
+
+public class UploadLimiterTest {
+  @Test
+  public void unlimitedByDefault() throws MalformedURLException {
+    URL url = new URL("https://collector.example.net/upload");
+    UploadLimiter limiter = new UploadLimiter();
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(limiter.tryAcquire(url, 1000000, 0));
+    }
+    assertEquals(1000, limiter.getInFlightCount());
+  }
+
+  @Test
+  public void limitsInFlightPerEndpoint() throws MalformedURLException {
+    URL a = new URL("https://a.example.net/upload");
+    URL b = new URL("https://b.example.net/upload");
+    UploadLimiter limiter = new UploadLimiter().setMaxInFlightPerEndpoint(2).setMaxInFlight(3);
+    assertTrue(limiter.tryAcquire(a, 10, 0));
+    assertTrue(limiter.tryAcquire(new URL("https://a.example.net/upload"), 10, 0));
+    assertFalse(limiter.tryAcquire(a, 10, 0));
+    assertTrue(limiter.tryAcquire(b, 10, 0));
+    // Now we're at the global limit.
+    assertFalse(limiter.tryAcquire(b, 10, 0));
+    limiter.release(a);
+    assertTrue(limiter.tryAcquire(b, 10, 0));
+    assertFalse(limiter.tryAcquire(a, 10, 0));
+    assertEquals(3, limiter.getInFlightCount());
+  }
+
+  @Test
+  public void limitsBytesPerSecond() throws MalformedURLException {
+    URL a = new URL("https://a.example.net/upload");
+    URL b = new URL("https://b.example.net/upload");
+    UploadLimiter limiter =
+        new UploadLimiter().setMaxBytesPerSecondPerEndpoint(1000).setMaxBytesPerSecond(1500);
+    assertTrue(limiter.tryAcquire(a, 600, 0));
+    assertTrue(limiter.tryAcquire(a, 600, 0));
+    // The endpoint's bucket is now in debt.
+    assertFalse(limiter.tryAcquire(a, 1, 0));
+    // b has its own bucket, but the global one only has 300 bytes left.
+    assertTrue(limiter.tryAcquire(b, 600, 0));
+    assertFalse(limiter.tryAcquire(b, 1, 0));
+    // After 200ms, a has earned back its 200 bytes of debt, but the global bucket hasn't.
+    assertFalse(limiter.tryAcquire(a, 1, 200));
+    assertTrue(limiter.tryAcquire(a, 1, 300));
+  }
+
+  @Test
+  public void refillsSlowRatesFromFrequentChecks() throws MalformedURLException {
+    URL url = new URL("https://collector.example.net/upload");
+    UploadLimiter limiter = new UploadLimiter().setMaxBytesPerSecond(100);
+    assertTrue(limiter.tryAcquire(url, 200, 0));
+    limiter.release(url);
+    // Each check earns a fraction of a byte, which must not be lost.
+    int millis = 1;
+    while (!limiter.tryAcquire(url, 1, millis)) {
+      millis++;
+    }
+    assertEquals(1001, millis);
+  }
+}
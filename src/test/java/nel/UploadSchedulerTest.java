@@ -0,0 +1,379 @@
+/* Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+public class UploadSchedulerTest {
+  private static class FakeClock implements Clock {
+    FakeClock(Instant now) {
+      this.now = now;
+    }
+
+    @Override
+    public Instant now() {
+      return now;
+    }
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    private Instant now;
+  }
+
+  private static class FakeDeliverer implements ReportDeliverer {
+    @Override
+    public void deliverReports(URL url, byte[] payload) throws IOException {
+      urls.add(url);
+      if (fail) {
+        throw new IOException("Upload failed");
+      }
+    }
+
+    private ArrayList<URL> urls = new ArrayList<URL>();
+    private boolean fail = false;
+  }
+
+  private static class FakeCompressedDeliverer extends FakeDeliverer
+      implements CompressedReportDeliverer {
+    @Override
+    public void deliverReports(URL url, byte[] payload, String contentEncoding)
+        throws IOException {
+      deliverReports(url, payload);
+      payloads.add(payload);
+      contentEncodings.add(contentEncoding);
+    }
+
+    private ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+    private ArrayList<String> contentEncodings = new ArrayList<String>();
+  }
+
+  /** An executor that holds on to its tasks until the test decides to run them. */
+  private static class QueuedExecutor implements Executor {
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      ArrayList<Runnable> toRun = new ArrayList<Runnable>(tasks);
+      tasks.clear();
+      for (Runnable task : toRun) {
+        task.run();
+      }
+    }
+
+    private ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+  }
+
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  private static final Instant I_1300 = Instant.parse("2018-02-20T13:00:00.000Z");
+  private static final Instant I_1301 = Instant.parse("2018-02-20T13:01:00.000Z");
+
+  private static final RetryPolicy NO_JITTER =
+      new RetryPolicy(Duration.standardMinutes(1), Duration.standardHours(1), 2.0, 0.0);
+
+  private Report makeReport(String uri) {
+    return new Report()
+        .setTimestamp(I_1300)
+        .setUri(uri)
+        .setSamplingFraction(1.0)
+        .setServerIp("192.0.2.24")
+        .setProtocol("h2")
+        .setStatusCode(200)
+        .setElapsedTime(Duration.millis(1000))
+        .setType(Type.OK);
+  }
+
+  private void addClient(ReportingCache cache, String host, Endpoint endpoint) {
+    Client client = new Client(new Origin("https", host, 443));
+    EndpointGroup group = new EndpointGroup("nel", false, Duration.standardHours(1), I_1300);
+    group.addEndpoint(endpoint);
+    client.addGroup(group);
+    cache.addClient(client);
+  }
+
+  @Test
+  public void uploadsQueuedReports() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    Endpoint endpoint = new Endpoint(new URL("https://collector.example.net/upload"));
+    addClient(cache, "example.com", endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    cache.enqueueReport(makeReport("https://example.com/b"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    UploadScheduler scheduler =
+        new UploadScheduler(cache, deliverer, DIRECT, 4, new FakeClock(I_1301));
+    assertEquals(1, scheduler.tick());
+    assertEquals(1, deliverer.urls.size());
+    assertEquals(0, cache.getQueuedReportCount());
+    assertEquals(0, scheduler.getInFlightCount());
+  }
+
+  @Test
+  public void obeysInFlightLimit() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    for (int i = 0; i < 5; i++) {
+      String host = "site" + Integer.toString(i) + ".example.com";
+      addClient(cache, host, new Endpoint(new URL("https://" + host + "/upload")));
+      cache.enqueueReport(makeReport("https://" + host + "/"));
+    }
+    FakeDeliverer deliverer = new FakeDeliverer();
+    QueuedExecutor executor = new QueuedExecutor();
+    UploadScheduler scheduler =
+        new UploadScheduler(cache, deliverer, executor, 2, new FakeClock(I_1301));
+    assertEquals(2, scheduler.tick());
+    assertEquals(2, scheduler.getInFlightCount());
+    // Nothing else can start until the in-flight uploads finish.
+    assertEquals(0, scheduler.tick());
+    executor.runAll();
+    assertEquals(0, scheduler.getInFlightCount());
+    assertEquals(3, cache.getQueuedReportCount());
+    assertEquals(2, scheduler.tick());
+    executor.runAll();
+    assertEquals(1, scheduler.tick());
+    executor.runAll();
+    assertEquals(0, cache.getQueuedReportCount());
+    assertEquals(5, deliverer.urls.size());
+  }
+
+  @Test
+  public void backsOffAfterFailures() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    cache.setRetryPolicy(NO_JITTER);
+    Endpoint endpoint = new Endpoint(new URL("https://collector.example.net/upload"));
+    addClient(cache, "example.com", endpoint);
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    deliverer.fail = true;
+    FakeClock clock = new FakeClock(I_1301);
+    UploadScheduler scheduler = new UploadScheduler(cache, deliverer, DIRECT, 1, clock);
+
+    assertEquals(1, scheduler.tick());
+    assertEquals(1, endpoint.getFailures());
+    assertEquals(I_1301.plus(Duration.standardMinutes(1)), endpoint.getRetryAfter());
+    // The endpoint is pending, so there's nowhere to upload the report to.
+    assertEquals(0, scheduler.tick());
+
+    clock.advance(Duration.standardMinutes(1));
+    assertEquals(1, scheduler.tick());
+    assertEquals(2, endpoint.getFailures());
+    assertEquals(clock.now().plus(Duration.standardMinutes(2)), endpoint.getRetryAfter());
+
+    clock.advance(Duration.standardMinutes(1));
+    assertEquals(0, scheduler.tick());
+    clock.advance(Duration.standardMinutes(1));
+    deliverer.fail = false;
+    assertEquals(1, scheduler.tick());
+    assertEquals(0, endpoint.getFailures());
+    assertFalse(endpoint.isPending(clock.now()));
+    assertEquals(0, cache.getQueuedReportCount());
+    assertEquals(3, deliverer.urls.size());
+  }
+
+  @Test
+  public void skipsBatchesWhoseEndpointBecamePending() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    Endpoint endpoint = new Endpoint(new URL("https://collector.example.net/upload"));
+    addClient(cache, "a.example.com", endpoint);
+    addClient(cache, "b.example.com", endpoint);
+    cache.enqueueReport(makeReport("https://a.example.com/"));
+    cache.enqueueReport(makeReport("https://b.example.com/"));
+    FakeDeliverer deliverer = new FakeDeliverer();
+    deliverer.fail = true;
+    QueuedExecutor executor = new QueuedExecutor();
+    UploadScheduler scheduler =
+        new UploadScheduler(cache, deliverer, executor, 2, new FakeClock(I_1301));
+    assertEquals(2, scheduler.tick());
+    executor.runAll();
+    // The first upload failed, so we don't even try the second.
+    assertEquals(1, deliverer.urls.size());
+    assertEquals(1, endpoint.getFailures());
+    assertEquals(2, cache.getQueuedReportCount());
+    for (ReportBatch batch : cache.getReportBatches(I_1301.plus(Duration.standardHours(1)))) {
+      assertEquals(1, batch.getReports().size());
+    }
+  }
+
+  @Test
+  public void releasesRejectedBatches() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    addClient(cache, "example.com", new Endpoint(new URL("https://collector.example.net/")));
+    cache.enqueueReport(makeReport("https://example.com/a"));
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        throw new RejectedExecutionException();
+      }
+    };
+    UploadScheduler scheduler =
+        new UploadScheduler(cache, new FakeDeliverer(), rejecting, 1, new FakeClock(I_1301));
+    assertEquals(0, scheduler.tick());
+    assertEquals(0, scheduler.getInFlightCount());
+    assertEquals(1, cache.getReportBatches(I_1301).size());
+  }
+
+  @Test
+  public void queuesBatchesOverByteLimit() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    for (int i = 0; i < 3; i++) {
+      String host = "site" + Integer.toString(i) + ".example.com";
+      addClient(cache, host, new Endpoint(new URL("https://collector.example.net/upload")));
+      cache.enqueueReport(makeReport("https://" + host + "/"));
+    }
+    FakeDeliverer deliverer = new FakeDeliverer();
+    FakeClock clock = new FakeClock(I_1301);
+    QueuedExecutor executor = new QueuedExecutor();
+    UploadScheduler scheduler = new UploadScheduler(cache, deliverer, executor, 4, clock);
+    scheduler.setUploadLimiter(new UploadLimiter().setMaxBytesPerSecondPerEndpoint(100));
+    assertEquals(3, scheduler.tick());
+    executor.runAll();
+    // Each payload is larger than a whole second's worth of bytes, so only the first one goes out
+    // right away; the other two wait with their batches still pending.
+    assertEquals(1, deliverer.urls.size());
+    assertEquals(2, scheduler.getWaitingCount());
+    assertEquals(0, scheduler.getInFlightCount());
+    assertEquals(2, cache.getQueuedReportCount());
+    assertEquals(0, cache.getReportBatches(clock.now()).size());
+    // Once the first upload's debt is paid off, the next tick starts one more.
+    clock.advance(Duration.standardSeconds(10));
+    assertEquals(0, scheduler.tick());
+    executor.runAll();
+    assertEquals(2, deliverer.urls.size());
+    assertEquals(1, scheduler.getWaitingCount());
+    clock.advance(Duration.standardSeconds(10));
+    scheduler.tick();
+    executor.runAll();
+    assertEquals(3, deliverer.urls.size());
+    assertEquals(0, scheduler.getWaitingCount());
+    assertEquals(0, cache.getQueuedReportCount());
+  }
+
+  @Test
+  public void latencyOnlyCoversDelivery() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    CountingReportingMetrics metrics = new CountingReportingMetrics();
+    cache.setMetrics(metrics);
+    addClient(cache, "example.com", new Endpoint(new URL("https://collector.example.net/upload")));
+    cache.enqueueReport(makeReport("https://example.com/"));
+    UploadScheduler scheduler =
+        new UploadScheduler(cache, new FakeDeliverer(), DIRECT, 4, new FakeClock(I_1301));
+    scheduler.setUploadLimiter(new UploadLimiter() {
+      @Override
+      public synchronized boolean tryAcquire(URL url, long bytes, long nowMillis) {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.tryAcquire(url, bytes, nowMillis);
+      }
+    });
+    assertEquals(1, scheduler.tick());
+    assertEquals(1, metrics.getSuccessfulUploadCount());
+    // Asking the limiter took 200ms, but the fake deliverer itself returns immediately.
+    assertTrue(metrics.getUploadLatency().getSumMillis() < 200);
+  }
+
+  @Test
+  public void releasesBatchesWhenTooManyAreWaiting() throws MalformedURLException {
+    ReportingCache cache = new ReportingCache();
+    for (int i = 0; i < 3; i++) {
+      String host = "site" + Integer.toString(i) + ".example.com";
+      addClient(cache, host, new Endpoint(new URL("https://collector.example.net/upload")));
+      cache.enqueueReport(makeReport("https://" + host + "/"));
+    }
+    FakeDeliverer deliverer = new FakeDeliverer();
+    FakeClock clock = new FakeClock(I_1301);
+    QueuedExecutor executor = new QueuedExecutor();
+    UploadScheduler scheduler = new UploadScheduler(cache, deliverer, executor, 1, clock);
+    scheduler.setUploadLimiter(new UploadLimiter().setMaxBytesPerSecond(100));
+    assertEquals(1, scheduler.tick());
+    executor.runAll();
+    assertEquals(1, scheduler.tick());
+    executor.runAll();
+    assertEquals(1, scheduler.getWaitingCount());
+    // The waiting list is full, so the next batch goes back to the cache instead.
+    assertEquals(1, scheduler.tick());
+    executor.runAll();
+    assertEquals(1, scheduler.getWaitingCount());
+    assertEquals(1, deliverer.urls.size());
+    assertEquals(1, cache.getReportBatches(clock.now()).size());
+  }
+
+  @Test
+  public void compressesPayloads() throws IOException {
+    ReportingCache cache = new ReportingCache();
+    addClient(cache, "example.com", new Endpoint(new URL("https://collector.example.net/upload")));
+    for (int i = 0; i < 50; i++) {
+      cache.enqueueReport(makeReport("https://example.com/" + Integer.toString(i)));
+    }
+    FakeCompressedDeliverer deliverer = new FakeCompressedDeliverer();
+    final ArrayList<Long> acquired = new ArrayList<Long>();
+    UploadLimiter limiter = new UploadLimiter() {
+      @Override
+      public synchronized boolean tryAcquire(URL url, long bytes, long nowMillis) {
+        acquired.add(bytes);
+        return super.tryAcquire(url, bytes, nowMillis);
+      }
+    };
+    PayloadCompressor compressor =
+        new PayloadCompressor(PayloadCompressor.Encoding.GZIP).setMinBytes(0);
+    UploadScheduler scheduler = new UploadScheduler(
+        cache, deliverer, compressor, DIRECT, 4, new FakeClock(I_1301));
+    scheduler.setUploadLimiter(limiter);
+    assertEquals(1, scheduler.tick());
+
+    assertEquals(Arrays.asList("gzip"), deliverer.contentEncodings);
+    byte[] payload = deliverer.payloads.get(0);
+    // The limiter should be charged for the bytes that we actually sent.
+    assertEquals(Arrays.asList((long) payload.length), acquired);
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    InputStream input = new GZIPInputStream(new ByteArrayInputStream(payload));
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = input.read(buffer)) > 0) {
+      json.write(buffer, 0, count);
+    }
+    assertTrue(json.size() > payload.length);
+    assertEquals('[', json.toByteArray()[0]);
+    assertEquals(0, cache.getQueuedReportCount());
+  }
+}